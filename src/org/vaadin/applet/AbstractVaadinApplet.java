@@ -1,9 +1,25 @@
 package org.vaadin.applet;
 
 import java.applet.Applet;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class can be used as base to implement Java Applets that integrate to
@@ -30,16 +46,113 @@ public abstract class AbstractVaadinApplet extends Applet {
     protected static final String PARAM_PAINTABLE_ID = "paintableId";
     protected static final String PARAM_APP_DEBUG = "appDebug";
     protected static final String PARAM_ACTION_URL = "actionUrl";
+    protected static final String PARAM_COMPRESS_THRESHOLD = "appCompressThreshold";
+    protected static final String PARAM_TRACE_SIZE = "appTraceSize";
+    protected static final String PARAM_IMMEDIATE_RATE = "appImmediateRate";
+    protected static final String PARAM_IMMEDIATE_BURST = "appImmediateBurst";
+    protected static final String PARAM_DRAIN_TIMEOUT = "appDrainTimeout";
+    protected static final String PARAM_INSERT_TIME = "appInsertTime";
+    protected static final String PARAM_HEARTBEAT_MIN = "appHeartbeatMin";
+    protected static final String PARAM_HEARTBEAT_MAX = "appHeartbeatMax";
+    protected static final String PARAM_HEARTBEAT_HINT = "appHeartbeatHint";
+    protected static final String PARAM_PUSH = "appPush";
+    protected static final String PARAM_RPC_URL = "appRpcUrl";
+    protected static final String PARAM_STREAM_URL = "appStreamUrl";
+    protected static final String PARAM_CACHE_SIZE = "appCacheSize";
+    protected static final String PARAM_DETACHED_URL = "appDetachedUrl";
+    protected static final String PARAM_FEATURE_ARCHIVES = "appFeatureArchives";
+    protected static final String PARAM_SHARED_MODEL = "appSharedModel";
+
+    /** Variable used to report the start-up timings to the server. */
+    protected static final String VAR_STARTUP_TIMINGS = "appletStartupTimings";
+
+    /** Variable used to return the traces of traced commands. */
+    protected static final String VAR_COMMAND_TRACES = "appletCommandTraces";
+
+    /** Variable used to report a feature archive that could not be loaded. */
+    protected static final String VAR_FEATURE_FAILURE = "appletFeatureFailure";
+
+    /** Variable used to send the changes of the shared model. */
+    protected static final String VAR_SHARED_MODEL = "appletSharedModel";
+
+    /** Command used to receive the changes of the shared model. */
+    protected static final String CMD_SHARED_MODEL = "appletSharedModel";
+
+    /** Maximum number of command traces kept until they have been sent. */
+    private static final int MAX_UNSENT_TRACES = 64;
+
+    protected static final int DEFAULT_TRACE_SIZE = 256;
+
+    /** Default maximum size of the resource cache in bytes. */
+    protected static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
 
     protected static long MAX_JS_WAIT_TIME = 10000;
 
+    /**
+     * Default time in milliseconds {@link #destroy()} waits for pending
+     * commands and JavaScript calls to complete.
+     */
+    protected static final long DEFAULT_DRAIN_TIMEOUT = 2000;
+
+    private static final AtomicInteger livePollerThreads = new AtomicInteger();
+    private static final AtomicInteger liveJSCallThreads = new AtomicInteger();
+
+    /**
+     * Lifecycle states of the applet.
+     */
+    public enum LifecycleState {
+        /** Created but not yet initialized. */
+        NEW,
+        /** Initialized and accepting commands. */
+        RUNNING,
+        /** Destroy requested, pending commands are being drained. */
+        STOPPING,
+        /** Destroyed, all bridge threads have been stopped or abandoned. */
+        DESTROYED
+    }
+
+    /** Priority of bulk commands. */
+    public static final int PRIORITY_NORMAL = 0;
+
+    /** Priority of urgent commands that are served ahead of bulk commands. */
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * Maximum number of consecutive high priority commands executed while
+     * normal priority commands are waiting.
+     */
+    protected static int MAX_HIGH_PRIORITY_RUN = 8;
+
     private boolean debug = false;
 
     private JsPollerThread pollerThread;
 
     private Object pollerLock = new Object[] {};
 
-    public boolean runPoller = true;
+    private final CommandLane highLane = new CommandLane("high");
+    private final CommandLane normalLane = new CommandLane("normal");
+
+    private int highPriorityRun;
+
+    public volatile boolean runPoller = true;
+
+    private volatile LifecycleState lifecycleState = LifecycleState.NEW;
+
+    private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+    private final Set<JSCallThread> activeJSCalls = Collections
+            .newSetFromMap(new ConcurrentHashMap<JSCallThread, Boolean>());
+
+    /** Set by destroy() when it no longer waits for new JavaScript calls. */
+    private boolean jsCallsClosed;
+
+    private int cancelledCommands;
+
+    private final long constructedAt = System.currentTimeMillis();
+
+    private long initStartedAt;
+
+    private long initFinishedAt;
 
     private String applicationURL;
 
@@ -51,18 +164,389 @@ public abstract class AbstractVaadinApplet extends Applet {
 
     private String actionUrl;
 
+    private int compressionThreshold;
+
+    private TraceBuffer traceBuffer = new TraceBuffer(DEFAULT_TRACE_SIZE);
+
+    /** Trace of the command being executed by the current thread. */
+    private final ThreadLocal<CommandTrace> runningTrace = new ThreadLocal<CommandTrace>();
+
+    /** Traces returned since the last immediate request. */
+    private final List<String> unsentTraces = new ArrayList<String>();
+
+    private final TokenBucket immediateLimiter = new TokenBucket(0, 0);
+
+    private volatile boolean syncPending;
+
+    private final HeartbeatScheduler heartbeat = new HeartbeatScheduler(0, 0);
+
+    private AppletRpcClient rpcClient;
+
+    private URL streamUrl;
+
+    private ResourceCache resourceCache;
+
+    private CommandDispatcher commandDispatcher;
+
+    private FeatureLoader featureLoader;
+
+    private SharedModel sharedModel;
+
+    private AppletTransport transport = new LiveConnectTransport();
+
     @Override
     public void init() {
+        initStartedAt = System.currentTimeMillis();
         setDebug("true".equals(getParameter(PARAM_APP_DEBUG)));
         setAppletId(getParameter(PARAM_APPLET_ID));
         setPaintableId(getParameter(PARAM_PAINTABLE_ID));
         setApplicationURL(getParameter(PARAM_APP_URL));
         setApplicationSessionCookie(getParameter(PARAM_APP_SESSION));
         setAction(getParameter(PARAM_ACTION_URL));
+        setCompressionThreshold(getParameter(PARAM_COMPRESS_THRESHOLD));
+        setTraceSize(getParameter(PARAM_TRACE_SIZE));
+        setImmediateUpdateLimit(getParameter(PARAM_IMMEDIATE_RATE),
+                getParameter(PARAM_IMMEDIATE_BURST));
+        setDrainTimeout(getParameter(PARAM_DRAIN_TIMEOUT));
+        setHeartbeat(getParameter(PARAM_HEARTBEAT_MIN),
+                getParameter(PARAM_HEARTBEAT_MAX));
+        hintHeartbeat(getParameter(PARAM_HEARTBEAT_HINT));
+        setPushActive("true".equals(getParameter(PARAM_PUSH)));
+        setRpcUrl(getParameter(PARAM_RPC_URL));
+        setStreamUrl(getParameter(PARAM_STREAM_URL));
+
+        commandDispatcher = CommandDispatcher.create(this);
+        featureLoader = new FeatureLoader(this, getCodeBase(),
+                FeatureLoader.parse(getParameter(PARAM_FEATURE_ARCHIVES)));
+        if ("true".equals(getParameter(PARAM_SHARED_MODEL))) {
+            // Get the current model from the server
+            getSharedModel().requestResync();
+        }
 
         // Start the poller thread for JS commands
         pollerThread = new JsPollerThread();
+        initFinishedAt = System.currentTimeMillis();
         pollerThread.start();
+        lifecycleState = LifecycleState.RUNNING;
+
+        // Receive commands directly from the server when started by
+        // DetachedAppletLauncher
+        setDetachedUrl(getParameter(PARAM_DETACHED_URL));
+    }
+
+    private void setDetachedUrl(String url) {
+        if (url == null) {
+            return;
+        }
+        try {
+            DetachedTransport detached = new DetachedTransport(this, new URL(
+                    getDocumentBase(), url), getApplicationSessionCookie());
+            transport = detached;
+            detached.start();
+            debug("detachedUrl=" + url);
+        } catch (MalformedURLException e) {
+            debug(e);
+        }
+    }
+
+    /**
+     * Check if this applet has been started by {@link DetachedAppletLauncher}
+     * and communicates directly with the server instead of through
+     * JavaScript.
+     *
+     * @return
+     */
+    public boolean isDetached() {
+        return transport instanceof DetachedTransport;
+    }
+
+    /**
+     * Get the loader of the feature archives declared with
+     * {@link AppletIntegration#setFeatureArchives(java.util.Map)}.
+     *
+     * @return
+     */
+    public FeatureLoader getFeatureLoader() {
+        return featureLoader;
+    }
+
+    /**
+     * Get the model shared with the server-side component.
+     *
+     * @return
+     * @see AppletIntegration#getSharedModel()
+     */
+    public synchronized SharedModel getSharedModel() {
+        if (sharedModel == null) {
+            sharedModel = new SharedModel(false);
+        }
+        return sharedModel;
+    }
+
+    /**
+     * Send the changes of the shared model to the server right away. The
+     * changes are otherwise sent with the next synchronization.
+     */
+    public void sendSharedModel() {
+        flushSharedModel(true);
+    }
+
+    private void flushSharedModel(boolean immediate) {
+        SharedModel model;
+        synchronized (this) {
+            model = sharedModel;
+        }
+        String message = model == null ? null : model.takeMessage();
+        if (message != null) {
+            vaadinUpdateVariable(VAR_SHARED_MODEL, message, immediate);
+        }
+    }
+
+    /**
+     * Report the durations of the start-up phases of the applet to the
+     * server. The durations are in milliseconds and measured from the moment
+     * the applet markup was inserted by the client-side widget:
+     * <ul>
+     * <li>jvmStart - until the JVM was started, 0 if it was already running</li>
+     * <li>appletLoad - until the applet class was loaded and constructed</li>
+     * <li>init - duration of {@link #init()}</li>
+     * <li>total - until the applet was initialized</li>
+     * </ul>
+     */
+    private void reportStartupTimings() {
+        long insertedAt;
+        try {
+            insertedAt = Long.parseLong(getParameter(PARAM_INSERT_TIME));
+        } catch (NumberFormatException e) {
+            // Not provided by the client-side widget
+            return;
+        }
+        long jvmStartedAt = insertedAt;
+        try {
+            jvmStartedAt = Math.max(insertedAt, ManagementFactory
+                    .getRuntimeMXBean().getStartTime());
+        } catch (SecurityException e) {
+            debug(e);
+        }
+        String timings = "jvmStart=" + (jvmStartedAt - insertedAt)
+                + ",appletLoad=" + (constructedAt - jvmStartedAt) + ",init="
+                + (initFinishedAt - initStartedAt) + ",total="
+                + (initFinishedAt - insertedAt);
+        debug("Startup timings", timings);
+        vaadinUpdateVariable(VAR_STARTUP_TIMINGS, timings, false);
+    }
+
+    private void setDrainTimeout(String timeout) {
+        if (timeout == null) {
+            return;
+        }
+        try {
+            drainTimeout = Long.parseLong(timeout);
+        } catch (NumberFormatException e) {
+            debug(e);
+        }
+        debug("drainTimeout=" + drainTimeout);
+    }
+
+    private void setRpcUrl(String rpcUrl) {
+        if (rpcUrl == null) {
+            return;
+        }
+        try {
+            rpcClient = new AppletRpcClient(new URL(getDocumentBase(), rpcUrl),
+                    getApplicationSessionCookie());
+            debug("rpcUrl=" + rpcClient.getUrl());
+        } catch (MalformedURLException e) {
+            debug(e);
+        }
+    }
+
+    private void setStreamUrl(String url) {
+        if (url == null) {
+            return;
+        }
+        try {
+            streamUrl = new URL(getDocumentBase(), url);
+            debug("streamUrl=" + streamUrl);
+        } catch (MalformedURLException e) {
+            debug(e);
+        }
+    }
+
+    /**
+     * Open a stream published by the server-side component with
+     * {@link AppletIntegration#publishStream(com.vaadin.server.StreamResource.StreamSource, long, String)}.
+     *
+     * The data is downloaded while it is read. If the connection fails in the
+     * middle of the stream, reading is resumed from the current position
+     * with an HTTP range request.
+     *
+     * @param handle
+     *            The handle of the stream, usually received as a command
+     *            parameter.
+     * @return
+     * @throws IOException
+     *             if the stream could not be opened, e.g. because the handle
+     *             has expired
+     */
+    public InputStream openStream(String handle) throws IOException {
+        if (streamUrl == null) {
+            throw new IllegalStateException(
+                    "Stream URL not provided by the client-side widget");
+        }
+        return new ResumableInputStream(new URL(streamUrl, handle),
+                getApplicationSessionCookie());
+    }
+
+    /**
+     * Get the disk cache of resources downloaded by this applet. The cache is
+     * opened on the first call and shared by the applets of the same codebase
+     * in later page loads.
+     *
+     * The maximum size of the cache can be set in bytes with the
+     * "appCacheSize" applet parameter.
+     *
+     * @return
+     * @throws IOException
+     *             if the cache directory cannot be created
+     */
+    public synchronized ResourceCache getResourceCache() throws IOException {
+        if (resourceCache == null) {
+            long maxSize = DEFAULT_CACHE_SIZE;
+            String param = getParameter(PARAM_CACHE_SIZE);
+            if (param != null) {
+                try {
+                    maxSize = Long.parseLong(param);
+                } catch (NumberFormatException e) {
+                    debug(e);
+                }
+            }
+            resourceCache = new ResourceCache(getResourceCacheDirectory(),
+                    maxSize, getCodeBase(), getApplicationSessionCookie());
+            debug("resourceCache=" + maxSize);
+        }
+        return resourceCache;
+    }
+
+    /**
+     * Get the directory of the resource cache. By default this is a
+     * directory specific to the host and port of the codebase under
+     * ".vaadin-applet-cache" in the home directory of the user.
+     *
+     * @return
+     */
+    protected File getResourceCacheDirectory() {
+        URL codeBase = getCodeBase();
+        final String name = codeBase == null ? "default" : codeBase.getHost()
+                + "_" + codeBase.getPort();
+        return AccessController.doPrivileged(new PrivilegedAction<File>() {
+            @Override
+            public File run() {
+                return new File(new File(System.getProperty("user.home"),
+                        ".vaadin-applet-cache"), name);
+            }
+        });
+    }
+
+    /**
+     * Get a resource through the resource cache. The resource is downloaded
+     * only if it is not cached or has changed on the server.
+     *
+     * @param url
+     *            URL of the resource, relative to the document of the applet.
+     * @return the contents as a read-only buffer
+     * @throws IOException
+     * @see ResourceCache#get(URL)
+     */
+    public ByteBuffer getCachedResource(String url) throws IOException {
+        return getResourceCache().get(new URL(getDocumentBase(), url));
+    }
+
+    /**
+     * Check whether messages can be sent with {@link #sendMessage(byte[])}.
+     * This is the case when message listeners have been added to the
+     * server-side component.
+     *
+     * @return
+     */
+    public boolean isMessagingEnabled() {
+        return rpcClient != null;
+    }
+
+    /**
+     * Send a binary message directly to the server-side component, without
+     * going through JavaScript.
+     *
+     * Messages are queued and posted in batches by the poller thread using a
+     * persistent HTTP connection. They are delivered in order to the message
+     * listeners of {@link AppletIntegration}. Use {@link #flushMessages()} to
+     * post the queued messages immediately.
+     *
+     * @param message
+     * @throws IllegalStateException
+     *             if there are no message listeners on the server
+     */
+    public void sendMessage(byte[] message) {
+        if (rpcClient == null) {
+            throw new IllegalStateException(
+                    "Messaging is not enabled by the server-side component");
+        }
+        rpcClient.queue(message);
+        synchronized (pollerLock) {
+            pollerLock.notifyAll();
+        }
+    }
+
+    /**
+     * Post the queued messages in the calling thread.
+     *
+     * @throws IOException
+     *             if posting the messages failed, in which case the messages
+     *             are dropped
+     */
+    public void flushMessages() throws IOException {
+        if (rpcClient != null) {
+            rpcClient.flush();
+        }
+    }
+
+    /**
+     * Get the number of messages successfully posted to the server.
+     *
+     * @return
+     */
+    public long getSentMessageCount() {
+        return rpcClient == null ? 0 : rpcClient.getSentMessageCount();
+    }
+
+    /**
+     * Get the number of messages dropped because posting them failed.
+     *
+     * @return
+     */
+    public long getFailedMessageCount() {
+        return rpcClient == null ? 0 : rpcClient.getFailedMessageCount();
+    }
+
+    private boolean hasQueuedMessages() {
+        return rpcClient != null && rpcClient.hasQueued();
+    }
+
+    private void postQueuedMessages() {
+        try {
+            flushMessages();
+        } catch (IOException e) {
+            debug(e);
+        }
+    }
+
+    /**
+     * Get the current lifecycle state of the applet.
+     *
+     * @return
+     */
+    public LifecycleState getLifecycleState() {
+        return lifecycleState;
     }
 
     private void setAction(String submitAction) {
@@ -84,6 +568,203 @@ public abstract class AbstractVaadinApplet extends Applet {
         return actionUrl;
     }
 
+    private void setCompressionThreshold(String threshold) {
+        if (threshold != null) {
+            try {
+                compressionThreshold = Integer.parseInt(threshold);
+            } catch (NumberFormatException e) {
+                debug(e);
+            }
+        }
+        debug("compressionThreshold=" + compressionThreshold);
+    }
+
+    private void setTraceSize(String size) {
+        if (size == null) {
+            return;
+        }
+        try {
+            traceBuffer = new TraceBuffer(Integer.parseInt(size));
+        } catch (IllegalArgumentException e) {
+            debug(e);
+        }
+        debug("traceSize=" + size);
+    }
+
+    private void setImmediateUpdateLimit(String rate, String burst) {
+        if (rate == null) {
+            return;
+        }
+        try {
+            setImmediateUpdateLimit(Integer.parseInt(rate),
+                    burst == null ? 0 : Integer.parseInt(burst));
+        } catch (NumberFormatException e) {
+            debug(e);
+        }
+    }
+
+    /**
+     * Limit the rate of immediate variable updates.
+     *
+     * When the limit is exceeded updates are sent as non-immediate and a
+     * single synchronization with the server is made once the rate allows it.
+     * The limit is normally controlled by the server-side component using
+     * {@link AppletIntegration#setImmediateUpdateLimit(int, int)}.
+     *
+     * @param updatesPerSecond
+     *            Sustained number of immediate updates per second or 0 for
+     *            no limit.
+     * @param burst
+     *            Number of immediate updates allowed in a burst. Defaults to
+     *            updatesPerSecond if not positive.
+     */
+    public void setImmediateUpdateLimit(int updatesPerSecond, int burst) {
+        immediateLimiter.configure(updatesPerSecond, burst);
+        debug("immediateUpdateLimit=" + updatesPerSecond + "/" + burst);
+    }
+
+    private void setHeartbeat(String minInterval, String maxInterval) {
+        if (maxInterval == null) {
+            return;
+        }
+        try {
+            setHeartbeat(minInterval == null ? 0 : Integer
+                    .parseInt(minInterval), Integer.parseInt(maxInterval));
+        } catch (NumberFormatException e) {
+            debug(e);
+        }
+    }
+
+    private void hintHeartbeat(String interval) {
+        if (interval == null) {
+            return;
+        }
+        try {
+            hintHeartbeat(Integer.parseInt(interval));
+        } catch (NumberFormatException e) {
+            debug(e);
+        }
+    }
+
+    /**
+     * Enable the adaptive heartbeat that synchronizes with the server to pick
+     * up queued commands, so that the applet does not need to call
+     * {@link #vaadinSync()} on a timer.
+     *
+     * The heartbeat interval starts from the minimum and doubles while no
+     * commands are received, up to the maximum. Each received command resets
+     * it to the minimum. Immediate variable updates postpone the next
+     * heartbeat, and no heartbeats are made while server push is active. The
+     * heartbeat is normally controlled by the server-side component using
+     * {@link AppletIntegration#setHeartbeatInterval(int, int)}.
+     *
+     * @param minInterval
+     *            Interval in milliseconds while commands are flowing.
+     * @param maxInterval
+     *            Longest interval in milliseconds when idle or 0 to disable
+     *            the heartbeat.
+     */
+    public void setHeartbeat(int minInterval, int maxInterval) {
+        heartbeat.configure(minInterval, maxInterval);
+        debug("heartbeat=" + minInterval + "-" + maxInterval);
+    }
+
+    /**
+     * Schedule the next heartbeat after the given interval. Called by the
+     * client-side widget when the server hints the interval using
+     * {@link AppletIntegration#hintHeartbeatInterval(int)}.
+     *
+     * @param interval
+     *            Interval in milliseconds, limited to the configured range.
+     */
+    public void hintHeartbeat(int interval) {
+        heartbeat.hint(interval);
+        debug("heartbeatHint=" + interval);
+    }
+
+    /**
+     * Tell the applet whether server push is active. The heartbeat is
+     * suspended while push delivers the commands.
+     *
+     * @param pushActive
+     */
+    public void setPushActive(boolean pushActive) {
+        heartbeat.setPushActive(pushActive);
+        debug("pushActive=" + pushActive);
+    }
+
+    /**
+     * Get the current heartbeat interval.
+     *
+     * @return interval in milliseconds
+     */
+    public long getHeartbeatInterval() {
+        return heartbeat.getInterval();
+    }
+
+    /**
+     * Check whether an update may be sent immediately. If the rate limit has
+     * been exceeded the update is downgraded and a later sync is scheduled.
+     *
+     * @param immediate
+     *            the requested immediate flag
+     * @return the immediate flag to use
+     */
+    private boolean admitImmediate(boolean immediate) {
+        // The first variable sent by a traced command is its reply
+        CommandTrace trace = runningTrace.get();
+        if (trace != null) {
+            runningTrace.remove();
+            trace.replied = System.currentTimeMillis();
+            returnTrace(trace);
+        }
+        if (!immediate) {
+            return false;
+        }
+        if (immediateLimiter.tryAcquire()) {
+            heartbeat.synced();
+            tracesSent();
+            return true;
+        }
+        syncPending = true;
+        return false;
+    }
+
+    /**
+     * Get the buffer of the latest bridge events of this applet.
+     *
+     * The size of the buffer can be set with the "appTraceSize" applet
+     * parameter. Zero disables tracing.
+     *
+     * @return
+     */
+    protected TraceBuffer getTraceBuffer() {
+        return traceBuffer;
+    }
+
+    /**
+     * Get the buffered bridge events as text. This can be called from
+     * JavaScript to diagnose the applet.
+     *
+     * @return The buffered events, one per line.
+     */
+    public String dumpTrace() {
+        return traceBuffer.dump();
+    }
+
+    /**
+     * Get the minimum length of string variable values that are compressed
+     * before they are sent to the server.
+     *
+     * Compression is enabled by the server-side component using
+     * {@link AppletIntegration#setCompressionThreshold(int)}.
+     *
+     * @return Threshold in characters or 0 if compression is disabled.
+     */
+    protected int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
     /**
      * Set the id of the applet in DOM.
      *
@@ -148,40 +829,172 @@ public abstract class AbstractVaadinApplet extends Applet {
      *
      * @param appUrl
      */
-    private void setApplicationURL(String appUrl) {
-        applicationURL = appUrl;
-        debug("applicationURL=" + applicationURL);
+    private void setApplicationURL(String appUrl) {
+        applicationURL = appUrl;
+        debug("applicationURL=" + applicationURL);
+    }
+
+    /**
+     * Get the application URL.
+     *
+     * @return The URL of the Vaadin application.
+     */
+    protected String getApplicationURL() {
+        return applicationURL;
+    }
+
+    /**
+     * Debug a string if debugging has been enabled.
+     *
+     * @param string
+     */
+    protected void debug(String string) {
+        if (!isDebug()) {
+            return;
+        }
+        System.err.println("debug: " + string);
+    }
+
+    /**
+     * Debug a message and a quoted value if debugging has been enabled. The
+     * debug line is only composed when debugging is enabled, so this should
+     * be preferred over string concatenation on frequently called paths.
+     *
+     * @param message
+     * @param value
+     */
+    protected void debug(String message, Object value) {
+        if (!isDebug()) {
+            return;
+        }
+        System.err.println("debug: " + message + " '" + value + "'");
+    }
+
+    /**
+     * Stop the poller and destroy the applet.
+     *
+     * New commands and JavaScript calls are rejected immediately, except for
+     * the calls made by the commands being drained. Commands already queued
+     * are executed and running JavaScript calls are waited for until the drain
+     * timeout set with the "appDrainTimeout" applet parameter expires. The
+     * remaining commands are then cancelled and the bridge threads are
+     * interrupted.
+     */
+    @Override
+    public void destroy() {
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        JsPollerThread poller = pollerThread;
+        synchronized (pollerLock) {
+            lifecycleState = LifecycleState.STOPPING;
+            pollerLock.notifyAll();
+            // Let the poller execute the queued commands
+            while (poller != null && poller.isAlive()
+                    && !(highLane.isEmpty() && normalLane.isEmpty())) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    pollerLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            cancelledCommands += highLane.clear() + normalLane.clear();
+            runPoller = false;
+            pollerLock.notifyAll();
+        }
+
+        // Wait for the command being executed and the JavaScript calls
+        if (poller != null) {
+            join(poller, deadline);
+        }
+        List<JSCallThread> calls;
+        synchronized (pollerLock) {
+            jsCallsClosed = true;
+            calls = new ArrayList<JSCallThread>(activeJSCalls);
+        }
+        for (JSCallThread t : calls) {
+            join(t, deadline);
+        }
+        transport.close();
+        if (featureLoader != null) {
+            featureLoader.close();
+        }
+        pollerThread = null;
+        activeJSCalls.clear();
+        traceBuffer.clear();
+        lifecycleState = LifecycleState.DESTROYED;
+        debug("Applet destroyed. Cancelled commands", cancelledCommands);
+        super.destroy();
+    }
+
+    /**
+     * Wait for a thread to finish until the deadline, then interrupt it.
+     */
+    private void join(Thread t, long deadline) {
+        try {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                t.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            debug("Interrupting thread", t.getName());
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Check if a new JavaScript call can be started. Once the applet is
+     * stopping, only the poller thread draining the queued commands can start
+     * calls, until destroy() has stopped waiting for them. Called while
+     * holding the poller lock.
+     */
+    private boolean acceptsJSCalls() {
+        switch (lifecycleState) {
+        case NEW:
+        case RUNNING:
+            return true;
+        case STOPPING:
+            return !jsCallsClosed && Thread.currentThread() == pollerThread;
+        default:
+            return false;
+        }
     }
 
     /**
-     * Get the application URL.
+     * Get the number of commands cancelled because they could not be executed
+     * before the drain timeout of {@link #destroy()} expired or because they
+     * arrived after the applet was stopped.
      *
-     * @return The URL of the Vaadin application.
+     * @return
      */
-    protected String getApplicationURL() {
-        return applicationURL;
+    public int getCancelledCommandCount() {
+        synchronized (pollerLock) {
+            return cancelledCommands;
+        }
     }
 
     /**
-     * Debug a string if debugging has been enabled.
+     * Get the number of command poller threads alive in this JVM. A number
+     * larger than the number of applets on the page indicates a leak.
      *
-     * @param string
+     * @return
      */
-    protected void debug(String string) {
-        if (!isDebug()) {
-            return;
-        }
-        System.err.println("debug: " + string);
+    public static int getLivePollerThreadCount() {
+        return livePollerThreads.get();
     }
 
     /**
-     * Stop the poller and destroy the applet.
+     * Get the number of JavaScript call threads alive in this JVM.
      *
+     * @return
      */
-    @Override
-    public void destroy() {
-        runPoller = false;
-        super.destroy();
+    public static int getLiveJSCallThreadCount() {
+        return liveJSCallThreads.get();
     }
 
     /**
@@ -189,9 +1002,12 @@ public abstract class AbstractVaadinApplet extends Applet {
      * application with server. This is an asynchronous method call that returns
      * immediately.
      *
+     * A detached applet posts its queued variables to the server instead.
      */
     public void vaadinSync() {
-        jsCallAsync("vaadin.forceSync()");
+        heartbeat.synced();
+        tracesSent();
+        transport.sync(false);
     }
 
     /**
@@ -203,10 +1019,9 @@ public abstract class AbstractVaadinApplet extends Applet {
      */
     public void vaadinUpdateVariable(String variableName, boolean newValue,
             boolean immediate) {
-        String cmd = "vaadin.appletUpdateBooleanVariable('" + getPaintableId()
-                + "','" + variableName + "'," + newValue + "," + immediate
-                + ")";
-        jsCall(cmd);
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, Boolean.valueOf(newValue),
+                immediate);
     }
 
     /**
@@ -218,10 +1033,9 @@ public abstract class AbstractVaadinApplet extends Applet {
      */
     public void vaadinUpdateVariable(String variableName, int newValue,
             boolean immediate) {
-        String cmd = "vaadin.appletUpdateIntVariable('" + getPaintableId()
-                + "','" + variableName + "'," + newValue + "," + immediate
-                + ")";
-        jsCall(cmd);
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, Integer.valueOf(newValue),
+                immediate);
     }
 
     /**
@@ -233,32 +1047,137 @@ public abstract class AbstractVaadinApplet extends Applet {
      */
     public void vaadinUpdateVariable(String variableName, double newValue,
             boolean immediate) {
-        String cmd = "vaadin.appletUpdateDoubleVariable('" + getPaintableId()
-                + "','" + variableName + "'," + newValue + "," + immediate
-                + ")";
-        jsCall(cmd);
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, Double.valueOf(newValue),
+                immediate);
     }
 
     /**
      * Invokes vaadin.appletUpdateVariable sends a variable to server.
      *
+     * The value is passed to JavaScript as a function argument so it does not
+     * need to be escaped. If compression has been enabled and the value is
+     * longer than the compression threshold, the value is deflated before
+     * sending and transparently inflated by the server-side component.
+     *
      * @param variableName
      * @param newValue
      * @param immediate
      */
     public void vaadinUpdateVariable(String variableName, String newValue,
             boolean immediate) {
-        newValue = escapeJavaScript(newValue);
-        String cmd = "vaadin.appletUpdateStringVariable('" + getPaintableId()
-                + "','" + variableName + "','" + newValue + "'," + immediate
-                + ")";
-        jsCall(cmd);
+        if (compressionThreshold > 0 && newValue != null
+                && newValue.length() >= compressionThreshold) {
+            newValue = PayloadCodec.deflate(newValue);
+        }
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, newValue, immediate);
+    }
+
+    /**
+     * Invokes vaadin.appletUpdateVariable sends a variable to server.
+     *
+     * @param variableName
+     * @param newValue
+     * @param immediate
+     */
+    public void vaadinUpdateVariable(String variableName, float newValue,
+            boolean immediate) {
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, Float.valueOf(newValue),
+                immediate);
+    }
+
+    /**
+     * Invokes vaadin.appletUpdateVariable sends a variable to server.
+     *
+     * The value is passed to JavaScript as a string, as JavaScript numbers
+     * cannot represent all long values.
+     *
+     * @param variableName
+     * @param newValue
+     * @param immediate
+     */
+    public void vaadinUpdateVariable(String variableName, long newValue,
+            boolean immediate) {
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, Long.valueOf(newValue),
+                immediate);
+    }
+
+    /**
+     * Invokes vaadin.appletUpdateVariable sends a variable to server.
+     *
+     * @param variableName
+     * @param newValue
+     * @param immediate
+     */
+    public void vaadinUpdateVariable(String variableName, String[] newValue,
+            boolean immediate) {
+        immediate = admitImmediate(immediate);
+        transport.updateVariable(variableName, newValue != null ? newValue
+                : new String[0], immediate);
     }
 
     /*
-     * TODO: Variable support missing for: String[], Object[], long, float,
-     * Map<String,Object>, Paintable
+     * TODO: Variable support missing for: Object[], Map<String,Object>,
+     * Paintable
+     */
+
+    /**
+     * Transport of the variables through the JavaScript functions exported by
+     * the client-side widget.
      */
+    private final class LiveConnectTransport implements AppletTransport {
+
+        @Override
+        public void updateVariable(String variableName, Object value,
+                boolean immediate) {
+            String function;
+            if (value instanceof Boolean) {
+                function = "vaadin.appletUpdateBooleanVariable";
+            } else if (value instanceof Integer) {
+                function = "vaadin.appletUpdateIntVariable";
+            } else if (value instanceof Double) {
+                function = "vaadin.appletUpdateDoubleVariable";
+            } else if (value instanceof Float) {
+                function = "vaadin.appletUpdateFloatVariable";
+            } else if (value instanceof Long) {
+                // JavaScript numbers cannot hold all long values
+                function = "vaadin.appletUpdateLongVariable";
+                value = value.toString();
+            } else if (value instanceof String[]) {
+                function = "vaadin.appletUpdateStringArrayVariable";
+            } else {
+                function = "vaadin.appletUpdateStringVariable";
+            }
+            jsCall(function, new Object[] { getPaintableId(), variableName,
+                    value, Boolean.valueOf(immediate) });
+        }
+
+        @Override
+        public void sync(boolean wait) {
+            JSCallThread t = new JSCallThread("vaadin.forceSync",
+                    new Object[] {});
+            t.start();
+            if (wait) {
+                try {
+                    t.join(MAX_JS_WAIT_TIME);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void ready() {
+            jsCall("vaadin.appletReady", new Object[] { getPaintableId() });
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 
     /**
      * Helper to call synchronously JavaScript and wrap the InterruptedException
@@ -274,6 +1193,21 @@ public abstract class AbstractVaadinApplet extends Applet {
         }
     }
 
+    /**
+     * Helper to call synchronously a JavaScript function and wrap the
+     * InterruptedException to a RuntimeException.
+     *
+     * @see #jsCall(String)
+     */
+    private Object jsCall(String function, Object[] args) {
+        try {
+            return jsCallFunctionSync(function, args);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(
+                    "Synchronous JavaScript call timed out.", e);
+        }
+    }
+
     /**
      * Execute a JavaScript asynchronously. Note that this return immediately
      * and JavaScript timing problems may occur if called sequentially multiple
@@ -299,6 +1233,26 @@ public abstract class AbstractVaadinApplet extends Applet {
         return t.getResult();
     }
 
+    /**
+     * Call a JavaScript function synchronously. Unlike
+     * {@link #jsCallSync(String)} this does not make the browser parse any
+     * JavaScript and the arguments are passed as is without escaping.
+     *
+     * @param function
+     *            Name of the function, qualified with the names of the
+     *            objects it is found from, e.g. "vaadin.forceSync".
+     * @param args
+     *            Arguments of the function.
+     * @throws InterruptedException
+     */
+    public Object jsCallFunctionSync(String function, Object[] args)
+            throws InterruptedException {
+        JSCallThread t = new JSCallThread(function, args);
+        t.start();
+        t.join(MAX_JS_WAIT_TIME);
+        return t.getResult();
+    }
+
     /**
      * Thread for polling incoming JavaScript commands. Threading is used to
      * change the call stack. If an applet function is invoked from JavaScript
@@ -312,40 +1266,262 @@ public abstract class AbstractVaadinApplet extends Applet {
     public class JsPollerThread extends Thread {
 
         private static final long POLLER_DELAY = 100;
-        private String jsCommand;
-        private Object[] jsParams;
 
         @Override
         public void run() {
+            livePollerThreads.incrementAndGet();
+            try {
+                poll();
+            } finally {
+                livePollerThreads.decrementAndGet();
+            }
+        }
+
+        private void poll() {
             debug("Poller thread started.");
+            try {
+                transport.ready();
+                reportStartupTimings();
+                flushSharedModel(true);
+            } catch (RuntimeException e) {
+                debug(e);
+            }
             while (runPoller) {
 
                 // Check if a command was received
-                String cmd = null;
-                Object[] params = null;
+                PendingCommand cmd;
                 synchronized (pollerLock) {
-                    if (jsCommand != null) {
-                        cmd = jsCommand;
-                        params = jsParams;
-                        jsCommand = null;
-                        jsParams = null;
-                        debug("Received JavaScript command '" + cmd + "'");
+                    cmd = nextCommand();
+                    if (cmd == null && !syncPending && !hasQueuedMessages()) {
+                        try {
+                            pollerLock.wait(POLLER_DELAY);
+                        } catch (InterruptedException e) {
+                        }
+                        cmd = nextCommand();
                     }
                 }
 
                 if (cmd != null) {
-                    doExecute(cmd, params);
+                    heartbeat.commandReceived();
+                    debug("Received JavaScript command", cmd.command);
+                    int size = cmd.params == null ? 0 : cmd.params.length;
+                    traceBuffer.record(TraceBuffer.Type.COMMAND_RECEIVED,
+                            cmd.command, size, cmd.waitNanos);
+                    long start = System.nanoTime();
+                    if (cmd.trace != null) {
+                        cmd.trace.appletStarted = System.currentTimeMillis();
+                        runningTrace.set(cmd.trace);
+                    }
+                    try {
+                        dispatch(cmd.command, cmd.params);
+                    } catch (RuntimeException e) {
+                        debug(e);
+                    }
+                    if (cmd.trace != null) {
+                        cmd.trace.appletEnded = System.currentTimeMillis();
+                        if (runningTrace.get() != null) {
+                            // Finished without a reply
+                            runningTrace.remove();
+                            try {
+                                returnTrace(cmd.trace);
+                            } catch (RuntimeException e) {
+                                debug(e);
+                            }
+                        }
+                    }
+                    traceBuffer.record(TraceBuffer.Type.COMMAND_EXECUTED,
+                            cmd.command, size, System.nanoTime() - start);
+                    if (lifecycleState == LifecycleState.STOPPING) {
+                        synchronized (pollerLock) {
+                            pollerLock.notifyAll();
+                        }
+                    }
+                }
+
+                // Post messages queued with sendMessage
+                if (hasQueuedMessages()) {
+                    postQueuedMessages();
                 }
 
+                // Queue the changes and acknowledgements of the shared model
                 try {
-                    Thread.sleep(POLLER_DELAY);
-                } catch (InterruptedException e) {
+                    flushSharedModel(false);
+                } catch (RuntimeException e) {
+                    debug(e);
+                }
+
+                // Flush updates downgraded by the rate limit
+                if (syncPending && immediateLimiter.tryAcquire()) {
+                    syncPending = false;
+                    heartbeat.synced();
+                    forceSync();
+                } else if (cmd == null && heartbeat.takeHeartbeat()) {
+                    forceSync();
+                }
+
+                if (syncPending && cmd == null) {
+                    try {
+                        Thread.sleep(POLLER_DELAY);
+                    } catch (InterruptedException e) {
+                    }
                 }
             }
+            postQueuedMessages();
             debug("Poller thread stopped.");
         }
     }
 
+    /**
+     * Synchronize with the server from the poller thread. The JavaScript call
+     * is made asynchronously like in {@link #vaadinSync()}, so that the
+     * poller continues executing commands meanwhile.
+     */
+    private void forceSync() {
+        tracesSent();
+        transport.sync(false);
+    }
+
+    /**
+     * Return the trace of a command to the server. All of the traces not yet
+     * sent with an immediate request are sent as one non-immediate variable,
+     * so that the value queued on the client replaces the earlier ones
+     * without losing traces. The server ignores traces it has already
+     * received.
+     *
+     * @param trace
+     */
+    private void returnTrace(CommandTrace trace) {
+        String traces;
+        synchronized (unsentTraces) {
+            if (unsentTraces.size() >= MAX_UNSENT_TRACES) {
+                unsentTraces.remove(0);
+            }
+            unsentTraces.add(trace.toString());
+            StringBuilder sb = new StringBuilder();
+            for (String t : unsentTraces) {
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                sb.append(t);
+            }
+            traces = sb.toString();
+        }
+        transport.updateVariable(VAR_COMMAND_TRACES, traces, false);
+    }
+
+    /**
+     * Called when an immediate request is made, which also sends the queued
+     * traces.
+     */
+    private void tracesSent() {
+        synchronized (unsentTraces) {
+            unsentTraces.clear();
+        }
+    }
+
+    /**
+     * Take the next command to execute. High priority commands are served
+     * first, but after {@link #MAX_HIGH_PRIORITY_RUN} consecutive high priority
+     * commands a waiting normal priority command is served to avoid
+     * starvation. Must be called while holding the poller lock.
+     *
+     * @return the next command or null if there are no pending commands
+     */
+    private PendingCommand nextCommand() {
+        CommandLane lane;
+        if (!highLane.isEmpty()
+                && (normalLane.isEmpty()
+                        || highPriorityRun < MAX_HIGH_PRIORITY_RUN)) {
+            lane = highLane;
+            highPriorityRun++;
+        } else if (!normalLane.isEmpty()) {
+            lane = normalLane;
+            highPriorityRun = 0;
+        } else {
+            highPriorityRun = 0;
+            return null;
+        }
+        return lane.take();
+    }
+
+    /**
+     * Get the queue wait time statistics of the command priority lanes.
+     *
+     * @return Number of executed commands, average and maximum wait time in
+     *         microseconds of each lane.
+     */
+    public String getQueueWaitStatistics() {
+        synchronized (pollerLock) {
+            return highLane + "; " + normalLane;
+        }
+    }
+
+    /**
+     * Command received from JavaScript waiting to be executed.
+     */
+    private static final class PendingCommand {
+
+        final String command;
+        final Object[] params;
+        final CommandTrace trace;
+        final long queuedAt = System.nanoTime();
+        long waitNanos;
+
+        PendingCommand(String command, Object[] params, CommandTrace trace) {
+            this.command = command;
+            this.params = params;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * FIFO queue of commands of one priority with wait time statistics.
+     * Accessed while holding the poller lock.
+     */
+    private static final class CommandLane {
+
+        private final String name;
+        private final ArrayDeque<PendingCommand> queue = new ArrayDeque<PendingCommand>();
+        private long served;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        CommandLane(String name) {
+            this.name = name;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        void add(PendingCommand cmd) {
+            queue.add(cmd);
+        }
+
+        int clear() {
+            int size = queue.size();
+            queue.clear();
+            return size;
+        }
+
+        PendingCommand take() {
+            PendingCommand cmd = queue.poll();
+            cmd.waitNanos = System.nanoTime() - cmd.queuedAt;
+            served++;
+            totalWaitNanos += cmd.waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, cmd.waitNanos);
+            return cmd;
+        }
+
+        @Override
+        public String toString() {
+            long avgWait = served == 0 ? 0 : totalWaitNanos / served;
+            return name + ": executed=" + served + " queued=" + queue.size()
+                    + " avgWait=" + avgWait / 1000 + "us maxWait="
+                    + maxWaitNanos / 1000 + "us";
+        }
+    }
+
     /**
      * Thread for executing outgoing JavaScript commands. This thread
      * implementation is used to asynchronously invoke JavaScript commands from
@@ -357,6 +1533,7 @@ public abstract class AbstractVaadinApplet extends Applet {
     public class JSCallThread extends Thread {
 
         private String command = null;
+        private Object[] args = null;
         private Object result = null;
         private boolean success = false;
 
@@ -369,43 +1546,99 @@ public abstract class AbstractVaadinApplet extends Applet {
         public JSCallThread(String command) {
             super();
             // SE: We need to remove all line changes to avoid exceptions
-            this.command = command.replaceAll("\n", " ");
+            this.command = command.indexOf('\n') < 0 ? command : command
+                    .replace('\n', ' ');
+        }
+
+        /**
+         * Constructor for calling a JavaScript function.
+         *
+         * @param function
+         *            Name of the function, qualified with the names of the
+         *            objects it is found from, e.g. "vaadin.forceSync".
+         * @param args
+         *            Arguments of the function.
+         */
+        public JSCallThread(String function, Object[] args) {
+            super();
+            command = function;
+            this.args = args == null ? new Object[] {} : args;
+        }
+
+        /**
+         * Start the call. The thread is registered before it is started so
+         * that {@link AbstractVaadinApplet#destroy()} waits for it. Calls
+         * are refused once the applet is stopping, in which case the result
+         * is an {@link IllegalStateException}.
+         */
+        @Override
+        public void start() {
+            synchronized (pollerLock) {
+                if (!acceptsJSCalls()) {
+                    success = false;
+                    result = new IllegalStateException("Applet stopped");
+                    return;
+                }
+                activeJSCalls.add(this);
+                try {
+                    super.start();
+                } catch (RuntimeException e) {
+                    activeJSCalls.remove(this);
+                    throw e;
+                } catch (Error e) {
+                    activeJSCalls.remove(this);
+                    throw e;
+                }
+            }
         }
 
         @Override
         public void run() {
+            liveJSCallThreads.incrementAndGet();
+            try {
+                call();
+            } finally {
+                activeJSCalls.remove(this);
+                liveJSCallThreads.decrementAndGet();
+            }
+        }
 
-            debug("Call JavaScript '" + command + "'");
+        private void call() {
+
+            debug("Call JavaScript", command);
 
             String jscmd = command;
+            long start = System.nanoTime();
 
             try {
-                Method getWindowMethod = null;
-                Method evalMethod = null;
-                Object jsWin = null;
-                Class<?> c = Class.forName("netscape.javascript.JSObject");
-                Method ms[] = c.getMethods();
-                for (int i = 0; i < ms.length; i++) {
-                    if (ms[i].getName().compareTo("getWindow") == 0) {
-                        getWindowMethod = ms[i];
-                    } else if (ms[i].getName().compareTo("eval") == 0) {
-                        evalMethod = ms[i];
-                    }
-
-                }
+                JSObjectMethods js = JSObjectMethods.get();
 
                 // Get window of the applet
-                jsWin = getWindowMethod.invoke(c,
+                Object jsWin = js.getWindow.invoke(null,
                         new Object[] { AbstractVaadinApplet.this });
 
-                // Invoke the command
-                result = evalMethod.invoke(jsWin, new Object[] { jscmd });
+                if (args == null) {
+                    // Invoke the command
+                    result = js.eval.invoke(jsWin, new Object[] { jscmd });
+                } else {
+                    // Resolve the object owning the function and call it
+                    Object target = jsWin;
+                    int from = 0;
+                    int dot;
+                    while ((dot = jscmd.indexOf('.', from)) > 0) {
+                        target = js.getMember.invoke(target,
+                                new Object[] { jscmd.substring(from, dot) });
+                        from = dot + 1;
+                    }
+                    result = js.call.invoke(target, new Object[] {
+                            jscmd.substring(from), args });
+                }
 
                 if (!(result instanceof String) && result != null) {
                     result = result.toString();
                 }
                 success = true;
-                debug("JavaScript result: " + result);
+                debug("JavaScript result", result);
             }
 
             catch (InvocationTargetException e) {
@@ -417,6 +1650,21 @@ public abstract class AbstractVaadinApplet extends Applet {
                 result = e;
                 debug(e);
             }
+            traceBuffer.record(TraceBuffer.Type.JS_CALL, args == null ? null
+                    : jscmd, payloadSize(), System.nanoTime() - start);
+        }
+
+        private int payloadSize() {
+            if (args == null) {
+                return command.length();
+            }
+            int size = 0;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof String) {
+                    size += ((String) args[i]).length();
+                }
+            }
+            return size;
         }
 
         /**
@@ -461,6 +1709,36 @@ public abstract class AbstractVaadinApplet extends Applet {
 
     }
 
+    /**
+     * Reflected methods of netscape.javascript.JSObject. These are resolved
+     * once and shared by all of the calls made from the applets of the JVM.
+     */
+    private static final class JSObjectMethods {
+
+        private static JSObjectMethods instance;
+
+        final Method getWindow;
+        final Method eval;
+        final Method call;
+        final Method getMember;
+
+        private JSObjectMethods(Class<?> c) throws NoSuchMethodException {
+            getWindow = c.getMethod("getWindow", Applet.class);
+            eval = c.getMethod("eval", String.class);
+            call = c.getMethod("call", String.class, Object[].class);
+            getMember = c.getMethod("getMember", String.class);
+        }
+
+        static synchronized JSObjectMethods get()
+                throws ClassNotFoundException, NoSuchMethodException {
+            if (instance == null) {
+                instance = new JSObjectMethods(
+                        Class.forName("netscape.javascript.JSObject"));
+            }
+            return instance;
+        }
+    }
+
     public void setDebug(boolean debug) {
         boolean change = this.debug != debug;
         this.debug = debug;
@@ -499,28 +1777,127 @@ public abstract class AbstractVaadinApplet extends Applet {
      * @param params
      */
     public void execute(String command, Object[] params) {
-        if (pollerThread == null) {
-            debug("Poller thread stopped. Cannot execute: '" + command + "'");
-            return;
+        execute(command, params, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Execute method that should be invoked from a JavaScript. This invokes a
+     * second thread (with applet's permission) to execute the command.
+     *
+     * Commands with {@link #PRIORITY_HIGH} are executed before any waiting
+     * commands with {@link #PRIORITY_NORMAL}.
+     *
+     * @param command
+     * @param params
+     * @param priority
+     */
+    public void execute(String command, Object[] params, int priority) {
+        enqueue(command, params, priority, null);
+    }
+
+    /**
+     * Execute method invoked from JavaScript for commands traced with
+     * {@link AppletIntegration#setCommandTracing(boolean)}.
+     *
+     * @param command
+     * @param params
+     * @param priority
+     * @param trace
+     *            Trace id and client timestamps in format
+     *            "id:clientReceived:clientDelivered".
+     */
+    public void executeTraced(String command, Object[] params, int priority,
+            String trace) {
+        CommandTrace t = trace == null ? null : CommandTrace.received(trace);
+        if (t != null) {
+            t.appletReceived = System.currentTimeMillis();
         }
+        enqueue(command, params, priority, t);
+    }
+
+    private void enqueue(String command, Object[] params, int priority,
+            CommandTrace trace) {
         synchronized (pollerLock) {
-            pollerThread.jsCommand = command;
-            pollerThread.jsParams = params;
+            if (pollerThread == null
+                    || lifecycleState != LifecycleState.RUNNING) {
+                debug("Poller thread stopped. Cannot execute", command);
+                cancelledCommands++;
+                return;
+            }
+            CommandLane lane = priority >= PRIORITY_HIGH ? highLane
+                    : normalLane;
+            lane.add(new PendingCommand(command, params, trace));
+            pollerLock.notifyAll();
+        }
+        // Download the feature archive while the earlier commands execute
+        String feature = commandDispatcher == null ? null : commandDispatcher
+                .getFeature(command);
+        if (feature != null) {
+            try {
+                featureLoader.prefetch(feature);
+            } catch (IllegalArgumentException e) {
+                debug(e);
+            }
+        }
+    }
+
+    /**
+     * Execute a command with its {@link CommandHandler} method, or with
+     * {@link #doExecute(String, Object[])} if there is no handler method for
+     * it. Numeric arrays packed by the server are decoded first. If the
+     * handler needs a feature, this waits until its archive has been loaded.
+     *
+     * @param command
+     * @param params
+     */
+    private void dispatch(String command, Object[] params) {
+        params = PayloadCodec.unpackAll(params);
+        if (CMD_SHARED_MODEL.equals(command) && params != null
+                && params.length == 1) {
+            if (getSharedModel().receive(String.valueOf(params[0]))) {
+                flushSharedModel(true);
+            }
+            return;
+        }
+        String feature = commandDispatcher == null ? null : commandDispatcher
+                .getFeature(command);
+        if (feature != null) {
+            try {
+                featureLoader.getClassLoader(feature);
+            } catch (IOException e) {
+                debug("Feature " + feature + " not available. Cannot execute",
+                        command);
+                debug(e);
+                vaadinUpdateVariable(VAR_FEATURE_FAILURE, new String[] {
+                        feature, command, String.valueOf(e) }, true);
+                return;
+            }
+        }
+        if (commandDispatcher == null
+                || !commandDispatcher.dispatch(command, params)) {
+            doExecute(command, params);
         }
     }
 
     /**
      * Function to to actually execute a specific command.
      *
-     * The inheriting applet must implement this to execute commands sent from
-     * JavaScript.
+     * The inheriting applet can implement this to execute commands sent from
+     * JavaScript, or annotate public handler methods with
+     * {@link CommandHandler}. Numeric arrays sent with
+     * {@link AppletIntegration#executeCommandWithInts(String, int[])} and the
+     * related methods are received as int[], long[] or double[] parameters.
+     * This is called only for the commands that have no handler method.
      *
-     * Implementation may be empty if no JavaScript initiated commands are
-     * supported.
+     * The default implementation ignores the command and writes a debug
+     * message. Applets that use only handler methods do not need to override
+     * it.
      *
      * @param command
      */
-    protected abstract void doExecute(String command, Object[] params);
+    protected void doExecute(String command, Object[] params) {
+        debug("No handler for command", command);
+    }
 
     /*
      * --- Following methods are copied from
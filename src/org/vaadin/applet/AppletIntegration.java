@@ -2,31 +2,234 @@ package org.vaadin.applet;
 
 import com.vaadin.server.PaintException;
 import com.vaadin.server.PaintTarget;
+import com.vaadin.server.StreamResource.StreamSource;
 import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.ApplicationConstants;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.LegacyComponent;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import org.vaadin.applet.client.ui.VAppletIntegration;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Server side component for the VAppletIntegration widget.
  */
 public class AppletIntegration extends AbstractComponent implements LegacyComponent {
 
-    private static final long serialVersionUID = 6061722679712017720L;
+    private static final long serialVersionUID = -3407425627389722127L;
 
-    private String appletClass = null;
-    private String codebase;
-    private String name;
-    private List<String> appletArchives = null;
-    private Map<String, String> appletParams = null;
+    /**
+     * Default time in milliseconds a published stream remains available
+     * without being accessed.
+     */
+    public static final long DEFAULT_STREAM_TIMEOUT = 60000;
+
+    /** Traced command stage: queued until painted on the server. */
+    public static final String TRACE_SERVER = "server";
+    /** Traced command stage: received until passed to the applet. */
+    public static final String TRACE_CLIENT = "client";
+    /** Traced command stage: the call from JavaScript to the applet. */
+    public static final String TRACE_HANDOFF = "handoff";
+    /** Traced command stage: waiting for the applet poller thread. */
+    public static final String TRACE_POLLER = "poller";
+    /** Traced command stage: executed until replied or finished. */
+    public static final String TRACE_EXECUTE = "execute";
+    /** Traced command stage: round trip excluding the time on the client. */
+    public static final String TRACE_TRANSFER = "transfer";
+    /** Traced command stage: queued until the reply was received. */
+    public static final String TRACE_TOTAL = "total";
+
+    /**
+     * Maximum number of commands waiting for the next repaint, see
+     * {@link #executeCommand(String, String[], CommandPriority)}.
+     */
+    public static final int MAX_PENDING_COMMANDS = 10000;
+
+    /** Maximum number of painted commands waiting for their trace. */
+    private static final int MAX_PENDING_TRACES = 256;
+
+    /*
+     * All state is transient and written in a compact form by writeObject.
+     * Fields added here must be added to writeObject and readObject as well.
+     */
+    private transient String appletClass = null;
+    private transient String codebase;
+    private transient String name;
+    private transient List<String> appletArchives = null;
+    private transient Map<String, String> featureArchives = null;
+    private transient AppletParameters appletParamsTemplate = AppletParameters.EMPTY;
+    private transient Map<String, String> appletParams = null;
+    private transient Map<String, String> appletParamsView = null;
+
+    private transient List<QueuedCommand> pendingCommands = null;
+
+    private transient int compressionThreshold = 0;
+
+    private transient int immediateUpdateRate = 0;
+    private transient int immediateUpdateBurst = 0;
+
+    private transient int heartbeatMin = 0;
+    private transient int heartbeatMax = 0;
+    private transient int heartbeatHint = 0;
+
+    private transient boolean lazyInstantiation = false;
+    private transient boolean instantiationRequested = false;
+    private transient boolean archivePrefetch = false;
+
+    private transient Map<String, Long> startupTimings = null;
+    private transient Map<String, TimingStatistics> clientTimings = null;
+
+    private transient boolean commandTracing = false;
+    private transient int traceSequence = 0;
+    private transient LinkedHashMap<String, long[]> pendingTraces = null;
+    private transient Map<String, LatencyDistribution> traceStatistics = null;
+
+    private transient SharedModel sharedModel = null;
+
+    private transient Map<String, List<VariableBinding>> variableBindings = null;
+    private transient Map<String, List<VariablesListener>> variablesListeners = null;
+
+    private transient List<MessageListener> messageListeners = null;
+    private transient DetachedChannel detachedChannel = null;
+    private transient String rpcToken = null;
+
+    /**
+     * Priority of a command executed in the applet.
+     *
+     * @see AppletIntegration#executeCommand(String, String[], CommandPriority)
+     */
+    public enum CommandPriority {
+        /** Bulk commands executed in the order they were sent. */
+        NORMAL(AbstractVaadinApplet.PRIORITY_NORMAL),
+        /** Urgent commands executed ahead of waiting normal commands. */
+        HIGH(AbstractVaadinApplet.PRIORITY_HIGH);
+
+        private final int value;
+
+        private CommandPriority(int value) {
+            this.value = value;
+        }
+
+        int getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Marker interface of the typed listeners that receive a single variable
+     * sent by the applet.
+     *
+     * @see AppletIntegration#removeVariableListener(String, VariableListener)
+     */
+    public interface VariableListener extends Serializable {
+    }
+
+    /**
+     * Listener for boolean variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, boolean, boolean)}
+     * .
+     */
+    public interface BooleanVariableListener extends VariableListener {
+        void variableChanged(String variableName, boolean value);
+    }
+
+    /**
+     * Listener for int variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, int, boolean)}.
+     */
+    public interface IntVariableListener extends VariableListener {
+        void variableChanged(String variableName, int value);
+    }
+
+    /**
+     * Listener for double variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, double, boolean)}
+     * .
+     */
+    public interface DoubleVariableListener extends VariableListener {
+        void variableChanged(String variableName, double value);
+    }
+
+    /**
+     * Listener for float variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, float, boolean)}
+     * .
+     */
+    public interface FloatVariableListener extends VariableListener {
+        void variableChanged(String variableName, float value);
+    }
+
+    /**
+     * Listener for long variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, long, boolean)}.
+     */
+    public interface LongVariableListener extends VariableListener {
+        void variableChanged(String variableName, long value);
+    }
+
+    /**
+     * Listener for string variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, String, boolean)}
+     * .
+     */
+    public interface StringVariableListener extends VariableListener {
+        void variableChanged(String variableName, String value);
+    }
+
+    /**
+     * Listener for string array variables sent with
+     * {@link AbstractVaadinApplet#vaadinUpdateVariable(String, String[], boolean)}
+     * .
+     */
+    public interface StringArrayVariableListener extends VariableListener {
+        void variableChanged(String variableName, String[] value);
+    }
+
+    /**
+     * Listener that receives all of its variables that changed in a single
+     * server round trip with one call. Useful for applets that send a group of
+     * non-immediate variables followed by an immediate one.
+     */
+    public interface VariablesListener extends Serializable {
+        /**
+         * @param variables
+         *            The changed variables this listener is registered for,
+         *            in the order they were received.
+         */
+        void variablesChanged(Map<String, Object> variables);
+    }
 
-    private String command = null;
-    private String[] commandParams = null;
+    /**
+     * Listener for the binary messages sent by the applet with
+     * {@link AbstractVaadinApplet#sendMessage(byte[])}. Called while holding
+     * the session lock.
+     */
+    public interface MessageListener extends Serializable {
+        /**
+         * @param source
+         *            The component the messages were sent to.
+         * @param messages
+         *            The messages of one batch, in the order they were sent.
+         */
+        void messagesReceived(AppletIntegration source, List<byte[]> messages);
+    }
 
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
@@ -62,21 +265,79 @@ public class AppletIntegration extends AbstractComponent implements LegacyCompon
         }
 
         // Applet parameters
-        if (appletParams != null) {
+        Map<String, String> params = getEffectiveAppletParams();
+        if (!params.isEmpty()) {
             target.addAttribute(VAppletIntegration.ATTR_APPLET_PARAM_NAMES,
-                    appletParams);
+                    params);
+        }
+
+        // Lazy instantiation
+        if (lazyInstantiation) {
+            target.addAttribute(VAppletIntegration.ATTR_LAZY, true);
+            if (instantiationRequested) {
+                target.addAttribute(VAppletIntegration.ATTR_INSTANTIATE, true);
+            }
+            if (archivePrefetch) {
+                target.addAttribute(VAppletIntegration.ATTR_PREFETCH, true);
+            }
+        }
+
+        // Rate limit of immediate updates
+        target.addAttribute(VAppletIntegration.ATTR_IMMEDIATE_RATE,
+                immediateUpdateRate);
+        target.addAttribute(VAppletIntegration.ATTR_IMMEDIATE_BURST,
+                immediateUpdateBurst);
+
+        // Direct messaging from the applet
+        if (rpcToken != null) {
+            target.addAttribute(VAppletIntegration.ATTR_RPC_URL,
+                    ApplicationConstants.APP_PROTOCOL_PREFIX
+                            + AppletRpcHandler.PATH + rpcToken);
+        }
+
+        // Adaptive heartbeat
+        target.addAttribute(VAppletIntegration.ATTR_HEARTBEAT_MIN, heartbeatMin);
+        target.addAttribute(VAppletIntegration.ATTR_HEARTBEAT_MAX, heartbeatMax);
+        if (heartbeatHint > 0) {
+            target.addAttribute(VAppletIntegration.ATTR_HEARTBEAT_HINT,
+                    heartbeatHint);
+            heartbeatHint = 0;
         }
+        UI ui = getUI();
+        target.addAttribute(VAppletIntegration.ATTR_PUSH, ui != null
+                && ui.getPushConfiguration().getPushMode().isEnabled());
 
-        // Commands
-        if (command != null) {
-            target.addAttribute(VAppletIntegration.ATTR_CMD, command);
-            command = null;
+        // Commands, high priority first
+        flushSharedModel();
+        if (pendingCommands != null) {
+            paintCommands(target, CommandPriority.HIGH);
+            paintCommands(target, CommandPriority.NORMAL);
+            pendingCommands = null;
         }
+    }
 
-        if (commandParams != null) {
-            target.addAttribute(VAppletIntegration.ATTR_CMD_PARAMS,
-                    commandParams);
-            commandParams = null;
+    private void paintCommands(PaintTarget target, CommandPriority priority)
+            throws PaintException {
+        for (QueuedCommand cmd : pendingCommands) {
+            if (cmd.priority != priority) {
+                continue;
+            }
+            target.startTag(VAppletIntegration.TAG_CMD);
+            target.addAttribute(VAppletIntegration.ATTR_CMD, cmd.command);
+            if (cmd.params != null) {
+                target.addAttribute(VAppletIntegration.ATTR_CMD_PARAMS,
+                        cmd.params);
+            }
+            if (priority != CommandPriority.NORMAL) {
+                target.addAttribute(VAppletIntegration.ATTR_CMD_PRIORITY,
+                        priority.getValue());
+            }
+            if (cmd.traceId != null) {
+                target.addAttribute(VAppletIntegration.ATTR_CMD_TRACE,
+                        cmd.traceId);
+                addPendingTrace(cmd);
+            }
+            target.endTag(VAppletIntegration.TAG_CMD);
         }
     }
 
@@ -98,9 +359,7 @@ public class AppletIntegration extends AbstractComponent implements LegacyCompon
      * @param command
      */
     public void executeCommand(String command) {
-        this.command = command;
-        commandParams = null;
-        requestRepaint();
+        executeCommand(command, null, CommandPriority.NORMAL);
     }
 
     /**
@@ -110,11 +369,474 @@ public class AppletIntegration extends AbstractComponent implements LegacyCompon
      * @param params
      */
     public void executeCommand(String command, String[] params) {
-        this.command = command;
-        commandParams = params;
+        executeCommand(command, params, CommandPriority.NORMAL);
+    }
+
+    /**
+     * Execute command with an array of integers as the parameter in applet.
+     *
+     * The values are sent in a packed binary form instead of decimal strings
+     * and the applet receives them as an int[] parameter.
+     *
+     * @param command
+     * @param values
+     */
+    public void executeCommandWithInts(String command, int[] values) {
+        executeCommand(command, new String[] { PayloadCodec.pack(values) },
+                CommandPriority.NORMAL);
+    }
+
+    /**
+     * Execute command with an array of longs as the parameter in applet.
+     *
+     * The values are sent in a packed binary form instead of decimal strings
+     * and the applet receives them as a long[] parameter.
+     *
+     * @param command
+     * @param values
+     */
+    public void executeCommandWithLongs(String command, long[] values) {
+        executeCommand(command, new String[] { PayloadCodec.pack(values) },
+                CommandPriority.NORMAL);
+    }
+
+    /**
+     * Execute command with an array of doubles as the parameter in applet.
+     *
+     * The values are sent in a packed binary form instead of decimal strings
+     * and the applet receives them as a double[] parameter. The values are
+     * transferred exactly, including NaN and infinities.
+     *
+     * @param command
+     * @param values
+     */
+    public void executeCommandWithDoubles(String command, double[] values) {
+        executeCommand(command, new String[] { PayloadCodec.pack(values) },
+                CommandPriority.NORMAL);
+    }
+
+    /**
+     * Execute command with parameter and priority in applet.
+     *
+     * Commands are queued until the next repaint. High priority commands are
+     * executed by the applet ahead of any waiting normal priority commands.
+     *
+     * At most {@value #MAX_PENDING_COMMANDS} commands are queued. When the
+     * limit is reached, for example because the client does not request
+     * repaints, the oldest normal priority command is dropped.
+     *
+     * @param command
+     * @param params
+     * @param priority
+     * @throws IllegalStateException
+     *             if the limit is reached and all the queued commands have
+     *             high priority
+     */
+    public void executeCommand(String command, String[] params,
+            CommandPriority priority) {
+        flushSharedModel();
+        if (detachedChannel != null
+                && offerDetached(DetachedProtocol.command(command, params,
+                        (priority == null ? CommandPriority.NORMAL : priority)
+                                .getValue()))) {
+            return;
+        }
+        queueCommand(new QueuedCommand(command, params, priority));
+    }
+
+    /**
+     * Execute a command encoded with {@link BroadcastCommand} in applet. The
+     * encoded parameters are shared with the other components the command is
+     * sent to.
+     *
+     * @param command
+     * @see #broadcast(BroadcastCommand, Iterable)
+     */
+    public void executeCommand(BroadcastCommand command) {
+        flushSharedModel();
+        if (detachedChannel != null
+                && offerDetached(command.getDetachedFrame())) {
+            return;
+        }
+        queueCommand(new QueuedCommand(command.getCommand(),
+                command.getEncodedParams(), command.getPriority()));
+    }
+
+    /**
+     * Send a command to many components, typically in different sessions.
+     *
+     * The components are grouped by UI and the command is queued for each UI
+     * with {@link UI#access(Runnable)}, so the caller does not need to hold
+     * any session lock. The command is encoded only once when it is created
+     * and UIs with automatic push receive it right away. Components that are
+     * not attached are skipped.
+     *
+     * @param command
+     * @param targets
+     * @return the access tasks, one for each UI
+     */
+    public static List<Future<Void>> broadcast(final BroadcastCommand command,
+            Iterable<? extends AppletIntegration> targets) {
+        Map<UI, List<AppletIntegration>> byUI = new IdentityHashMap<UI, List<AppletIntegration>>();
+        for (AppletIntegration target : targets) {
+            UI ui = target.getUI();
+            if (ui == null) {
+                continue;
+            }
+            List<AppletIntegration> components = byUI.get(ui);
+            if (components == null) {
+                components = new ArrayList<AppletIntegration>(1);
+                byUI.put(ui, components);
+            }
+            components.add(target);
+        }
+
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(byUI.size());
+        for (Map.Entry<UI, List<AppletIntegration>> e : byUI.entrySet()) {
+            final UI ui = e.getKey();
+            final List<AppletIntegration> components = e.getValue();
+            try {
+                tasks.add(ui.access(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (AppletIntegration component : components) {
+                            // Skip components detached meanwhile
+                            if (component.getUI() == ui) {
+                                component.executeCommand(command);
+                            }
+                        }
+                    }
+                }));
+            } catch (UIDetachedException ex) {
+                // Closed after the components were grouped
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Get the key/value model shared with the applet. Changes made to the
+     * model are sent to the applet with the next repaint, ahead of the
+     * commands of either priority executed after them. Only the changes the
+     * applet has not acknowledged yet are sent.
+     *
+     * The model must be changed while holding the session lock.
+     *
+     * @return
+     * @see AbstractVaadinApplet#getSharedModel()
+     */
+    public SharedModel getSharedModel() {
+        if (sharedModel == null) {
+            sharedModel = new SharedModel(true);
+            sharedModel.addListener(new SharedModelRepaint(this));
+            requestRepaint();
+        }
+        return sharedModel;
+    }
+
+    /**
+     * Queue the pending message of the shared model as a command. This is
+     * done before queueing other commands so that the applet applies the
+     * changes made to the model before executing the command. The message is
+     * sent with high priority, as otherwise the high priority commands queued
+     * after it would be executed before the changes are applied.
+     */
+    private void flushSharedModel() {
+        String message = sharedModel == null ? null : sharedModel
+                .takeMessage();
+        if (message == null) {
+            return;
+        }
+        if (compressionThreshold > 0
+                && message.length() >= compressionThreshold) {
+            message = PayloadCodec.deflate(message);
+        }
+        String[] params = new String[] { message };
+        if (detachedChannel != null
+                && offerDetached(DetachedProtocol.command(
+                        AbstractVaadinApplet.CMD_SHARED_MODEL, params,
+                        CommandPriority.HIGH.getValue()))) {
+            return;
+        }
+        if (pendingCommands == null) {
+            pendingCommands = new ArrayList<QueuedCommand>(2);
+        }
+        pendingCommands.add(new QueuedCommand(
+                AbstractVaadinApplet.CMD_SHARED_MODEL, params,
+                CommandPriority.HIGH));
+    }
+
+    private void queueCommand(QueuedCommand cmd) {
+        if (pendingCommands == null) {
+            pendingCommands = new ArrayList<QueuedCommand>(2);
+        }
+        if (pendingCommands.size() >= MAX_PENDING_COMMANDS) {
+            dropPendingCommand();
+        }
+        if (commandTracing) {
+            cmd.traceId = String.valueOf(++traceSequence);
+            cmd.queuedAt = System.currentTimeMillis();
+        }
+        pendingCommands.add(cmd);
+        requestRepaint();
+    }
+
+    /**
+     * Drop the oldest normal priority command to make room for a new one.
+     */
+    private void dropPendingCommand() {
+        for (Iterator<QueuedCommand> it = pendingCommands.iterator(); it
+                .hasNext();) {
+            QueuedCommand cmd = it.next();
+            if (cmd.priority == CommandPriority.NORMAL) {
+                it.remove();
+                Logger.getLogger(AppletIntegration.class.getName()).log(
+                        Level.WARNING,
+                        "Too many pending commands, dropped command {0}",
+                        cmd.command);
+                return;
+            }
+        }
+        throw new IllegalStateException("Too many pending commands");
+    }
+
+    /**
+     * Remember when a traced command was painted until its trace is returned
+     * by the applet. The oldest traces are dropped if the applet does not
+     * return them.
+     *
+     * @param cmd
+     */
+    private void addPendingTrace(QueuedCommand cmd) {
+        if (pendingTraces == null) {
+            pendingTraces = new LinkedHashMap<String, long[]>();
+        }
+        if (pendingTraces.size() >= MAX_PENDING_TRACES) {
+            Iterator<String> it = pendingTraces.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        pendingTraces.put(cmd.traceId, new long[] { cmd.queuedAt,
+                System.currentTimeMillis() });
+    }
+
+    /**
+     * Add the stages of the traces returned by the applet to the statistics.
+     * Traces may be returned more than once, only the first one is counted.
+     *
+     * @param traces
+     *            Traces separated by ';'.
+     */
+    private void addCommandTraces(String traces) {
+        long now = System.currentTimeMillis();
+        for (String t : traces.split(";")) {
+            CommandTrace trace = CommandTrace.parse(t);
+            long[] server = trace == null || pendingTraces == null ? null
+                    : pendingTraces.remove(trace.id);
+            if (server == null) {
+                continue;
+            }
+            long queuedAt = server[0];
+            long paintedAt = server[1];
+            addStage(TRACE_SERVER, paintedAt - queuedAt);
+            addStage(TRACE_CLIENT, trace.clientDelivered
+                    - trace.clientReceived);
+            addStage(TRACE_HANDOFF, trace.appletReceived
+                    - trace.clientDelivered);
+            addStage(TRACE_POLLER, trace.appletStarted - trace.appletReceived);
+            if (trace.replied != 0) {
+                addStage(TRACE_EXECUTE, trace.replied - trace.appletStarted);
+                // The time not spent on the client, measured without
+                // comparing the client and server clocks
+                addStage(TRACE_TRANSFER, now - paintedAt
+                        - (trace.replied - trace.clientReceived));
+                addStage(TRACE_TOTAL, now - queuedAt);
+            } else {
+                addStage(TRACE_EXECUTE, trace.appletEnded - trace.appletStarted);
+            }
+        }
+    }
+
+    private void addStage(String stage, long millis) {
+        if (traceStatistics == null) {
+            traceStatistics = new LinkedHashMap<String, LatencyDistribution>();
+        }
+        LatencyDistribution stats = traceStatistics.get(stage);
+        if (stats == null) {
+            stats = new LatencyDistribution();
+            traceStatistics.put(stage, stats);
+        }
+        stats.record(millis);
+    }
+
+    /**
+     * Defer creating the applet in the browser until the component is
+     * attached and visible on the screen, or until {@link #instantiate()} is
+     * called. Commands executed in the meantime are delivered once the applet
+     * has been created.
+     *
+     * This should be set before the component is first painted.
+     *
+     * @param lazy
+     */
+    public void setLazyInstantiation(boolean lazy) {
+        lazyInstantiation = lazy;
+        requestRepaint();
+    }
+
+    /**
+     * Check if creating the applet is deferred until it becomes visible.
+     *
+     * @see #setLazyInstantiation(boolean)
+     * @return
+     */
+    public boolean isLazyInstantiation() {
+        return lazyInstantiation;
+    }
+
+    /**
+     * Create a lazily instantiated applet without waiting for it to become
+     * visible.
+     *
+     * @see #setLazyInstantiation(boolean)
+     */
+    public void instantiate() {
+        instantiationRequested = true;
         requestRepaint();
     }
 
+    /**
+     * Start loading the applet archives ahead of time when the applet itself
+     * is instantiated lazily.
+     *
+     * The widget starts a hidden {@link WarmupApplet} with the same codebase
+     * and archives as soon as the component is painted. The plugin then starts
+     * the JVM and downloads the archives while the actual applet is deferred.
+     * One warm-up applet is shared by all lazy applets of the page that use
+     * the same archives. {@link WarmupApplet} must be included in the applet
+     * archives.
+     *
+     * @see #setLazyInstantiation(boolean)
+     * @param prefetch
+     */
+    public void setArchivePrefetch(boolean prefetch) {
+        archivePrefetch = prefetch;
+        requestRepaint();
+    }
+
+    /**
+     * Check if the applet archives are loaded ahead of a lazy applet.
+     *
+     * @see #setArchivePrefetch(boolean)
+     * @return
+     */
+    public boolean isArchivePrefetch() {
+        return archivePrefetch;
+    }
+
+    /**
+     * Get the start-up phase durations reported by the applet.
+     *
+     * The durations are in milliseconds from the moment the applet markup was
+     * inserted: "jvmStart" until the JVM was started (0 if it was already
+     * running), "appletLoad" until the applet was constructed, "init" for
+     * running {@link AbstractVaadinApplet#init()} and "total" until the
+     * applet was initialized.
+     *
+     * @return the timings or an empty map if they have not been received yet
+     */
+    public Map<String, Long> getStartupTimings() {
+        if (startupTimings == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(startupTimings);
+    }
+
+    /**
+     * Enable or disable tracing of the commands sent to the applet.
+     *
+     * When enabled, each command is tagged with a trace id and timestamps are
+     * recorded when it is queued and painted on the server, received and
+     * passed to the applet by the client-side widget, and received, started
+     * and finished by the applet. If the applet sends a variable while
+     * executing the command, that is taken as the reply and the trace is
+     * returned to the server with it. Otherwise the trace is returned with
+     * the next request after the command has finished.
+     *
+     * The stages are aggregated in {@link #getCommandTraceStatistics()}.
+     * Tracing adds a small overhead to each command and is disabled by
+     * default.
+     *
+     * @param tracing
+     */
+    public void setCommandTracing(boolean tracing) {
+        commandTracing = tracing;
+    }
+
+    /**
+     * Check if commands are traced.
+     *
+     * @return
+     * @see #setCommandTracing(boolean)
+     */
+    public boolean isCommandTracing() {
+        return commandTracing;
+    }
+
+    /**
+     * Get the latency distributions of the stages of the traced commands.
+     *
+     * The stages are:
+     * <ul>
+     * <li>{@value #TRACE_SERVER} - from queuing the command until it was
+     * painted</li>
+     * <li>{@value #TRACE_CLIENT} - from receiving the command on the client
+     * until passing it to the applet, including the time a lazy applet was
+     * not yet inserted</li>
+     * <li>{@value #TRACE_HANDOFF} - the call from JavaScript to the applet
+     * </li>
+     * <li>{@value #TRACE_POLLER} - waiting for the poller thread of the
+     * applet</li>
+     * <li>{@value #TRACE_EXECUTE} - executing the command until the reply was
+     * sent or, without a reply, until the command finished</li>
+     * <li>{@value #TRACE_TRANSFER} - the round trip between painting the
+     * command and receiving the reply, excluding the time spent on the
+     * client. Covers the response and request transfers and the processing
+     * of the response before the widget received the command.</li>
+     * <li>{@value #TRACE_TOTAL} - from queuing the command until receiving
+     * the reply</li>
+     * </ul>
+     * The last two are only recorded for commands that sent a reply.
+     *
+     * @return the statistics or an empty map if no traces have been received
+     */
+    public Map<String, LatencyDistribution> getCommandTraceStatistics() {
+        if (traceStatistics == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(traceStatistics);
+    }
+
+    /**
+     * Get the timings measured by the client-side widget, aggregated over the
+     * lifetime of this component. The widget reports them at most once a
+     * minute with the next request, so the latest samples may be missing.
+     *
+     * The timings are {@link VAppletIntegration#TIMING_UIDL} for processing
+     * an update from the server, {@link VAppletIntegration#TIMING_READY} from
+     * inserting the applet markup until the applet was initialized and
+     * {@link VAppletIntegration#TIMING_COMMAND} from receiving a command
+     * until it was passed to the applet.
+     *
+     * @return the timings or an empty map if none have been received yet
+     */
+    public Map<String, TimingStatistics> getClientTimings() {
+        if (clientTimings == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(clientTimings);
+    }
+
     /**
      * Set the fully qualified class name of the applet.
      *
@@ -160,44 +882,193 @@ public class AppletIntegration extends AbstractComponent implements LegacyCompon
     }
 
     /**
-     * Get an applet paramter. These are name value pairs passed to the applet
-     * element as PARAM& elements.
+     * Set the feature archives of the applet. These are loaded on demand by
+     * the applet instead of before it is started, the first time a command
+     * needing the feature is received. The applet archives should contain
+     * only the classes needed at start-up.
+     *
+     * Archive URLs are relative to the codebase of the applet like the applet
+     * archives.
      *
      * This method is protected so that overriding classes can publish it if
      * needed.
      *
+     * @param featureArchives
+     *            Feature names mapped to archives, or null to remove the
+     *            features.
+     * @see CommandHandler#feature()
+     * @see FeatureLoader
      */
-    protected String getAppletParams(String paramName) {
-        if (appletParams == null) {
-            return null;
+    protected void setFeatureArchives(Map<String, String> featureArchives) {
+        if (featureArchives == null || featureArchives.isEmpty()) {
+            this.featureArchives = null;
+        } else {
+            for (Map.Entry<String, String> e : featureArchives.entrySet()) {
+                if (e.getKey().isEmpty() || e.getKey().indexOf('=') >= 0
+                        || e.getKey().indexOf(',') >= 0
+                        || e.getValue().indexOf(',') >= 0) {
+                    throw new IllegalArgumentException(
+                            "Invalid feature archive " + e);
+                }
+            }
+            this.featureArchives = new LinkedHashMap<String, String>(
+                    featureArchives);
         }
-        return appletParams.get(paramName);
+        requestRepaint();
     }
 
     /**
-     * Set an applet paramter. These are name value pairs passed to the applet
-     * element as PARAM elements and should therefore be applied before first
-     * the applet integration.
+     * Get the feature archives of the applet.
      *
      * This method is protected so that overriding classes can publish it if
      * needed.
      *
+     * @return feature names mapped to archives, or null if there are no
+     *         features
      */
-    protected void setAppletParams(String paramName, String paramValue) {
-        if (appletParams == null) {
-            appletParams = new HashMap<String, String>();
-        }
-        appletParams.put(paramName, paramValue);
+    protected Map<String, String> getFeatureArchives() {
+        return featureArchives == null ? null : Collections
+                .unmodifiableMap(featureArchives);
     }
 
     /**
-     * Get map (name-value pairs) of parameter passed to the applet.
+     * Called when the applet could not load the archive of a feature and
+     * dropped a command needing it. The archive is downloaded again the next
+     * time a command needs the feature. The default implementation logs a
+     * warning.
      *
-     * This method is protected so that overriding classes can publish it if
-     * needed.
+     * @param feature
+     * @param command
+     *            The command that was not executed.
+     * @param error
+     *            Description of the error reported by the applet.
+     * @see #setFeatureArchives(Map)
      */
-    protected Map<String, String> getAppletParams() {
-        return Collections.unmodifiableMap(appletParams);
+    protected void featureLoadFailed(String feature, String command,
+            String error) {
+        Logger.getLogger(AppletIntegration.class.getName()).log(
+                Level.WARNING,
+                "Applet could not load feature {0} for command {1}: {2}",
+                new Object[] { feature, command, error });
+    }
+
+    /**
+     * Get an applet paramter. These are name value pairs passed to the applet
+     * element as PARAM& elements.
+     *
+     * This method is protected so that overriding classes can publish it if
+     * needed.
+     *
+     */
+    protected String getAppletParams(String paramName) {
+        if (appletParams != null && appletParams.containsKey(paramName)) {
+            return appletParams.get(paramName);
+        }
+        return appletParamsTemplate.get(paramName);
+    }
+
+    /**
+     * Set an applet paramter. These are name value pairs passed to the applet
+     * element as PARAM elements and should therefore be applied before first
+     * the applet integration.
+     *
+     * This method is protected so that overriding classes can publish it if
+     * needed.
+     *
+     */
+    protected void setAppletParams(String paramName, String paramValue) {
+        if (appletParams == null) {
+            appletParams = new HashMap<String, String>(4);
+        }
+        appletParams.put(paramName, paramValue);
+        appletParamsView = null;
+    }
+
+    /**
+     * Set shared parameters of the applet. The parameters set with
+     * {@link #setAppletParams(String, String)} override the ones in the
+     * template. Setting a parameter to null hides the template value.
+     *
+     * Templates are immutable so the same instance can be used by any number
+     * of components without copying it.
+     *
+     * This method is protected so that overriding classes can publish it if
+     * needed.
+     *
+     * @param template
+     *            the shared parameters or null to remove the template
+     */
+    protected void setAppletParamsTemplate(AppletParameters template) {
+        appletParamsTemplate = template == null ? AppletParameters.EMPTY
+                : template;
+        appletParamsView = null;
+    }
+
+    /**
+     * Get the shared parameters of the applet.
+     *
+     * This method is protected so that overriding classes can publish it if
+     * needed.
+     *
+     * @see #setAppletParamsTemplate(AppletParameters)
+     * @return the template, never null
+     */
+    protected AppletParameters getAppletParamsTemplate() {
+        return appletParamsTemplate;
+    }
+
+    /**
+     * Get map (name-value pairs) of parameter passed to the applet. The map
+     * contains the template parameters and the parameters of this component.
+     *
+     * This method is protected so that overriding classes can publish it if
+     * needed.
+     */
+    protected Map<String, String> getAppletParams() {
+        if (appletParams == null) {
+            // Shared template map, no copy needed
+            return appletParamsTemplate.asMap();
+        }
+        if (appletParamsView == null) {
+            Map<String, String> merged = new HashMap<String, String>(
+                    appletParamsTemplate.asMap());
+            for (Map.Entry<String, String> e : appletParams.entrySet()) {
+                if (e.getValue() == null) {
+                    merged.remove(e.getKey());
+                } else {
+                    merged.put(e.getKey(), e.getValue());
+                }
+            }
+            appletParamsView = Collections.unmodifiableMap(merged);
+        }
+        return appletParamsView;
+    }
+
+    /**
+     * Get the parameters passed to the applet, both in the page and when
+     * detached: the applet parameters and the parameters of the features
+     * enabled in this component.
+     *
+     * @return
+     */
+    Map<String, String> getEffectiveAppletParams() {
+        Map<String, String> params = getAppletParams();
+        if (compressionThreshold > 0 || featureArchives != null
+                || sharedModel != null) {
+            params = new HashMap<String, String>(params);
+        }
+        if (compressionThreshold > 0) {
+            params.put(AbstractVaadinApplet.PARAM_COMPRESS_THRESHOLD,
+                    String.valueOf(compressionThreshold));
+        }
+        if (featureArchives != null) {
+            params.put(AbstractVaadinApplet.PARAM_FEATURE_ARCHIVES,
+                    FeatureLoader.format(featureArchives));
+        }
+        if (sharedModel != null) {
+            params.put(AbstractVaadinApplet.PARAM_SHARED_MODEL, "true");
+        }
+        return params;
     }
 
     /**
@@ -250,8 +1121,1235 @@ public class AppletIntegration extends AbstractComponent implements LegacyCompon
         return name;
     }
 
+    /**
+     * Enable compression of large string variables sent by the applet.
+     *
+     * String values longer than the threshold are deflated and base64 encoded
+     * by {@link AbstractVaadinApplet} and inflated again in
+     * {@link #changeVariables(Object, Map)} before they are delivered.
+     * Subclasses overriding {@link #changeVariables(Object, Map)} must call
+     * the super implementation first to receive inflated values.
+     *
+     * Like other applet parameters this should be set before the applet is
+     * initialized.
+     *
+     * @param threshold
+     *            Minimum length in characters of compressed values or 0 to
+     *            disable compression.
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException(
+                    "Compression threshold cannot be negative");
+        }
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * Get the minimum length of string variables compressed by the applet.
+     *
+     * @see #setCompressionThreshold(int)
+     * @return threshold in characters or 0 if compression is disabled
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Add a listener for a boolean variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            BooleanVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.BOOLEAN, listener));
+    }
+
+    /**
+     * Add a listener for an int variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            IntVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.INT, listener));
+    }
+
+    /**
+     * Add a listener for a double variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            DoubleVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.DOUBLE, listener));
+    }
+
+    /**
+     * Add a listener for a float variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            FloatVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.FLOAT, listener));
+    }
+
+    /**
+     * Add a listener for a long variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            LongVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.LONG, listener));
+    }
+
+    /**
+     * Add a listener for a string variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            StringVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.STRING, listener));
+    }
+
+    /**
+     * Add a listener for a string array variable sent by the applet.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void addVariableListener(String variableName,
+            StringArrayVariableListener listener) {
+        addVariableBinding(variableName, new VariableBinding(
+                VariableBinding.STRING_ARRAY, listener));
+    }
+
+    /**
+     * Remove a typed variable listener.
+     *
+     * @param variableName
+     * @param listener
+     */
+    public void removeVariableListener(String variableName,
+            VariableListener listener) {
+        if (variableBindings == null) {
+            return;
+        }
+        List<VariableBinding> bindings = variableBindings.get(variableName);
+        if (bindings == null) {
+            return;
+        }
+        for (int i = bindings.size() - 1; i >= 0; i--) {
+            if (bindings.get(i).listener == listener) {
+                bindings.remove(i);
+            }
+        }
+        if (bindings.isEmpty()) {
+            variableBindings.remove(variableName);
+        }
+    }
+
+    /**
+     * Add a listener that receives the given variables batched: one call per
+     * server round trip containing all of the variables that changed.
+     *
+     * @param listener
+     * @param variableNames
+     */
+    public void addVariablesListener(VariablesListener listener,
+            String... variableNames) {
+        if (variablesListeners == null) {
+            variablesListeners = new HashMap<String, List<VariablesListener>>();
+        }
+        for (String variableName : variableNames) {
+            List<VariablesListener> listeners = variablesListeners
+                    .get(variableName);
+            if (listeners == null) {
+                listeners = new ArrayList<VariablesListener>(1);
+                variablesListeners.put(variableName, listeners);
+            }
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a batched variables listener from all of its variables.
+     *
+     * @param listener
+     */
+    public void removeVariablesListener(VariablesListener listener) {
+        if (variablesListeners == null) {
+            return;
+        }
+        for (Iterator<List<VariablesListener>> it = variablesListeners
+                .values().iterator(); it.hasNext();) {
+            List<VariablesListener> listeners = it.next();
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Add a listener for binary messages sent by the applet with
+     * {@link AbstractVaadinApplet#sendMessage(byte[])}.
+     *
+     * The messages are posted by the applet directly to a request handler of
+     * the session, bypassing JavaScript and the client-side engine, which
+     * makes this suitable for large volumes of data. Messaging is enabled for
+     * the applet when the first listener is added before the applet is
+     * started.
+     *
+     * @param listener
+     */
+    public void addMessageListener(MessageListener listener) {
+        if (messageListeners == null) {
+            messageListeners = new ArrayList<MessageListener>(1);
+        }
+        messageListeners.add(listener);
+        if (rpcToken == null) {
+            rpcToken = AppletRpcHandler.createToken();
+            if (isAttached()) {
+                AppletRpcHandler.get(getSession()).register(rpcToken, this);
+            }
+            requestRepaint();
+        }
+    }
+
+    /**
+     * Remove a message listener.
+     *
+     * @param listener
+     */
+    public void removeMessageListener(MessageListener listener) {
+        if (messageListeners != null) {
+            messageListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Deliver messages posted by the applet to the listeners. Called by
+     * {@link AppletRpcHandler} while holding the session lock.
+     *
+     * @param messages
+     */
+    void fireMessagesReceived(List<byte[]> messages) {
+        if (messageListeners == null) {
+            return;
+        }
+        List<byte[]> readOnly = Collections.unmodifiableList(messages);
+        for (MessageListener listener : new ArrayList<MessageListener>(
+                messageListeners)) {
+            listener.messagesReceived(this, readOnly);
+        }
+    }
+
+    /**
+     * Publish a stream of data for the applet to download, e.g. a large
+     * dataset that would not fit in command parameters. Pass the returned
+     * handle to the applet in a command, and the applet can read the data
+     * with {@link AbstractVaadinApplet#openStream(String)}.
+     *
+     * The stream is served only within the session of this component. It
+     * supports HTTP range requests so that interrupted downloads are resumed.
+     * The stream source is therefore asked for a new stream for each request.
+     * The stream expires after {@link #DEFAULT_STREAM_TIMEOUT} milliseconds
+     * without requests or when this component is detached.
+     *
+     * This method cannot be called if this component has not been attached to
+     * an application.
+     *
+     * @param source
+     *            Source of the data. Must return the same data for every
+     *            call.
+     * @param length
+     *            Length of the data in bytes.
+     * @param mimeType
+     *            Content type of the data.
+     * @return the handle of the stream
+     */
+    public String publishStream(StreamSource source, long length,
+            String mimeType) {
+        return publishStream(source, length, mimeType, DEFAULT_STREAM_TIMEOUT);
+    }
+
+    /**
+     * Publish a stream of data for the applet to download.
+     *
+     * @see #publishStream(StreamSource, long, String)
+     * @param source
+     *            Source of the data. Must return the same data for every
+     *            call.
+     * @param length
+     *            Length of the data in bytes.
+     * @param mimeType
+     *            Content type of the data.
+     * @param timeout
+     *            Time in milliseconds the stream remains available without
+     *            being accessed.
+     * @return the handle of the stream
+     */
+    public String publishStream(StreamSource source, long length,
+            String mimeType, long timeout) {
+        if (!isAttached()) {
+            throw new IllegalStateException(
+                    "Streams can be published only when attached");
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("Length cannot be negative");
+        }
+        return AppletRpcHandler.get(getSession()).publish(this, source,
+                length, mimeType == null ? "application/octet-stream"
+                        : mimeType, timeout);
+    }
+
+    /**
+     * Create a one-time launch path for running the applet detached from the
+     * browser with {@link DetachedAppletLauncher}.
+     *
+     * The launcher connects directly to the server with HTTP, so commands
+     * and variables do not go through JavaScript and the Vaadin client-side
+     * engine. When the launcher has connected, commands are sent to it
+     * instead of the applet in the page. The path can be used only once and
+     * is valid while this component is attached.
+     *
+     * The launcher must be given the service URL of the application followed
+     * by the returned path, and the session cookie, e.g.
+     * "JSESSIONID=" + the HTTP session id.
+     *
+     * @return the launch path relative to the service URL
+     */
+    public String createDetachedLaunchPath() {
+        if (!isAttached()) {
+            throw new IllegalStateException(
+                    "Detached applets can be launched only when attached");
+        }
+        return AppletRpcHandler.DETACHED_PATH
+                + AppletRpcHandler.get(getSession()).createLaunchToken(this);
+    }
+
+    /**
+     * Check if a detached applet is connected to this component.
+     *
+     * @return
+     * @see #createDetachedLaunchPath()
+     */
+    public boolean isDetached() {
+        return detachedChannel != null && !detachedChannel.isClosed();
+    }
+
+    /**
+     * Connect a detached applet. The commands queued for the applet in the
+     * page are sent to the detached applet instead.
+     *
+     * @param channel
+     * @return the previous channel, closed
+     */
+    DetachedChannel setDetachedChannel(DetachedChannel channel) {
+        DetachedChannel previous = detachedChannel;
+        detachedChannel = channel;
+        if (previous != null) {
+            for (byte[] frame : previous.close()) {
+                channel.offer(frame);
+            }
+        }
+        if (pendingCommands != null) {
+            for (QueuedCommand cmd : pendingCommands) {
+                channel.offer(DetachedProtocol.command(cmd.command, cmd.params,
+                        cmd.priority.getValue()));
+            }
+            pendingCommands = null;
+        }
+        return previous;
+    }
+
+    /**
+     * Queue a command for the detached applet. If the channel has been
+     * closed, has expired or has too many unacknowledged commands, it is
+     * closed and its unacknowledged commands are queued for the applet in
+     * the page instead.
+     *
+     * @param frame
+     * @return false if the command must be queued for the applet in the page
+     */
+    private boolean offerDetached(byte[] frame) {
+        DetachedChannel channel = detachedChannel;
+        if (channel.offer(frame)) {
+            return true;
+        }
+        detachedChannel = null;
+        if (isAttached()) {
+            AppletRpcHandler handler = AppletRpcHandler.find(getSession());
+            if (handler != null) {
+                handler.removeChannel(channel);
+            }
+        }
+        for (byte[] unacknowledged : channel.close()) {
+            try {
+                DetachedProtocol.Frame f = DetachedProtocol
+                        .decode(unacknowledged);
+                CommandPriority priority = f.priority == CommandPriority.HIGH
+                        .getValue() ? CommandPriority.HIGH
+                        : CommandPriority.NORMAL;
+                queueCommand(new QueuedCommand(f.name, f.args, priority));
+            } catch (IOException e) {
+                // Encoded by this component
+                throw new IllegalStateException(e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove a published stream before it expires.
+     *
+     * @param handle
+     *            Handle returned by
+     *            {@link #publishStream(StreamSource, long, String)}
+     */
+    public void unpublishStream(String handle) {
+        if (!isAttached()) {
+            return;
+        }
+        AppletRpcHandler handler = AppletRpcHandler.find(getSession());
+        if (handler != null) {
+            handler.unpublish(handle);
+        }
+    }
+
+    @Override
+    public void attach() {
+        super.attach();
+        if (rpcToken != null) {
+            AppletRpcHandler.get(getSession()).register(rpcToken, this);
+        }
+    }
+
+    @Override
+    public void detach() {
+        AppletRpcHandler handler = AppletRpcHandler.find(getSession());
+        if (handler != null) {
+            if (rpcToken != null) {
+                handler.unregister(rpcToken);
+            }
+            handler.unpublishAll(this);
+            handler.closeChannels(this);
+        }
+        detachedChannel = null;
+        super.detach();
+    }
+
+    private void addVariableBinding(String variableName, VariableBinding binding) {
+        if (variableBindings == null) {
+            variableBindings = new HashMap<String, List<VariableBinding>>();
+        }
+        List<VariableBinding> bindings = variableBindings.get(variableName);
+        if (bindings == null) {
+            bindings = new ArrayList<VariableBinding>(1);
+            variableBindings.put(variableName, bindings);
+        }
+        bindings.add(binding);
+    }
+
+    /**
+     * Limit the rate of immediate variable updates sent by the applet.
+     *
+     * Updates exceeding the limit are sent as non-immediate by
+     * {@link AbstractVaadinApplet} and flushed with a single synchronization
+     * once the rate allows it. The limit can be changed while the applet is
+     * running.
+     *
+     * @param updatesPerSecond
+     *            Sustained number of immediate updates per second or 0 for
+     *            no limit.
+     * @param burst
+     *            Number of immediate updates allowed in a burst. Defaults to
+     *            updatesPerSecond if not positive.
+     */
+    public void setImmediateUpdateLimit(int updatesPerSecond, int burst) {
+        if (updatesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "Update rate cannot be negative");
+        }
+        immediateUpdateRate = updatesPerSecond;
+        immediateUpdateBurst = Math.max(0, burst);
+        requestRepaint();
+    }
+
+    /**
+     * Get the sustained number of immediate updates per second allowed for
+     * the applet.
+     *
+     * @see #setImmediateUpdateLimit(int, int)
+     * @return updates per second or 0 if the rate is not limited
+     */
+    public int getImmediateUpdateRate() {
+        return immediateUpdateRate;
+    }
+
+    /**
+     * Get the number of immediate updates allowed in a burst.
+     *
+     * @see #setImmediateUpdateLimit(int, int)
+     * @return
+     */
+    public int getImmediateUpdateBurst() {
+        return immediateUpdateBurst;
+    }
+
+    /**
+     * Enable the adaptive heartbeat of the applet. The applet synchronizes
+     * with the server to pick up queued commands, starting from the minimum
+     * interval and backing off up to the maximum while no commands are
+     * received. No heartbeats are made while server push is enabled for the
+     * UI. The heartbeat can be changed while the applet is running.
+     *
+     * @param minInterval
+     *            Interval in milliseconds while commands are flowing.
+     * @param maxInterval
+     *            Longest interval in milliseconds when idle or 0 to disable
+     *            the heartbeat.
+     */
+    public void setHeartbeatInterval(int minInterval, int maxInterval) {
+        if (minInterval < 0 || maxInterval < 0) {
+            throw new IllegalArgumentException(
+                    "Heartbeat interval cannot be negative");
+        }
+        heartbeatMin = minInterval;
+        heartbeatMax = maxInterval;
+        requestRepaint();
+    }
+
+    /**
+     * Get the heartbeat interval used while commands are flowing.
+     *
+     * @see #setHeartbeatInterval(int, int)
+     * @return interval in milliseconds
+     */
+    public int getHeartbeatMinInterval() {
+        return heartbeatMin;
+    }
+
+    /**
+     * Get the longest heartbeat interval.
+     *
+     * @see #setHeartbeatInterval(int, int)
+     * @return interval in milliseconds or 0 if the heartbeat is disabled
+     */
+    public int getHeartbeatMaxInterval() {
+        return heartbeatMax;
+    }
+
+    /**
+     * Hint the applet when to make its next heartbeat, for example when the
+     * server knows that new commands will be available after a while. The
+     * hint is sent with the next repaint and limited by the applet to the
+     * range given with {@link #setHeartbeatInterval(int, int)}. If the applet
+     * has not been created yet, for example because it is instantiated
+     * lazily, the widget keeps the hint and passes it to the applet when
+     * creating it.
+     *
+     * @param interval
+     *            Interval in milliseconds.
+     */
+    public void hintHeartbeatInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException(
+                    "Heartbeat interval must be positive");
+        }
+        heartbeatHint = interval;
+        requestRepaint();
+    }
+
+    /**
+     * Handle variables sent by the applet. Compressed values are inflated and
+     * the variables are delivered to the registered variable listeners.
+     *
+     * Subclasses overriding this method should call the super implementation.
+     */
     @Override
-    public void changeVariables(Object o, Map<String, Object> stringObjectMap) {
+    public void changeVariables(Object source, Map<String, Object> variables) {
+        if (compressionThreshold > 0) {
+            inflateVariables(variables);
+        }
+        Object timings = variables.get(AbstractVaadinApplet.VAR_STARTUP_TIMINGS);
+        if (timings instanceof String) {
+            startupTimings = parseTimings((String) timings);
+        }
+        Object report = variables.get(VAppletIntegration.VAR_CLIENT_TIMINGS);
+        if (report instanceof String) {
+            addClientTimings((String) report);
+        }
+        Object traces = variables.get(AbstractVaadinApplet.VAR_COMMAND_TRACES);
+        if (traces instanceof String) {
+            addCommandTraces((String) traces);
+        }
+        Object failure = variables
+                .get(AbstractVaadinApplet.VAR_FEATURE_FAILURE);
+        if (failure instanceof String[] && ((String[]) failure).length == 3) {
+            String[] f = (String[]) failure;
+            featureLoadFailed(f[0], f[1], f[2]);
+        }
+        Object model = variables.get(AbstractVaadinApplet.VAR_SHARED_MODEL);
+        if (model instanceof String) {
+            getSharedModel().receive((String) model);
+            if (sharedModel.hasPendingMessage()) {
+                requestRepaint();
+            }
+        }
+        if (variableBindings != null) {
+            for (Map.Entry<String, Object> e : variables.entrySet()) {
+                List<VariableBinding> bindings = variableBindings.get(e
+                        .getKey());
+                if (bindings != null) {
+                    for (int i = 0; i < bindings.size(); i++) {
+                        bindings.get(i).dispatch(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+        if (variablesListeners != null) {
+            fireVariablesChanged(variables);
+        }
+    }
+
+    private void fireVariablesChanged(Map<String, Object> variables) {
+        Map<VariablesListener, Map<String, Object>> batches = null;
+        for (Map.Entry<String, Object> e : variables.entrySet()) {
+            List<VariablesListener> listeners = variablesListeners.get(e
+                    .getKey());
+            if (listeners == null) {
+                continue;
+            }
+            if (batches == null) {
+                batches = new LinkedHashMap<VariablesListener, Map<String, Object>>();
+            }
+            for (int i = 0; i < listeners.size(); i++) {
+                VariablesListener listener = listeners.get(i);
+                Map<String, Object> batch = batches.get(listener);
+                if (batch == null) {
+                    batch = new LinkedHashMap<String, Object>();
+                    batches.put(listener, batch);
+                }
+                batch.put(e.getKey(), e.getValue());
+            }
+        }
+        if (batches != null) {
+            for (Map.Entry<VariablesListener, Map<String, Object>> e : batches
+                    .entrySet()) {
+                e.getKey().variablesChanged(
+                        Collections.unmodifiableMap(e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Parse timings in format "name=millis,name=millis".
+     *
+     * @param timings
+     * @return
+     */
+    private static Map<String, Long> parseTimings(String timings) {
+        Map<String, Long> res = new LinkedHashMap<String, Long>();
+        for (String timing : timings.split(",")) {
+            int i = timing.indexOf('=');
+            if (i > 0) {
+                try {
+                    res.put(timing.substring(0, i),
+                            Long.valueOf(timing.substring(i + 1)));
+                } catch (NumberFormatException e) {
+                    // Ignore malformed entries
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Add client timings in format "name=count:total:max,..." to the
+     * aggregate. Timings other than the ones listed in
+     * {@link #getClientTimings()} are ignored, so that the client cannot add
+     * arbitrary entries to the map.
+     *
+     * @param report
+     */
+    private void addClientTimings(String report) {
+        if (clientTimings == null) {
+            clientTimings = new LinkedHashMap<String, TimingStatistics>();
+        }
+        for (String timing : report.split(",")) {
+            int i = timing.indexOf('=');
+            String[] values = timing.substring(i + 1).split(":");
+            if (i <= 0 || values.length != 3) {
+                continue;
+            }
+            try {
+                long count = Long.parseLong(values[0]);
+                long total = Long.parseLong(values[1]);
+                long max = Long.parseLong(values[2]);
+                String name = timing.substring(0, i);
+                if (!isClientTiming(name)) {
+                    continue;
+                }
+                TimingStatistics stats = clientTimings.get(name);
+                if (stats == null) {
+                    stats = new TimingStatistics();
+                    clientTimings.put(name, stats);
+                }
+                stats.add(count, total, max);
+            } catch (NumberFormatException e) {
+                // Ignore malformed entries
+            }
+        }
+    }
+
+    private static boolean isClientTiming(String name) {
+        return VAppletIntegration.TIMING_UIDL.equals(name)
+                || VAppletIntegration.TIMING_READY.equals(name)
+                || VAppletIntegration.TIMING_COMMAND.equals(name);
+    }
+
+    /**
+     * Replace compressed string values in the variable map with their inflated
+     * values. This is done only when compression has been enabled with
+     * {@link #setCompressionThreshold(int)}, and the inflated size of each
+     * value is limited.
+     *
+     * @param variables
+     * @throws IllegalArgumentException
+     *             if a value is not valid compressed data or is too large
+     */
+    private void inflateVariables(Map<String, Object> variables) {
+        for (Map.Entry<String, Object> e : variables.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof String
+                    && PayloadCodec.isDeflated((String) value)) {
+                try {
+                    e.setValue(PayloadCodec.inflate((String) value));
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(
+                            "Invalid compressed value for variable '"
+                                    + e.getKey() + "'", ex);
+                }
+            }
+        }
+    }
+
+    /*
+     * Compact serialized form. A bit mask tells which of the fields have a
+     * non-default value and only those are written. Strings are written as
+     * objects so that equal instances shared by the components of a session
+     * are written only once. Shared parameter templates are written as
+     * references, see AppletParameters.
+     *
+     * The form reduces the size of replicated sessions, not the time to
+     * serialize them. With the components of SerializationBenchmark the
+     * stream is about a quarter smaller than with the default form for
+     * configured components and a seventh smaller for empty ones, while
+     * writing and reading take about as long or up to a third longer because
+     * every field is written with a separate call. Most of the fields are
+     * rarely set and cost only their bit in the mask, whereas the default
+     * form writes the value of every field of every component.
+     */
+
+    private static final int SER_APPLET_CLASS = 1;
+    private static final int SER_CODEBASE = 1 << 1;
+    private static final int SER_NAME = 1 << 2;
+    private static final int SER_ARCHIVES = 1 << 3;
+    private static final int SER_PARAMS_TEMPLATE = 1 << 4;
+    private static final int SER_PARAMS = 1 << 5;
+    private static final int SER_COMMANDS = 1 << 6;
+    private static final int SER_COMPRESSION = 1 << 7;
+    private static final int SER_IMMEDIATE_LIMIT = 1 << 8;
+    private static final int SER_LAZY = 1 << 9;
+    private static final int SER_INSTANTIATE = 1 << 10;
+    private static final int SER_PREFETCH = 1 << 11;
+    private static final int SER_STARTUP_TIMINGS = 1 << 12;
+    private static final int SER_VARIABLE_LISTENERS = 1 << 13;
+    private static final int SER_VARIABLES_LISTENERS = 1 << 14;
+    private static final int SER_HEARTBEAT = 1 << 15;
+    private static final int SER_MESSAGE_LISTENERS = 1 << 16;
+    private static final int SER_CLIENT_TIMINGS = 1 << 17;
+    private static final int SER_COMMAND_TRACING = 1 << 18;
+    private static final int SER_TRACE_STATISTICS = 1 << 19;
+    private static final int SER_FEATURE_ARCHIVES = 1 << 20;
+    private static final int SER_SHARED_MODEL = 1 << 21;
+    private static final int SER_PENDING_TRACES = 1 << 22;
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        int flags = 0;
+        flags |= appletClass != null ? SER_APPLET_CLASS : 0;
+        flags |= codebase != null ? SER_CODEBASE : 0;
+        flags |= name != null ? SER_NAME : 0;
+        flags |= appletArchives != null ? SER_ARCHIVES : 0;
+        flags |= !appletParamsTemplate.isEmpty() ? SER_PARAMS_TEMPLATE : 0;
+        flags |= appletParams != null && !appletParams.isEmpty() ? SER_PARAMS
+                : 0;
+        flags |= pendingCommands != null && !pendingCommands.isEmpty() ? SER_COMMANDS
+                : 0;
+        flags |= compressionThreshold != 0 ? SER_COMPRESSION : 0;
+        flags |= immediateUpdateRate != 0 || immediateUpdateBurst != 0 ? SER_IMMEDIATE_LIMIT
+                : 0;
+        flags |= lazyInstantiation ? SER_LAZY : 0;
+        flags |= instantiationRequested ? SER_INSTANTIATE : 0;
+        flags |= archivePrefetch ? SER_PREFETCH : 0;
+        flags |= startupTimings != null ? SER_STARTUP_TIMINGS : 0;
+        flags |= variableBindings != null && !variableBindings.isEmpty() ? SER_VARIABLE_LISTENERS
+                : 0;
+        flags |= variablesListeners != null && !variablesListeners.isEmpty() ? SER_VARIABLES_LISTENERS
+                : 0;
+        flags |= heartbeatMin != 0 || heartbeatMax != 0 || heartbeatHint != 0 ? SER_HEARTBEAT
+                : 0;
+        flags |= rpcToken != null ? SER_MESSAGE_LISTENERS : 0;
+        flags |= clientTimings != null ? SER_CLIENT_TIMINGS : 0;
+        flags |= commandTracing ? SER_COMMAND_TRACING : 0;
+        flags |= traceStatistics != null ? SER_TRACE_STATISTICS : 0;
+        flags |= featureArchives != null ? SER_FEATURE_ARCHIVES : 0;
+        flags |= sharedModel != null ? SER_SHARED_MODEL : 0;
+        flags |= traceSequence != 0 ? SER_PENDING_TRACES : 0;
+        out.writeInt(flags);
+
+        if ((flags & SER_APPLET_CLASS) != 0) {
+            out.writeObject(appletClass);
+        }
+        if ((flags & SER_CODEBASE) != 0) {
+            out.writeObject(codebase);
+        }
+        if ((flags & SER_NAME) != 0) {
+            out.writeObject(name);
+        }
+        if ((flags & SER_ARCHIVES) != 0) {
+            out.writeInt(appletArchives.size());
+            for (String archive : appletArchives) {
+                out.writeObject(archive);
+            }
+        }
+        if ((flags & SER_PARAMS_TEMPLATE) != 0) {
+            out.writeObject(appletParamsTemplate);
+        }
+        if ((flags & SER_PARAMS) != 0) {
+            out.writeInt(appletParams.size());
+            for (Map.Entry<String, String> e : appletParams.entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeObject(e.getValue());
+            }
+        }
+        if ((flags & SER_COMMANDS) != 0) {
+            out.writeInt(pendingCommands.size());
+            for (QueuedCommand cmd : pendingCommands) {
+                out.writeObject(cmd.command);
+                out.writeObject(cmd.params);
+                out.writeByte(cmd.priority.ordinal());
+                out.writeObject(cmd.traceId);
+                if (cmd.traceId != null) {
+                    out.writeLong(cmd.queuedAt);
+                }
+            }
+        }
+        if ((flags & SER_COMPRESSION) != 0) {
+            out.writeInt(compressionThreshold);
+        }
+        if ((flags & SER_IMMEDIATE_LIMIT) != 0) {
+            out.writeInt(immediateUpdateRate);
+            out.writeInt(immediateUpdateBurst);
+        }
+        if ((flags & SER_HEARTBEAT) != 0) {
+            out.writeInt(heartbeatMin);
+            out.writeInt(heartbeatMax);
+            out.writeInt(heartbeatHint);
+        }
+        if ((flags & SER_STARTUP_TIMINGS) != 0) {
+            out.writeInt(startupTimings.size());
+            for (Map.Entry<String, Long> e : startupTimings.entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        if ((flags & SER_VARIABLE_LISTENERS) != 0) {
+            out.writeInt(variableBindings.size());
+            for (Map.Entry<String, List<VariableBinding>> e : variableBindings
+                    .entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (VariableBinding binding : e.getValue()) {
+                    out.writeByte(binding.type);
+                    out.writeObject(binding.listener);
+                }
+            }
+        }
+        if ((flags & SER_VARIABLES_LISTENERS) != 0) {
+            out.writeInt(variablesListeners.size());
+            for (Map.Entry<String, List<VariablesListener>> e : variablesListeners
+                    .entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (VariablesListener listener : e.getValue()) {
+                    out.writeObject(listener);
+                }
+            }
+        }
+        if ((flags & SER_MESSAGE_LISTENERS) != 0) {
+            out.writeObject(rpcToken);
+            int size = messageListeners == null ? 0 : messageListeners.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeObject(messageListeners.get(i));
+            }
+        }
+        if ((flags & SER_CLIENT_TIMINGS) != 0) {
+            out.writeInt(clientTimings.size());
+            for (Map.Entry<String, TimingStatistics> e : clientTimings
+                    .entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeObject(e.getValue());
+            }
+        }
+        if ((flags & SER_TRACE_STATISTICS) != 0) {
+            out.writeInt(traceStatistics.size());
+            for (Map.Entry<String, LatencyDistribution> e : traceStatistics
+                    .entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeObject(e.getValue());
+            }
+        }
+        if ((flags & SER_FEATURE_ARCHIVES) != 0) {
+            out.writeInt(featureArchives.size());
+            for (Map.Entry<String, String> e : featureArchives.entrySet()) {
+                out.writeObject(e.getKey());
+                out.writeObject(e.getValue());
+            }
+        }
+        if ((flags & SER_SHARED_MODEL) != 0) {
+            out.writeObject(sharedModel);
+        }
+        if ((flags & SER_PENDING_TRACES) != 0) {
+            out.writeInt(traceSequence);
+            int size = pendingTraces == null ? 0 : pendingTraces.size();
+            out.writeInt(size);
+            if (size > 0) {
+                for (Map.Entry<String, long[]> e : pendingTraces.entrySet()) {
+                    out.writeObject(e.getKey());
+                    out.writeLong(e.getValue()[0]);
+                    out.writeLong(e.getValue()[1]);
+                }
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+
+        int flags = in.readInt();
+        appletParamsTemplate = AppletParameters.EMPTY;
+
+        if ((flags & SER_APPLET_CLASS) != 0) {
+            appletClass = (String) in.readObject();
+        }
+        if ((flags & SER_CODEBASE) != 0) {
+            codebase = (String) in.readObject();
+        }
+        if ((flags & SER_NAME) != 0) {
+            name = (String) in.readObject();
+        }
+        if ((flags & SER_ARCHIVES) != 0) {
+            int size = in.readInt();
+            appletArchives = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                appletArchives.add((String) in.readObject());
+            }
+        }
+        if ((flags & SER_PARAMS_TEMPLATE) != 0) {
+            appletParamsTemplate = (AppletParameters) in.readObject();
+        }
+        if ((flags & SER_PARAMS) != 0) {
+            int size = in.readInt();
+            appletParams = new HashMap<String, String>(size * 2);
+            for (int i = 0; i < size; i++) {
+                appletParams.put((String) in.readObject(),
+                        (String) in.readObject());
+            }
+        }
+        if ((flags & SER_COMMANDS) != 0) {
+            int size = in.readInt();
+            pendingCommands = new ArrayList<QueuedCommand>(size);
+            for (int i = 0; i < size; i++) {
+                QueuedCommand cmd = new QueuedCommand((String) in.readObject(),
+                        (String[]) in.readObject(),
+                        CommandPriority.values()[in.readByte()]);
+                cmd.traceId = (String) in.readObject();
+                if (cmd.traceId != null) {
+                    cmd.queuedAt = in.readLong();
+                }
+                pendingCommands.add(cmd);
+            }
+        }
+        if ((flags & SER_COMPRESSION) != 0) {
+            compressionThreshold = in.readInt();
+        }
+        if ((flags & SER_IMMEDIATE_LIMIT) != 0) {
+            immediateUpdateRate = in.readInt();
+            immediateUpdateBurst = in.readInt();
+        }
+        if ((flags & SER_HEARTBEAT) != 0) {
+            heartbeatMin = in.readInt();
+            heartbeatMax = in.readInt();
+            heartbeatHint = in.readInt();
+        }
+        lazyInstantiation = (flags & SER_LAZY) != 0;
+        instantiationRequested = (flags & SER_INSTANTIATE) != 0;
+        archivePrefetch = (flags & SER_PREFETCH) != 0;
+        if ((flags & SER_STARTUP_TIMINGS) != 0) {
+            int size = in.readInt();
+            startupTimings = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < size; i++) {
+                startupTimings.put((String) in.readObject(), in.readLong());
+            }
+        }
+        if ((flags & SER_VARIABLE_LISTENERS) != 0) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String variableName = (String) in.readObject();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    int type = in.readByte();
+                    addVariableBinding(variableName, new VariableBinding(type,
+                            (VariableListener) in.readObject()));
+                }
+            }
+        }
+        if ((flags & SER_VARIABLES_LISTENERS) != 0) {
+            int size = in.readInt();
+            variablesListeners = new HashMap<String, List<VariablesListener>>();
+            for (int i = 0; i < size; i++) {
+                String variableName = (String) in.readObject();
+                int count = in.readInt();
+                List<VariablesListener> listeners = new ArrayList<VariablesListener>(
+                        count);
+                for (int j = 0; j < count; j++) {
+                    listeners.add((VariablesListener) in.readObject());
+                }
+                variablesListeners.put(variableName, listeners);
+            }
+        }
+        if ((flags & SER_MESSAGE_LISTENERS) != 0) {
+            rpcToken = (String) in.readObject();
+            int size = in.readInt();
+            messageListeners = new ArrayList<MessageListener>(size);
+            for (int i = 0; i < size; i++) {
+                messageListeners.add((MessageListener) in.readObject());
+            }
+        }
+        if ((flags & SER_CLIENT_TIMINGS) != 0) {
+            int size = in.readInt();
+            clientTimings = new LinkedHashMap<String, TimingStatistics>();
+            for (int i = 0; i < size; i++) {
+                clientTimings.put((String) in.readObject(),
+                        (TimingStatistics) in.readObject());
+            }
+        }
+        commandTracing = (flags & SER_COMMAND_TRACING) != 0;
+        if ((flags & SER_TRACE_STATISTICS) != 0) {
+            int size = in.readInt();
+            traceStatistics = new LinkedHashMap<String, LatencyDistribution>();
+            for (int i = 0; i < size; i++) {
+                traceStatistics.put((String) in.readObject(),
+                        (LatencyDistribution) in.readObject());
+            }
+        }
+        if ((flags & SER_FEATURE_ARCHIVES) != 0) {
+            int size = in.readInt();
+            featureArchives = new LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                featureArchives.put((String) in.readObject(),
+                        (String) in.readObject());
+            }
+        }
+        if ((flags & SER_SHARED_MODEL) != 0) {
+            sharedModel = (SharedModel) in.readObject();
+        }
+        if ((flags & SER_PENDING_TRACES) != 0) {
+            traceSequence = in.readInt();
+            int size = in.readInt();
+            if (size > 0) {
+                pendingTraces = new LinkedHashMap<String, long[]>();
+                for (int i = 0; i < size; i++) {
+                    pendingTraces.put((String) in.readObject(), new long[] {
+                            in.readLong(), in.readLong() });
+                }
+            }
+        }
+    }
+
+    /**
+     * Repaints the component when the shared model is changed on the server.
+     */
+    private static final class SharedModelRepaint implements
+            SharedModel.ChangeListener {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AppletIntegration component;
 
+        SharedModelRepaint(AppletIntegration component) {
+            this.component = component;
+        }
+
+        @Override
+        public void modelChanged(SharedModel model, Set<String> keys,
+                boolean remote) {
+            if (!remote) {
+                component.requestRepaint();
+            }
+        }
+    }
+
+    /**
+     * Command waiting for the next repaint.
+     */
+    private static final class QueuedCommand implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String command;
+        private final String[] params;
+        private final CommandPriority priority;
+        private String traceId;
+        private long queuedAt;
+
+        QueuedCommand(String command, String[] params, CommandPriority priority) {
+            if (command == null) {
+                throw new IllegalArgumentException("Command cannot be null");
+            }
+            this.command = command;
+            this.params = params;
+            this.priority = priority == null ? CommandPriority.NORMAL
+                    : priority;
+        }
+    }
+
+    /**
+     * Typed listener registered for a variable. The value type is resolved
+     * once when the listener is added so that dispatching only unboxes the
+     * value.
+     */
+    private static final class VariableBinding implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        static final int BOOLEAN = 0;
+        static final int INT = 1;
+        static final int DOUBLE = 2;
+        static final int STRING = 3;
+        static final int STRING_ARRAY = 4;
+        static final int FLOAT = 5;
+        static final int LONG = 6;
+
+        private final int type;
+        private final VariableListener listener;
+
+        VariableBinding(int type, VariableListener listener) {
+            if (listener == null) {
+                throw new IllegalArgumentException("Listener cannot be null");
+            }
+            this.type = type;
+            this.listener = listener;
+        }
+
+        /**
+         * Check if a value sent by the client has the type of the listener.
+         *
+         * @param value
+         * @return
+         */
+        boolean accepts(Object value) {
+            switch (type) {
+            case BOOLEAN:
+                return value instanceof Boolean;
+            case INT:
+            case DOUBLE:
+            case FLOAT:
+            case LONG:
+                return value instanceof Number;
+            case STRING:
+                return value == null || value instanceof String;
+            case STRING_ARRAY:
+                return value == null || value instanceof String[];
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Pass the value to the listener. Values of another type are ignored
+         * and logged, as the client may send any type for a variable.
+         *
+         * @param variableName
+         * @param value
+         */
+        void dispatch(String variableName, Object value) {
+            if (!accepts(value)) {
+                Logger.getLogger(AppletIntegration.class.getName()).log(
+                        Level.WARNING,
+                        "Ignored variable {0} of type {1} for a listener of type {2}",
+                        new Object[] {
+                                variableName,
+                                value == null ? null : value.getClass()
+                                        .getSimpleName(),
+                                listener.getClass().getName() });
+                return;
+            }
+            switch (type) {
+            case BOOLEAN:
+                ((BooleanVariableListener) listener).variableChanged(
+                        variableName, ((Boolean) value).booleanValue());
+                break;
+            case INT:
+                ((IntVariableListener) listener).variableChanged(variableName,
+                        ((Number) value).intValue());
+                break;
+            case DOUBLE:
+                ((DoubleVariableListener) listener).variableChanged(
+                        variableName, ((Number) value).doubleValue());
+                break;
+            case FLOAT:
+                ((FloatVariableListener) listener).variableChanged(
+                        variableName, ((Number) value).floatValue());
+                break;
+            case LONG:
+                ((LongVariableListener) listener).variableChanged(
+                        variableName, ((Number) value).longValue());
+                break;
+            case STRING:
+                ((StringVariableListener) listener).variableChanged(
+                        variableName, (String) value);
+                break;
+            case STRING_ARRAY:
+                ((StringArrayVariableListener) listener).variableChanged(
+                        variableName, (String[]) value);
+                break;
+            default:
+                throw new IllegalStateException("Unknown variable type "
+                        + type);
+            }
+        }
     }
 }
\ No newline at end of file
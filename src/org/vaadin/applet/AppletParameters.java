@@ -0,0 +1,238 @@
+package org.vaadin.applet;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable set of applet parameters that can be shared by any number of
+ * {@link AppletIntegration} instances.
+ *
+ * Applications hosting many identical applets should create the common
+ * parameters once and set them with
+ * {@link AppletIntegration#setAppletParamsTemplate(AppletParameters)}. Each
+ * component only stores the parameters it overrides.
+ *
+ * Templates created with {@link #shared(String, Map)} are registered under an
+ * id and serialized as a reference to that id. When sessions are replicated,
+ * each node must register the same templates before deserializing.
+ *
+ * The registry is global to the class loader of this class and keeps the
+ * templates until they are removed with {@link #removeShared(String)}.
+ * Templates should be registered once when the application starts, for
+ * example in the init method of the servlet, and not for each session.
+ */
+public final class AppletParameters implements Serializable {
+
+    private static final long serialVersionUID = 2519460327938004946L;
+
+    /** Parameter set without any parameters. */
+    public static final AppletParameters EMPTY = new AppletParameters(
+            Collections.<String, String> emptyMap());
+
+    private static final Map<String, AppletParameters> sharedTemplates = new ConcurrentHashMap<String, AppletParameters>();
+
+    private final Map<String, String> params;
+    private final String sharedId;
+
+    private AppletParameters(Map<String, String> params) {
+        this(params, null);
+    }
+
+    private AppletParameters(Map<String, String> params, String sharedId) {
+        this.params = params;
+        this.sharedId = sharedId;
+    }
+
+    /**
+     * Create a parameter set from name-value pairs. The map is copied.
+     *
+     * @param params
+     * @return
+     */
+    public static AppletParameters of(Map<String, String> params) {
+        if (params.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, String> copy = new LinkedHashMap<String, String>(params);
+        if (copy.containsKey(null) || copy.containsValue(null)) {
+            throw new IllegalArgumentException(
+                    "Parameter names and values cannot be null");
+        }
+        return new AppletParameters(Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Create a parameter set and register it under the given id. The
+     * parameter set is serialized as a reference to the id instead of its
+     * contents. Registering the same id again replaces the earlier template
+     * for parameter sets deserialized after that. The template is kept until
+     * {@link #removeShared(String)} is called.
+     *
+     * @param id
+     *            Id unique within the application.
+     * @param params
+     * @return
+     */
+    public static AppletParameters shared(String id, Map<String, String> params) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id cannot be null");
+        }
+        AppletParameters template = new AppletParameters(of(params).params,
+                id);
+        sharedTemplates.put(id, template);
+        return template;
+    }
+
+    /**
+     * Get a parameter set registered with {@link #shared(String, Map)}.
+     *
+     * @param id
+     * @return the parameter set or null if none is registered with the id
+     */
+    public static AppletParameters getShared(String id) {
+        return sharedTemplates.get(id);
+    }
+
+    /**
+     * Remove a parameter set registered with {@link #shared(String, Map)},
+     * typically when the application is stopped. Components that use it keep
+     * working, but sessions containing them can no longer be deserialized.
+     *
+     * @param id
+     * @return the removed parameter set or null if none was registered with
+     *         the id
+     */
+    public static AppletParameters removeShared(String id) {
+        return sharedTemplates.remove(id);
+    }
+
+    /**
+     * Create a copy of this parameter set with one parameter added or
+     * replaced.
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    public AppletParameters with(String name, String value) {
+        Map<String, String> copy = new LinkedHashMap<String, String>(params);
+        copy.put(name, value);
+        return of(copy);
+    }
+
+    /**
+     * Get the value of a parameter.
+     *
+     * @param name
+     * @return the value or null if the parameter is not set
+     */
+    public String get(String name) {
+        return params.get(name);
+    }
+
+    /**
+     * Get the parameters as an unmodifiable map.
+     *
+     * @return
+     */
+    public Map<String, String> asMap() {
+        return params;
+    }
+
+    public boolean isEmpty() {
+        return params.isEmpty();
+    }
+
+    /**
+     * @return the id given to {@link #shared(String, Map)} or null if this
+     *         parameter set is not shared
+     */
+    public String getSharedId() {
+        return sharedId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof AppletParameters
+                && params.equals(((AppletParameters) obj).params);
+    }
+
+    @Override
+    public int hashCode() {
+        return params.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return params.toString();
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        throw new InvalidObjectException("Serialized form required");
+    }
+
+    /**
+     * Serialized form: either the id of a shared parameter set or the
+     * name-value pairs.
+     */
+    private static class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = -6094870716373925180L;
+
+        private transient AppletParameters parameters;
+
+        SerializedForm(AppletParameters parameters) {
+            this.parameters = parameters;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeObject(parameters.sharedId);
+            if (parameters.sharedId == null) {
+                out.writeInt(parameters.params.size());
+                for (Map.Entry<String, String> e : parameters.params.entrySet()) {
+                    out.writeObject(e.getKey());
+                    out.writeObject(e.getValue());
+                }
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException,
+                ClassNotFoundException {
+            in.defaultReadObject();
+            String id = (String) in.readObject();
+            if (id != null) {
+                parameters = sharedTemplates.get(id);
+                if (parameters == null) {
+                    throw new InvalidObjectException(
+                            "No shared applet parameters registered with id "
+                                    + id);
+                }
+                return;
+            }
+            int size = in.readInt();
+            Map<String, String> params = new LinkedHashMap<String, String>(
+                    size * 2);
+            for (int i = 0; i < size; i++) {
+                params.put((String) in.readObject(), (String) in.readObject());
+            }
+            parameters = of(params);
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return parameters;
+        }
+    }
+}
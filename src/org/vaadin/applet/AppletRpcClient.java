@@ -0,0 +1,125 @@
+package org.vaadin.applet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client used by {@link AbstractVaadinApplet} to post messages directly to
+ * the {@link AppletRpcHandler} of the server-side component.
+ *
+ * Messages are queued and posted in batches. The response of each request is
+ * read completely so that the JRE keeps the connection alive and reuses it
+ * for the next batch.
+ */
+final class AppletRpcClient {
+
+    private final URL url;
+    private final String sessionCookie;
+
+    private final List<byte[]> queue = new ArrayList<byte[]>();
+    private final byte[] drainBuffer = new byte[512];
+
+    private long sentMessages;
+    private long failedMessages;
+
+    AppletRpcClient(URL url, String sessionCookie) {
+        this.url = url;
+        this.sessionCookie = sessionCookie;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    void queue(byte[] message) {
+        synchronized (queue) {
+            queue.add(message);
+        }
+    }
+
+    boolean hasQueued() {
+        synchronized (queue) {
+            return !queue.isEmpty();
+        }
+    }
+
+    /**
+     * Post all of the queued messages in one request. If the request fails
+     * the messages of the batch are dropped.
+     *
+     * @return the number of messages posted
+     * @throws IOException
+     *             if the request failed
+     */
+    synchronized int flush() throws IOException {
+        List<byte[]> batch;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return 0;
+            }
+            batch = new ArrayList<byte[]>(queue);
+            queue.clear();
+        }
+        try {
+            post(batch);
+        } catch (IOException e) {
+            failedMessages += batch.size();
+            throw e;
+        }
+        sentMessages += batch.size();
+        return batch.size();
+    }
+
+    private void post(List<byte[]> batch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Content-Type",
+                "application/octet-stream");
+        if (sessionCookie != null) {
+            connection.setRequestProperty("Cookie", sessionCookie);
+        }
+        connection.setFixedLengthStreamingMode(MessageFraming
+                .getFramedLength(batch));
+
+        DataOutputStream out = new DataOutputStream(
+                connection.getOutputStream());
+        try {
+            MessageFraming.write(out, batch);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream()
+                : connection.getInputStream();
+        if (in != null) {
+            // Read to the end to allow reusing the connection
+            try {
+                while (in.read(drainBuffer) >= 0) {
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (status >= 300) {
+            throw new IOException("Posting messages failed: " + status + " "
+                    + connection.getResponseMessage());
+        }
+    }
+
+    synchronized long getSentMessageCount() {
+        return sentMessages;
+    }
+
+    synchronized long getFailedMessageCount() {
+        return failedMessages;
+    }
+}
@@ -0,0 +1,579 @@
+package org.vaadin.applet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.StreamResource.StreamSource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.ApplicationConstants;
+
+/**
+ * Session request handler for the direct HTTP communication between the
+ * applets and the server, without going through JavaScript and the Vaadin
+ * client-side engine. It receives the messages posted by the applets, serves
+ * the data streams published for them and exchanges the commands and
+ * variables of detached applets.
+ *
+ * One handler is registered in each session that uses these features. Each
+ * {@link AppletIntegration} with message listeners is registered with a
+ * random token that is part of the URL the applet posts to. Published streams
+ * are identified by random handles. As the handler is registered in the
+ * session, the applet must send the session cookie it receives as a
+ * parameter.
+ *
+ * @see AppletIntegration#addMessageListener(AppletIntegration.MessageListener)
+ * @see AppletIntegration#publishStream(StreamSource, long, String)
+ * @see AppletIntegration#createDetachedLaunchPath()
+ */
+public class AppletRpcHandler implements RequestHandler {
+
+    private static final long serialVersionUID = -5239113409561917428L;
+
+    /** Path of the requests handled, relative to the service URL. */
+    public static final String PATH = ApplicationConstants.APP_PATH
+            + "/applet-rpc/";
+
+    /** Path of the published streams, relative to the service URL. */
+    public static final String STREAM_PATH = ApplicationConstants.APP_PATH
+            + "/applet-stream/";
+
+    /** Path of the detached applet connections, relative to the service URL. */
+    public static final String DETACHED_PATH = ApplicationConstants.APP_PATH
+            + "/applet-detached/";
+
+    /** Maximum time in milliseconds a detached applet poll is held open. */
+    public static final int MAX_POLL_WAIT = 30000;
+
+    /** Maximum total size of a batch of messages in bytes. */
+    public static final int MAX_BATCH_LENGTH = 16 * 1024 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+
+    private final Map<String, AppletIntegration> applets = new ConcurrentHashMap<String, AppletIntegration>();
+
+    private final Map<String, PublishedStream> streams = new ConcurrentHashMap<String, PublishedStream>();
+
+    private final Map<String, AppletIntegration> launchTokens = new ConcurrentHashMap<String, AppletIntegration>();
+
+    private final Map<String, DetachedChannel> channels = new ConcurrentHashMap<String, DetachedChannel>();
+
+    /**
+     * Get the handler of a session if one has been registered. Must be called
+     * while holding the session lock.
+     *
+     * @param session
+     * @return the handler or null
+     */
+    static AppletRpcHandler find(VaadinSession session) {
+        for (RequestHandler handler : session.getRequestHandlers()) {
+            if (handler instanceof AppletRpcHandler) {
+                return (AppletRpcHandler) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the handler of a session, registering a new one if needed. Must be
+     * called while holding the session lock.
+     *
+     * @param session
+     * @return
+     */
+    static AppletRpcHandler get(VaadinSession session) {
+        AppletRpcHandler handler = find(session);
+        if (handler == null) {
+            handler = new AppletRpcHandler();
+            session.addRequestHandler(handler);
+        }
+        return handler;
+    }
+
+    /**
+     * Create a new random token.
+     *
+     * @return
+     */
+    static String createToken() {
+        return new BigInteger(128, random).toString(36);
+    }
+
+    void register(String token, AppletIntegration applet) {
+        applets.put(token, applet);
+    }
+
+    void unregister(String token) {
+        applets.remove(token);
+    }
+
+    /**
+     * Publish a stream for the given component.
+     *
+     * @return the handle of the stream
+     */
+    String publish(AppletIntegration owner, StreamSource source, long length,
+            String mimeType, long timeout) {
+        removeExpiredStreams();
+        String handle = createToken();
+        streams.put(handle, new PublishedStream(owner, source, length,
+                mimeType, timeout));
+        return handle;
+    }
+
+    void unpublish(String handle) {
+        streams.remove(handle);
+    }
+
+    /**
+     * Remove all of the streams published for a component.
+     *
+     * @param owner
+     */
+    void unpublishAll(AppletIntegration owner) {
+        for (Iterator<PublishedStream> it = streams.values().iterator(); it
+                .hasNext();) {
+            if (it.next().owner == owner) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Create a one-time token for launching a detached applet for the given
+     * component.
+     *
+     * @param owner
+     * @return the token
+     */
+    String createLaunchToken(AppletIntegration owner) {
+        String token = createToken();
+        launchTokens.put(token, owner);
+        return token;
+    }
+
+    /**
+     * Close the detached applet connections and remove the unused launch
+     * tokens of a component.
+     *
+     * @param owner
+     */
+    void closeChannels(AppletIntegration owner) {
+        for (Iterator<AppletIntegration> it = launchTokens.values()
+                .iterator(); it.hasNext();) {
+            if (it.next() == owner) {
+                it.remove();
+            }
+        }
+        for (Iterator<DetachedChannel> it = channels.values().iterator(); it
+                .hasNext();) {
+            DetachedChannel channel = it.next();
+            if (channel.owner == owner) {
+                channel.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove a closed detached applet connection.
+     *
+     * @param channel
+     */
+    void removeChannel(DetachedChannel channel) {
+        channels.remove(channel.id);
+    }
+
+    private void removeExpiredStreams() {
+        long now = System.currentTimeMillis();
+        for (Iterator<PublishedStream> it = streams.values().iterator(); it
+                .hasNext();) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean handleRequest(VaadinSession session, VaadinRequest request,
+            VaadinResponse response) throws IOException {
+        String path = request.getPathInfo();
+        if (path == null) {
+            return false;
+        }
+        if (path.startsWith("/" + PATH)) {
+            handleMessages(session, request, response,
+                    path.substring(PATH.length() + 1));
+            return true;
+        }
+        if (path.startsWith("/" + STREAM_PATH)) {
+            handleStream(session, request, response,
+                    path.substring(STREAM_PATH.length() + 1));
+            return true;
+        }
+        if (path.startsWith("/" + DETACHED_PATH)) {
+            handleDetached(session, request, response,
+                    path.substring(DETACHED_PATH.length() + 1));
+            return true;
+        }
+        return false;
+    }
+
+    private void handleMessages(VaadinSession session, VaadinRequest request,
+            VaadinResponse response, String token) throws IOException {
+        if (!applets.containsKey(token)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Unknown applet");
+            return;
+        }
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    "POST required");
+            return;
+        }
+        if (request.getContentLength() > MAX_BATCH_LENGTH) {
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Message batch too large");
+            return;
+        }
+
+        // Read the messages before locking the session
+        List<byte[]> messages;
+        InputStream in = request.getInputStream();
+        try {
+            messages = MessageFraming.read(in, MAX_BATCH_LENGTH);
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    e.getMessage());
+            return;
+        } finally {
+            in.close();
+        }
+
+        session.lock();
+        try {
+            AppletIntegration applet = applets.get(token);
+            if (applet == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "Unknown applet");
+                return;
+            }
+            if (!messages.isEmpty()) {
+                applet.fireMessagesReceived(messages);
+            }
+        } finally {
+            session.unlock();
+        }
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    /**
+     * Serve a published stream. Supports single byte range requests of the
+     * forms "bytes=start-" and "bytes=start-end" so that interrupted
+     * downloads can be resumed.
+     */
+    private void handleStream(VaadinSession session, VaadinRequest request,
+            VaadinResponse response, String handle) throws IOException {
+        PublishedStream stream = streams.get(handle);
+        long now = System.currentTimeMillis();
+        if (stream == null || stream.isExpired(now)) {
+            streams.remove(handle);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Unknown stream");
+            return;
+        }
+        if (!"GET".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    "GET required");
+            return;
+        }
+        stream.lastAccess = now;
+
+        long start = 0;
+        long end = stream.length - 1;
+        String range = request.getHeader("Range");
+        boolean partial = range != null;
+        if (partial) {
+            try {
+                if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+                    throw new NumberFormatException(range);
+                }
+                int dash = range.indexOf('-');
+                start = Long.parseLong(range.substring(6, dash));
+                if (dash < range.length() - 1) {
+                    end = Math.min(end,
+                            Long.parseLong(range.substring(dash + 1)));
+                }
+            } catch (RuntimeException e) {
+                start = -1;
+            }
+            if (start < 0 || start > end) {
+                response.setHeader("Content-Range", "bytes */"
+                        + stream.length);
+                response.sendError(
+                        HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "Invalid range " + range);
+                return;
+            }
+        }
+
+        // Open the stream while holding the lock, write it without
+        InputStream in;
+        session.lock();
+        try {
+            in = stream.source.getStream();
+        } finally {
+            session.unlock();
+        }
+        if (in == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Stream not available");
+            return;
+        }
+        try {
+            skipFully(in, start);
+            response.setStatus(partial ? HttpServletResponse.SC_PARTIAL_CONTENT
+                    : HttpServletResponse.SC_OK);
+            response.setContentType(stream.mimeType);
+            response.setCacheTime(0);
+            response.setHeader("Accept-Ranges", "bytes");
+            response.setHeader("Content-Length",
+                    String.valueOf(end - start + 1));
+            if (partial) {
+                response.setHeader("Content-Range", "bytes " + start + "-"
+                        + end + "/" + stream.length);
+            }
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+                stream.lastAccess = System.currentTimeMillis();
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Handle a request of a detached applet. The first request uses the
+     * one-time launch token and gets the channel id, applet class and
+     * parameters in reply. The following requests post the variables sent by
+     * the applet, which are rejected while the component is disabled or
+     * read-only. Polls of the applet also acknowledge the commands up to the
+     * number given in the "ack" parameter and get the unacknowledged commands
+     * in reply, waiting up to the number of milliseconds given in the "wait"
+     * parameter for them.
+     */
+    private void handleDetached(VaadinSession session, VaadinRequest request,
+            VaadinResponse response, String id) throws IOException {
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    "POST required");
+            return;
+        }
+        AppletIntegration launched = launchTokens.remove(id);
+        if (launched != null) {
+            connectDetached(session, response, launched);
+            return;
+        }
+        DetachedChannel channel = channels.get(id);
+        if (channel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Unknown applet");
+            return;
+        }
+        if (request.getContentLength() > MAX_BATCH_LENGTH) {
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Variable batch too large");
+            return;
+        }
+
+        // Decode the variables before locking the session
+        Map<String, Object> variables = new LinkedHashMap<String, Object>();
+        InputStream in = request.getInputStream();
+        try {
+            for (byte[] frame : MessageFraming.read(in, MAX_BATCH_LENGTH)) {
+                DetachedProtocol.Frame f = DetachedProtocol.decode(frame);
+                if (f.type != DetachedProtocol.VARIABLE) {
+                    throw new IOException("Unexpected frame " + f.type);
+                }
+                variables.put(f.name, f.value);
+            }
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    e.getMessage());
+            return;
+        } finally {
+            in.close();
+        }
+        if (!variables.isEmpty()) {
+            boolean accepted;
+            session.lock();
+            try {
+                // Same checks as for the variables sent through the client
+                AppletIntegration owner = channel.owner;
+                accepted = owner.isConnectorEnabled() && !owner.isReadOnly();
+                if (accepted && !channel.isClosed()) {
+                    owner.changeVariables(owner, variables);
+                }
+            } finally {
+                session.unlock();
+            }
+            if (!accepted) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                        "Applet disabled or read-only");
+                return;
+            }
+        }
+
+        String ack = request.getParameter("ack");
+        if (ack == null) {
+            // Variables only
+            if (channel.isClosed()) {
+                response.sendError(HttpServletResponse.SC_GONE,
+                        "Applet closed");
+                return;
+            }
+            writeFrames(response, Collections.<byte[]> emptyList());
+            return;
+        }
+
+        // Wait for commands without holding the lock
+        long acknowledged;
+        long wait = 0;
+        try {
+            acknowledged = Long.parseLong(ack);
+            String param = request.getParameter("wait");
+            if (param != null) {
+                wait = Math.max(0, Math.min(MAX_POLL_WAIT,
+                        Long.parseLong(param)));
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid poll");
+            return;
+        }
+        List<byte[]> frames;
+        try {
+            frames = channel.take(acknowledged, wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Interrupted");
+            return;
+        }
+        if (channel.isClosed()) {
+            response.sendError(HttpServletResponse.SC_GONE, "Applet closed");
+            return;
+        }
+        writeFrames(response, frames);
+    }
+
+    private void connectDetached(VaadinSession session,
+            VaadinResponse response, AppletIntegration applet)
+            throws IOException {
+        DetachedChannel channel = new DetachedChannel(createToken(), applet);
+        byte[] connected;
+        session.lock();
+        try {
+            if (!applet.isAttached()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        "Unknown applet");
+                return;
+            }
+            channels.put(channel.id, channel);
+            DetachedChannel previous = applet.setDetachedChannel(channel);
+            if (previous != null) {
+                channels.remove(previous.id);
+            }
+            connected = DetachedProtocol.connected(channel.id,
+                    applet.getAppletClass(),
+                    applet.getEffectiveAppletParams());
+        } finally {
+            session.unlock();
+        }
+        writeFrames(response, Collections.singletonList(connected));
+    }
+
+    private static void writeFrames(VaadinResponse response,
+            List<byte[]> frames) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/octet-stream");
+        response.setCacheTime(0);
+        response.setHeader("Content-Length",
+                String.valueOf(MessageFraming.getFramedLength(frames)));
+        DataOutputStream out = new DataOutputStream(
+                response.getOutputStream());
+        MessageFraming.write(out, frames);
+    }
+
+    private static void skipFully(InputStream in, long count)
+            throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Stream ended before the range");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Stream published for an applet. Expires when it has not been accessed
+     * within its timeout.
+     */
+    private static class PublishedStream implements Serializable {
+
+        private static final long serialVersionUID = 8716235540128476530L;
+
+        private final AppletIntegration owner;
+        private final StreamSource source;
+        private final long length;
+        private final String mimeType;
+        private final long timeout;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        PublishedStream(AppletIntegration owner, StreamSource source,
+                long length, String mimeType, long timeout) {
+            this.owner = owner;
+            this.source = source;
+            this.length = length;
+            this.mimeType = mimeType;
+            this.timeout = timeout;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastAccess > timeout;
+        }
+    }
+}
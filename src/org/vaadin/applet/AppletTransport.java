@@ -0,0 +1,43 @@
+package org.vaadin.applet;
+
+/**
+ * Transport of the variables sent by {@link AbstractVaadinApplet} to its
+ * server-side component.
+ *
+ * In the browser the variables are passed to the Vaadin client-side engine
+ * with LiveConnect. A detached applet started by
+ * {@link DetachedAppletLauncher} sends them directly to the server with
+ * {@link DetachedTransport}, which also receives the commands.
+ */
+interface AppletTransport {
+
+    /**
+     * Send a variable.
+     *
+     * @param variableName
+     * @param value
+     *            Boolean, Integer, Long, Float, Double, String or String[].
+     * @param immediate
+     *            Whether the variable should be sent right away or with the
+     *            next request.
+     */
+    void updateVariable(String variableName, Object value, boolean immediate);
+
+    /**
+     * Synchronize with the server, sending the queued variables.
+     *
+     * @param wait
+     *            Whether to wait for the synchronization to be started.
+     */
+    void sync(boolean wait);
+
+    /**
+     * Tell the client that the applet has been initialized.
+     */
+    void ready();
+
+    /**
+     * Close the transport when the applet is destroyed.
+     */
+    void close();
+}
@@ -0,0 +1,146 @@
+package org.vaadin.applet;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.vaadin.applet.AppletIntegration.CommandPriority;
+
+/**
+ * Command encoded once and sent to any number of applets with
+ * {@link AppletIntegration#executeCommand(BroadcastCommand)} or
+ * {@link AppletIntegration#broadcast(BroadcastCommand, Iterable)}.
+ *
+ * The parameters are copied, packed and optionally compressed when the
+ * command is created, typically outside of any session lock. The encoded
+ * form is immutable and shared by the command queues of all the target
+ * components instead of being copied for each of them.
+ */
+public final class BroadcastCommand implements Serializable {
+
+    private static final long serialVersionUID = -2402338312946398157L;
+
+    private final String command;
+    private final String[] params;
+    private final CommandPriority priority;
+    private transient volatile byte[] detachedFrame;
+
+    /**
+     * Create a normal priority command.
+     *
+     * @param command
+     * @param params
+     */
+    public BroadcastCommand(String command, String[] params) {
+        this(command, params, CommandPriority.NORMAL, 0);
+    }
+
+    /**
+     * Create a command.
+     *
+     * @param command
+     * @param params
+     * @param priority
+     * @param compressionThreshold
+     *            Parameters longer than this many characters are deflated if
+     *            that makes them shorter. The applet inflates them before
+     *            executing the command. 0 disables compression.
+     */
+    public BroadcastCommand(String command, String[] params,
+            CommandPriority priority, int compressionThreshold) {
+        if (command == null) {
+            throw new IllegalArgumentException("Command cannot be null");
+        }
+        this.command = command;
+        this.priority = priority == null ? CommandPriority.NORMAL : priority;
+        if (params != null) {
+            params = params.clone();
+            if (compressionThreshold > 0) {
+                for (int i = 0; i < params.length; i++) {
+                    if (params[i] != null
+                            && params[i].length() > compressionThreshold) {
+                        params[i] = PayloadCodec.deflate(params[i]);
+                    }
+                }
+            }
+        }
+        this.params = params;
+    }
+
+    /**
+     * Create a normal priority command with an array of integers as the
+     * parameter.
+     *
+     * @param command
+     * @param values
+     * @see AppletIntegration#executeCommandWithInts(String, int[])
+     */
+    public static BroadcastCommand withInts(String command, int[] values) {
+        return new BroadcastCommand(command,
+                new String[] { PayloadCodec.pack(values) });
+    }
+
+    /**
+     * Create a normal priority command with an array of longs as the
+     * parameter.
+     *
+     * @param command
+     * @param values
+     * @see AppletIntegration#executeCommandWithLongs(String, long[])
+     */
+    public static BroadcastCommand withLongs(String command, long[] values) {
+        return new BroadcastCommand(command,
+                new String[] { PayloadCodec.pack(values) });
+    }
+
+    /**
+     * Create a normal priority command with an array of doubles as the
+     * parameter.
+     *
+     * @param command
+     * @param values
+     * @see AppletIntegration#executeCommandWithDoubles(String, double[])
+     */
+    public static BroadcastCommand withDoubles(String command, double[] values) {
+        return new BroadcastCommand(command,
+                new String[] { PayloadCodec.pack(values) });
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public CommandPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Get the encoded parameters shared by the command queues. The array
+     * must not be modified.
+     *
+     * @return
+     */
+    String[] getEncodedParams() {
+        return params;
+    }
+
+    /**
+     * Get the command encoded for a detached applet. The array must not be
+     * modified.
+     *
+     * @return
+     */
+    byte[] getDetachedFrame() {
+        byte[] frame = detachedFrame;
+        if (frame == null) {
+            frame = DetachedProtocol.command(command, params,
+                    priority.getValue());
+            detachedFrame = frame;
+        }
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        return command + Arrays.toString(params);
+    }
+}
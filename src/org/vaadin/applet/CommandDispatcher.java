@@ -0,0 +1,278 @@
+package org.vaadin.applet;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dispatches commands to the {@link CommandHandler} methods of an applet.
+ *
+ * The handler methods of each applet class are resolved once into method
+ * handles. Each applet instance gets a map from command name to handles bound
+ * to the instance, so dispatching takes constant time regardless of the
+ * number of commands.
+ */
+final class CommandDispatcher {
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(
+            Object.class, Object[].class);
+
+    /** Handler methods of each applet class. */
+    private static final Map<Class<?>, Map<String, Handler>> handlersByClass = new ConcurrentHashMap<Class<?>, Map<String, Handler>>();
+
+    private final Map<String, BoundHandler> handlers;
+
+    private CommandDispatcher(Map<String, BoundHandler> handlers) {
+        this.handlers = handlers;
+    }
+
+    /**
+     * Create a dispatcher for the handler methods of an applet.
+     *
+     * @param applet
+     * @return the dispatcher or null if the applet has no handler methods
+     */
+    static CommandDispatcher create(Object applet) {
+        Map<String, Handler> classHandlers = getHandlers(applet.getClass());
+        if (classHandlers.isEmpty()) {
+            return null;
+        }
+        Map<String, BoundHandler> bound = new HashMap<String, BoundHandler>(
+                classHandlers.size() * 2);
+        for (Map.Entry<String, Handler> e : classHandlers.entrySet()) {
+            bound.put(e.getKey(), e.getValue().bindTo(applet));
+        }
+        return new CommandDispatcher(bound);
+    }
+
+    private static Map<String, Handler> getHandlers(Class<?> appletClass) {
+        Map<String, Handler> handlers = handlersByClass.get(appletClass);
+        if (handlers == null) {
+            handlers = resolveHandlers(appletClass);
+            handlersByClass.put(appletClass, handlers);
+        }
+        return handlers;
+    }
+
+    private static Map<String, Handler> resolveHandlers(Class<?> appletClass) {
+        Map<String, Handler> handlers = new HashMap<String, Handler>();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (Method method : appletClass.getMethods()) {
+            CommandHandler annotation = method
+                    .getAnnotation(CommandHandler.class);
+            if (annotation == null) {
+                continue;
+            }
+            if (handlers.containsKey(annotation.value())) {
+                throw new IllegalStateException("Duplicate handler for command "
+                        + annotation.value() + " in " + appletClass.getName());
+            }
+            try {
+                handlers.put(annotation.value(),
+                        new Handler(lookup.unreflect(method),
+                                method.getParameterTypes(), annotation
+                                        .feature()));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access handler "
+                        + method, e);
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Execute a command if there is a handler for it.
+     *
+     * @param command
+     * @param params
+     * @return true if the command was handled
+     */
+    boolean dispatch(String command, Object[] params) {
+        BoundHandler handler = handlers.get(command);
+        if (handler == null) {
+            return false;
+        }
+        handler.invoke(params);
+        return true;
+    }
+
+    /**
+     * Get the feature needed by the handler of a command.
+     *
+     * @param command
+     * @return the feature name or null if the handler needs no feature or
+     *         there is no handler for the command
+     * @see CommandHandler#feature()
+     */
+    String getFeature(String command) {
+        BoundHandler handler = handlers.get(command);
+        return handler == null ? null : handler.handler.feature;
+    }
+
+    /**
+     * Handler method resolved for an applet class.
+     */
+    private static final class Handler {
+
+        private final MethodHandle method;
+        private final Class<?>[] types;
+        private final boolean raw;
+        private final boolean rest;
+        private final String feature;
+
+        Handler(MethodHandle method, Class<?>[] types, String feature) {
+            this.method = method;
+            this.types = types;
+            this.feature = feature.isEmpty() ? null : feature;
+            raw = types.length == 1 && types[0] == Object[].class;
+            rest = !raw && types.length > 0
+                    && types[types.length - 1] == String[].class;
+            for (int i = 0; i < types.length; i++) {
+                if (!raw && !(rest && i == types.length - 1)
+                        && !isSupported(types[i])) {
+                    throw new IllegalStateException("Unsupported parameter "
+                            + types[i].getName() + " in handler " + method);
+                }
+            }
+        }
+
+        BoundHandler bindTo(Object applet) {
+            MethodHandle bound = method.bindTo(applet)
+                    .asSpreader(Object[].class, types.length)
+                    .asType(INVOKER_TYPE);
+            return new BoundHandler(this, bound);
+        }
+
+        /**
+         * Convert the command parameters to the arguments of the method.
+         */
+        Object[] convert(Object[] params) {
+            if (params == null) {
+                params = new Object[0];
+            }
+            if (raw) {
+                return new Object[] { params };
+            }
+            Object[] args = new Object[types.length];
+            int fixed = rest ? types.length - 1 : types.length;
+            for (int i = 0; i < fixed; i++) {
+                args[i] = convert(i < params.length ? params[i] : null,
+                        types[i]);
+            }
+            if (rest) {
+                String[] remaining = new String[Math.max(0, params.length
+                        - fixed)];
+                for (int i = 0; i < remaining.length; i++) {
+                    Object value = params[fixed + i];
+                    remaining[i] = value == null ? null : value.toString();
+                }
+                args[fixed] = remaining;
+            }
+            return args;
+        }
+
+        private static boolean isSupported(Class<?> type) {
+            return type == String.class || type == Object.class
+                    || type.isPrimitive() || type == Integer.class
+                    || type == Long.class || type == Double.class
+                    || type == Float.class || type == Boolean.class
+                    || type == Short.class || type == Byte.class
+                    || type == Character.class || type == int[].class
+                    || type == long[].class || type == double[].class;
+        }
+
+        private static Object convert(Object value, Class<?> type) {
+            if (value == null || "".equals(value) && type != String.class) {
+                return type.isPrimitive() ? defaultValue(type) : null;
+            }
+            if (type.isInstance(value) || type == Object.class) {
+                return value;
+            }
+            String s = value.toString();
+            if (type == String.class) {
+                return s;
+            } else if (type == int.class || type == Integer.class) {
+                return Integer.valueOf(toNumber(value, s).intValue());
+            } else if (type == long.class || type == Long.class) {
+                return Long.valueOf(value instanceof Number ? ((Number) value)
+                        .longValue() : Long.parseLong(s));
+            } else if (type == double.class || type == Double.class) {
+                return Double.valueOf(value instanceof Number ? ((Number) value)
+                        .doubleValue() : Double.parseDouble(s));
+            } else if (type == float.class || type == Float.class) {
+                return Float.valueOf(value instanceof Number ? ((Number) value)
+                        .floatValue() : Float.parseFloat(s));
+            } else if (type == boolean.class || type == Boolean.class) {
+                return Boolean.valueOf(s);
+            } else if (type == short.class || type == Short.class) {
+                return Short.valueOf(toNumber(value, s).shortValue());
+            } else if (type == byte.class || type == Byte.class) {
+                return Byte.valueOf(toNumber(value, s).byteValue());
+            } else if (type == char.class || type == Character.class) {
+                return Character.valueOf(s.charAt(0));
+            }
+            throw new IllegalArgumentException("Cannot convert " + value
+                    + " to " + type.getName());
+        }
+
+        private static Number toNumber(Object value, String s) {
+            if (value instanceof Number) {
+                return (Number) value;
+            }
+            // JavaScript numbers may arrive as "1.0"
+            return s.indexOf('.') < 0 ? Long.valueOf(s) : Double.valueOf(s);
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == char.class) {
+                return Character.valueOf((char) 0);
+            } else if (type == long.class) {
+                return Long.valueOf(0);
+            } else if (type == double.class) {
+                return Double.valueOf(0);
+            } else if (type == float.class) {
+                return Float.valueOf(0);
+            } else if (type == short.class) {
+                return Short.valueOf((short) 0);
+            } else if (type == byte.class) {
+                return Byte.valueOf((byte) 0);
+            }
+            return Integer.valueOf(0);
+        }
+    }
+
+    /**
+     * Handler bound to an applet instance.
+     */
+    private static final class BoundHandler {
+
+        private final Handler handler;
+        private final MethodHandle invoker;
+
+        BoundHandler(Handler handler, MethodHandle invoker) {
+            this.handler = handler;
+            this.invoker = invoker;
+        }
+
+        void invoke(Object[] params) {
+            Object[] args = handler.convert(params);
+            try {
+                Object ignored = (Object) invoker.invokeExact(args);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Command handler failed: "
+                        + Arrays.toString(params), e);
+            }
+        }
+    }
+}
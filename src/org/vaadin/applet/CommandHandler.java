@@ -0,0 +1,54 @@
+package org.vaadin.applet;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a public method of an {@link AbstractVaadinApplet} subclass as the
+ * handler of a command, as an alternative to implementing
+ * {@link AbstractVaadinApplet#doExecute(String, Object[])}.
+ *
+ * The command parameters are converted to the declared parameter types of the
+ * method. Supported types are String, the primitive types and their
+ * wrappers, and int[], long[] and double[] for the arrays sent with
+ * {@link AppletIntegration#executeCommandWithInts(String, int[])},
+ * {@link AppletIntegration#executeCommandWithLongs(String, long[])} and
+ * {@link AppletIntegration#executeCommandWithDoubles(String, double[])}. A
+ * trailing String[] parameter receives the remaining parameters, and a
+ * single Object[] parameter receives the parameters as they are. Missing
+ * parameters are passed as null, or as zero or false for primitive types.
+ *
+ * <pre>
+ * &#064;CommandHandler(&quot;zoom&quot;)
+ * public void zoom(double factor, int x, int y) {
+ *     ...
+ * }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CommandHandler {
+
+    /**
+     * @return the name of the command handled by the method
+     */
+    String value();
+
+    /**
+     * Name of a feature declared with
+     * {@link AppletIntegration#setFeatureArchives(java.util.Map)} that the
+     * handler needs. The feature archive starts downloading in the
+     * background when the command is received, and the handler is called
+     * once it has been loaded. Commands queued before it are executed
+     * meanwhile.
+     *
+     * @return the feature name or an empty string if the handler only needs
+     *         the applet archives
+     * @see FeatureLoader
+     */
+    String feature() default "";
+}
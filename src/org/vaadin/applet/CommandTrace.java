@@ -0,0 +1,81 @@
+package org.vaadin.applet;
+
+/**
+ * Timestamps of a traced command on the client side, recorded by the widget
+ * and the applet and returned to the server.
+ *
+ * The widget and the applet run on the same machine, so their timestamps are
+ * comparable with each other but not with the server clock. The trace is
+ * written as "id:clientReceived:clientDelivered:appletReceived:appletStarted:
+ * appletEnded:replied", where replied is 0 if the command did not send a
+ * variable while it was executed.
+ *
+ * @see AppletIntegration#setCommandTracing(boolean)
+ */
+final class CommandTrace {
+
+    final String id;
+    final long clientReceived;
+    final long clientDelivered;
+    long appletReceived;
+    long appletStarted;
+    long appletEnded;
+    long replied;
+
+    private CommandTrace(String id, long clientReceived, long clientDelivered) {
+        this.id = id;
+        this.clientReceived = clientReceived;
+        this.clientDelivered = clientDelivered;
+    }
+
+    /**
+     * Parse the trace passed by the widget to the applet in format
+     * "id:clientReceived:clientDelivered".
+     *
+     * @param trace
+     * @return the trace or null if it is malformed
+     */
+    static CommandTrace received(String trace) {
+        String[] parts = trace.split(":");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new CommandTrace(parts[0], Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a trace returned by the applet.
+     *
+     * @param trace
+     * @return the trace or null if it is malformed
+     */
+    static CommandTrace parse(String trace) {
+        String[] parts = trace.split(":");
+        if (parts.length != 7) {
+            return null;
+        }
+        try {
+            CommandTrace res = new CommandTrace(parts[0],
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            res.appletReceived = Long.parseLong(parts[3]);
+            res.appletStarted = Long.parseLong(parts[4]);
+            res.appletEnded = Long.parseLong(parts[5]);
+            res.replied = Long.parseLong(parts[6]);
+            return res;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return id + ":" + clientReceived + ":" + clientDelivered + ":"
+                + appletReceived + ":" + appletStarted + ":" + appletEnded
+                + ":" + replied;
+    }
+}
@@ -0,0 +1,194 @@
+package org.vaadin.applet;
+
+import java.applet.Applet;
+import java.applet.AppletContext;
+import java.applet.AppletStub;
+import java.awt.BorderLayout;
+import java.awt.Frame;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs an {@link AbstractVaadinApplet} in a standalone JVM, detached from the
+ * browser. The applet connects directly to its server-side
+ * {@link AppletIntegration} with HTTP, so commands and variables do not go
+ * through LiveConnect, JavaScript and the Vaadin client-side engine. The
+ * applet uses the same {@link AbstractVaadinApplet#doExecute(String, Object[])}
+ * and {@link AbstractVaadinApplet#vaadinUpdateVariable(String, String, boolean)}
+ * API as in the browser, but JavaScript calls such as
+ * {@link AbstractVaadinApplet#jsCallAsync(String)} are not available.
+ *
+ * The launch URL is the service URL of the application followed by the
+ * one-time path returned by
+ * {@link AppletIntegration#createDetachedLaunchPath()}. The applet class and
+ * parameters are received from the server. The applet classes must be in the
+ * classpath of the launcher.
+ *
+ * Usage: <code>java org.vaadin.applet.DetachedAppletLauncher launchUrl
+ * [sessionCookie]</code>, where the session cookie is e.g.
+ * "JSESSIONID=...".
+ */
+public class DetachedAppletLauncher {
+
+    private final URL launchUrl;
+    private final String sessionCookie;
+
+    public DetachedAppletLauncher(URL launchUrl, String sessionCookie) {
+        this.launchUrl = launchUrl;
+        this.sessionCookie = sessionCookie;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java "
+                    + DetachedAppletLauncher.class.getName()
+                    + " launchUrl [sessionCookie]");
+            System.exit(1);
+        }
+        final Applet applet = new DetachedAppletLauncher(new URL(args[0]),
+                args.length > 1 ? args[1] : null).launch();
+
+        final Frame frame = new Frame(applet.getClass().getSimpleName());
+        frame.setLayout(new BorderLayout());
+        frame.add(applet, BorderLayout.CENTER);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                applet.stop();
+                applet.destroy();
+                frame.dispose();
+                System.exit(0);
+            }
+        });
+        frame.setSize(parseSize(applet.getParameter("width"), 400),
+                parseSize(applet.getParameter("height"), 300));
+        frame.setVisible(true);
+        applet.start();
+    }
+
+    private static int parseSize(String size, int defaultSize) {
+        try {
+            return size == null ? defaultSize : Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Connect to the server, then create and initialize the applet. The
+     * caller is responsible for starting, stopping and destroying the
+     * applet.
+     *
+     * @return the initialized applet
+     * @throws IOException
+     *             if connecting failed, e.g. because the launch path has
+     *             already been used
+     * @throws ReflectiveOperationException
+     *             if the applet class could not be instantiated
+     */
+    public Applet launch() throws IOException, ReflectiveOperationException {
+        DetachedProtocol.Frame connected = connect();
+
+        Map<String, String> params = new HashMap<String, String>(
+                connected.params);
+        params.put(AbstractVaadinApplet.PARAM_DETACHED_URL, connected.name);
+        if (sessionCookie != null) {
+            params.put(AbstractVaadinApplet.PARAM_APP_SESSION, sessionCookie);
+        }
+
+        Applet applet = (Applet) Class.forName(connected.appletClass)
+                .newInstance();
+        applet.setStub(new DetachedAppletStub(launchUrl, params));
+        applet.init();
+        return applet;
+    }
+
+    private DetachedProtocol.Frame connect() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) launchUrl
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        if (sessionCookie != null) {
+            connection.setRequestProperty("Cookie", sessionCookie);
+        }
+        connection.setFixedLengthStreamingMode(0);
+        DataOutputStream out = new DataOutputStream(
+                connection.getOutputStream());
+        out.close();
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Connecting to " + launchUrl + " failed: "
+                    + status + " " + connection.getResponseMessage());
+        }
+        InputStream in = connection.getInputStream();
+        List<byte[]> frames;
+        try {
+            frames = MessageFraming.read(in, AppletRpcHandler.MAX_BATCH_LENGTH);
+        } finally {
+            in.close();
+        }
+        if (frames.size() != 1) {
+            throw new IOException("Unexpected reply to connecting");
+        }
+        DetachedProtocol.Frame connected = DetachedProtocol.decode(frames
+                .get(0));
+        if (connected.type != DetachedProtocol.CONNECTED) {
+            throw new IOException("Unexpected reply to connecting");
+        }
+        return connected;
+    }
+
+    /**
+     * Stub giving the detached applet its parameters. The launch URL is used
+     * as the document and code base.
+     */
+    private static class DetachedAppletStub implements AppletStub {
+
+        private final URL base;
+        private final Map<String, String> params;
+
+        DetachedAppletStub(URL base, Map<String, String> params) {
+            this.base = base;
+            this.params = params;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public URL getDocumentBase() {
+            return base;
+        }
+
+        @Override
+        public URL getCodeBase() {
+            return base;
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return params.get(name);
+        }
+
+        @Override
+        public AppletContext getAppletContext() {
+            return null;
+        }
+
+        @Override
+        public void appletResize(int width, int height) {
+        }
+    }
+}
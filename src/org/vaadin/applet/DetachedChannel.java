@@ -0,0 +1,134 @@
+package org.vaadin.applet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side of the connection of a detached applet. Holds the encoded
+ * commands until the applet acknowledges them.
+ *
+ * Commands are numbered in the order they are offered. Each poll of the
+ * applet acknowledges the last command it received, and the reply to the
+ * poll contains the number of its first command followed by all the commands
+ * not yet acknowledged. A reply lost on the way is thus sent again with the
+ * next poll instead of losing its commands.
+ *
+ * A channel expires when the applet has not polled it for {@link #TIMEOUT}
+ * milliseconds, and refuses new commands when {@link #MAX_QUEUED_COMMANDS}
+ * are waiting for an acknowledgement. The owner then closes the channel and
+ * queues the unacknowledged commands for the applet in the page instead.
+ *
+ * @see AppletIntegration#createDetachedLaunchPath()
+ */
+final class DetachedChannel implements Serializable {
+
+    private static final long serialVersionUID = 3150276421979384018L;
+
+    /** Time in milliseconds after the last poll when the channel expires. */
+    static final long TIMEOUT = 2 * AppletRpcHandler.MAX_POLL_WAIT;
+
+    /** Maximum number of commands waiting for an acknowledgement. */
+    static final int MAX_QUEUED_COMMANDS = 10000;
+
+    final String id;
+    final AppletIntegration owner;
+
+    private final List<byte[]> commands = new ArrayList<byte[]>();
+    /** Number of the first command in the list. */
+    private long firstSequence = 1;
+    private long lastPolled = System.currentTimeMillis();
+    private transient int polls;
+    private boolean closed;
+
+    DetachedChannel(String id, AppletIntegration owner) {
+        this.id = id;
+        this.owner = owner;
+    }
+
+    /**
+     * Queue a command for the applet.
+     *
+     * @param command
+     *            Command encoded with {@link DetachedProtocol}.
+     * @return false if the channel is closed, has expired or has too many
+     *         unacknowledged commands, in which case the command was not
+     *         queued
+     */
+    synchronized boolean offer(byte[] command) {
+        if (closed || isExpired(System.currentTimeMillis())
+                || commands.size() >= MAX_QUEUED_COMMANDS) {
+            return false;
+        }
+        commands.add(command);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Acknowledge the commands received by the applet and take the
+     * remaining ones, waiting for new commands if there are none.
+     *
+     * @param acknowledged
+     *            Number of the last command the applet received, 0 if none.
+     * @param wait
+     *            Maximum time to wait in milliseconds.
+     * @return the frames of the reply: a {@link DetachedProtocol#SEQUENCE}
+     *         frame with the number of the first command, followed by the
+     *         commands
+     * @throws InterruptedException
+     */
+    synchronized List<byte[]> take(long acknowledged, long wait)
+            throws InterruptedException {
+        polls++;
+        try {
+            long count = Math.min(commands.size(),
+                    Math.max(0, acknowledged - firstSequence + 1));
+            commands.subList(0, (int) count).clear();
+            firstSequence += count;
+
+            long deadline = System.currentTimeMillis() + wait;
+            while (commands.isEmpty() && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining);
+            }
+            List<byte[]> res = new ArrayList<byte[]>(commands.size() + 1);
+            res.add(DetachedProtocol.sequence(firstSequence));
+            res.addAll(commands);
+            return res;
+        } finally {
+            polls--;
+            lastPolled = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Check if the applet has not polled the channel within the timeout.
+     *
+     * @param now
+     * @return
+     */
+    synchronized boolean isExpired(long now) {
+        return polls == 0 && now - lastPolled > TIMEOUT;
+    }
+
+    /**
+     * Close the channel, ending any waiting poll.
+     *
+     * @return the commands the applet has not acknowledged
+     */
+    synchronized List<byte[]> close() {
+        closed = true;
+        notifyAll();
+        List<byte[]> res = new ArrayList<byte[]>(commands);
+        commands.clear();
+        return res;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,262 @@
+package org.vaadin.applet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary frames exchanged between a detached applet and its server-side
+ * component. The frames are batched with {@link MessageFraming}.
+ *
+ * Strings are written as a four byte length, -1 for null, followed by their
+ * UTF-8 bytes, so that command parameters are not limited to 64 kB like
+ * with {@link DataOutputStream#writeUTF(String)}.
+ *
+ * @see DetachedAppletLauncher
+ */
+final class DetachedProtocol {
+
+    /** Reply to connecting: channel id, applet class and parameters. */
+    static final byte CONNECTED = 1;
+    /** Command from the server: command, priority and parameters. */
+    static final byte COMMAND = 2;
+    /** Variable from the applet: name and typed value. */
+    static final byte VARIABLE = 3;
+    /** First frame of a poll reply: number of the first command. */
+    static final byte SEQUENCE = 4;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte STRING_ARRAY = 7;
+
+    private DetachedProtocol() {
+    }
+
+    static byte[] connected(String channel, String appletClass,
+            Map<String, String> params) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(CONNECTED);
+            writeString(out, channel);
+            writeString(out, appletClass);
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] command(String command, String[] params, int priority) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(COMMAND);
+            writeString(out, command);
+            out.writeByte(priority);
+            out.writeInt(params == null ? -1 : params.length);
+            if (params != null) {
+                for (String param : params) {
+                    writeString(out, param);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] sequence(long sequence) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(SEQUENCE);
+            out.writeLong(sequence);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode a variable. The value must be null, a Boolean, Integer, Long,
+     * Float, Double, String or String[].
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    static byte[] variable(String name, Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VARIABLE);
+            writeString(out, name);
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean(((Boolean) value).booleanValue());
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt(((Integer) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong(((Long) value).longValue());
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat(((Float) value).floatValue());
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble(((Double) value).doubleValue());
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof String[]) {
+                String[] values = (String[]) value;
+                out.writeByte(STRING_ARRAY);
+                out.writeInt(values.length);
+                for (String v : values) {
+                    writeString(out, v);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported value type "
+                        + value.getClass().getName());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode a frame.
+     *
+     * @param frame
+     * @return
+     * @throws IOException
+     *             if the frame is malformed
+     */
+    static Frame decode(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                frame));
+        Frame res = new Frame(in.readByte());
+        switch (res.type) {
+        case CONNECTED:
+            res.name = readString(in);
+            res.appletClass = readString(in);
+            int size = in.readInt();
+            res.params = new LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                res.params.put(readString(in), readString(in));
+            }
+            break;
+        case COMMAND:
+            res.name = readString(in);
+            res.priority = in.readByte();
+            int count = in.readInt();
+            if (count >= 0) {
+                res.args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    res.args[i] = readString(in);
+                }
+            }
+            break;
+        case VARIABLE:
+            res.name = readString(in);
+            res.value = readValue(in);
+            break;
+        case SEQUENCE:
+            res.sequence = in.readLong();
+            break;
+        default:
+            throw new IOException("Unknown frame type " + res.type);
+        }
+        return res;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+        case INT:
+            return Integer.valueOf(in.readInt());
+        case LONG:
+            return Long.valueOf(in.readLong());
+        case FLOAT:
+            return Float.valueOf(in.readFloat());
+        case DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case STRING:
+            return readString(in);
+        case STRING_ARRAY:
+            String[] values = new String[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString(in);
+            }
+            return values;
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Truncated string");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Decoded frame. The fields used depend on the type.
+     */
+    static final class Frame {
+
+        final byte type;
+        /** Channel id, command or variable name. */
+        String name;
+        String appletClass;
+        Map<String, String> params;
+        String[] args;
+        int priority;
+        Object value;
+        long sequence;
+
+        Frame(byte type) {
+            this.type = type;
+        }
+    }
+}
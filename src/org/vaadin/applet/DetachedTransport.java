@@ -0,0 +1,271 @@
+package org.vaadin.applet;
+
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport of a detached applet, connected directly to the
+ * {@link AppletRpcHandler} of the server-side component with HTTP.
+ *
+ * A receiver thread long-polls the server for commands and passes them to
+ * {@link AbstractVaadinApplet#execute(String, Object[], int)}. Variables are
+ * queued and posted in order when an immediate variable is sent or the applet
+ * synchronizes, and after each poll. The receiver stops when the server
+ * closes the connection, for example because the component was detached.
+ *
+ * Each poll acknowledges the last command received, and commands the server
+ * sends again because an acknowledgement was lost are skipped.
+ */
+final class DetachedTransport implements AppletTransport {
+
+    /** Time in milliseconds the server is asked to hold a poll open. */
+    static final int POLL_WAIT = 25000;
+
+    private static final long RETRY_DELAY = 1000;
+
+    private final AbstractVaadinApplet applet;
+    private final URL url;
+    private final String sessionCookie;
+
+    private final List<byte[]> queue = new ArrayList<byte[]>();
+    private final byte[] drainBuffer = new byte[512];
+
+    private volatile boolean running;
+    private volatile HttpURLConnection pollConnection;
+    private Thread receiver;
+    /** Number of the last command received, used by the receiver only. */
+    private long received;
+
+    DetachedTransport(AbstractVaadinApplet applet, URL url,
+            String sessionCookie) {
+        this.applet = applet;
+        this.url = url;
+        this.sessionCookie = sessionCookie;
+    }
+
+    /**
+     * Start receiving commands.
+     */
+    synchronized void start() {
+        if (receiver != null) {
+            return;
+        }
+        running = true;
+        receiver = new Thread("Detached applet receiver") {
+            @Override
+            public void run() {
+                receive();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        while (running) {
+            try {
+                deliver(post(new ArrayList<byte[]>(), true));
+                if (hasQueued()) {
+                    flush();
+                }
+            } catch (FileNotFoundException e) {
+                applet.debug("Detached applet disconnected", url);
+                running = false;
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                applet.debug(e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void deliver(List<byte[]> frames) throws IOException {
+        long sequence = -1;
+        for (byte[] frame : frames) {
+            DetachedProtocol.Frame f = DetachedProtocol.decode(frame);
+            if (f.type == DetachedProtocol.SEQUENCE) {
+                sequence = f.sequence;
+            } else if (f.type == DetachedProtocol.COMMAND) {
+                if (sequence < 0) {
+                    throw new IOException("Command without sequence number");
+                }
+                if (sequence > received) {
+                    applet.execute(f.name, f.args, f.priority);
+                    received = sequence;
+                }
+                sequence++;
+            }
+        }
+    }
+
+    @Override
+    public void updateVariable(String variableName, Object value,
+            boolean immediate) {
+        synchronized (queue) {
+            queue.add(DetachedProtocol.variable(variableName, value));
+        }
+        if (immediate) {
+            sync(true);
+        }
+    }
+
+    @Override
+    public void sync(boolean wait) {
+        try {
+            flush();
+        } catch (IOException e) {
+            applet.debug(e);
+        }
+    }
+
+    /**
+     * Post the queued variables. Batches are posted one at a time so that
+     * the server receives the variables in order.
+     */
+    private synchronized void flush() throws IOException {
+        List<byte[]> batch;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<byte[]>(queue);
+            queue.clear();
+        }
+        post(batch, false);
+    }
+
+    private boolean hasQueued() {
+        synchronized (queue) {
+            return !queue.isEmpty();
+        }
+    }
+
+    /**
+     * Post a batch of frames and read the frames of the reply.
+     *
+     * @param batch
+     * @param poll
+     *            true to acknowledge the commands received and wait for new
+     *            ones
+     * @throws FileNotFoundException
+     *             if the server does not know the applet or has closed the
+     *             connection
+     */
+    private List<byte[]> post(List<byte[]> batch, boolean poll)
+            throws IOException {
+        String path = url.getPath();
+        if (poll) {
+            path += "?wait=" + POLL_WAIT + "&ack=" + received;
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(url, path)
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setReadTimeout((poll ? POLL_WAIT : 0) + 30000);
+        connection.setRequestProperty("Content-Type",
+                "application/octet-stream");
+        if (sessionCookie != null) {
+            connection.setRequestProperty("Cookie", sessionCookie);
+        }
+        connection.setFixedLengthStreamingMode(MessageFraming
+                .getFramedLength(batch));
+        if (poll) {
+            pollConnection = connection;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    connection.getOutputStream());
+            try {
+                MessageFraming.write(out, batch);
+            } finally {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND
+                    || status == HttpURLConnection.HTTP_GONE) {
+                drain(connection.getErrorStream());
+                throw new FileNotFoundException("Applet not connected: "
+                        + status);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                drain(connection.getErrorStream());
+                throw new IOException("Request failed: " + status + " "
+                        + connection.getResponseMessage());
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return MessageFraming.read(in,
+                        AppletRpcHandler.MAX_BATCH_LENGTH);
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (poll) {
+                pollConnection = null;
+            }
+        }
+    }
+
+    private void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        // Read to the end to allow reusing the connection
+        try {
+            while (in.read(drainBuffer) >= 0) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void ready() {
+        // Nothing waits for a detached applet
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flush();
+        } catch (IOException e) {
+            applet.debug(e);
+        }
+        HttpURLConnection connection = pollConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+        Thread t;
+        synchronized (this) {
+            t = receiver;
+            receiver = null;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Check if the transport is receiving commands.
+     *
+     * @return
+     */
+    boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,329 @@
+package org.vaadin.applet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads the feature archives of an applet on demand. Feature archives are
+ * declared with {@link AppletIntegration#setFeatureArchives(Map)} and are not
+ * part of the applet archives, so the plugin does not download them before
+ * the applet is started.
+ *
+ * An archive is downloaded in a background thread the first time it is
+ * needed, either because a command with a {@link CommandHandler#feature()}
+ * handler was received or because {@link #prefetch(String)} was called. The
+ * classes of a feature are loaded with a class loader of their own whose
+ * parent is the class loader of the applet.
+ *
+ * Downloads time out after {@link #LOAD_TIMEOUT} milliseconds, and the
+ * connection after {@link #CONNECT_TIMEOUT} and {@link #READ_TIMEOUT}
+ * milliseconds, so that a stalled download does not block the commands
+ * waiting for it indefinitely. A failed download is retried the next time
+ * the feature is needed.
+ *
+ * <pre>
+ * &#064;CommandHandler(value = &quot;export&quot;, feature = &quot;export&quot;)
+ * public void export(String format) throws Exception {
+ *     Class&lt;?&gt; exporter = getFeatureLoader().loadClass(&quot;export&quot;,
+ *             &quot;com.example.Exporter&quot;);
+ *     ...
+ * }
+ * </pre>
+ *
+ * @see AbstractVaadinApplet#getFeatureLoader()
+ */
+public final class FeatureLoader {
+
+    /** Connect timeout of a download in milliseconds. */
+    static final int CONNECT_TIMEOUT = 15000;
+
+    /** Read timeout of a download in milliseconds. */
+    static final int READ_TIMEOUT = 30000;
+
+    /** Maximum time to wait for a download in milliseconds. */
+    static final long LOAD_TIMEOUT = 120000;
+
+    private final AbstractVaadinApplet applet;
+    private final URL base;
+    private final Map<String, String> archives;
+
+    private final Map<String, Feature> features = new HashMap<String, Feature>();
+
+    FeatureLoader(AbstractVaadinApplet applet, URL base,
+            Map<String, String> archives) {
+        this.applet = applet;
+        this.base = base;
+        this.archives = archives;
+    }
+
+    /**
+     * Parse the feature archives passed in the "appFeatureArchives" applet
+     * parameter, in format "feature=archive,feature=archive".
+     *
+     * @param param
+     * @return feature names mapped to archives
+     */
+    static Map<String, String> parse(String param) {
+        Map<String, String> archives = new LinkedHashMap<String, String>();
+        if (param == null) {
+            return archives;
+        }
+        for (String entry : param.split(",")) {
+            int i = entry.indexOf('=');
+            if (i > 0 && i < entry.length() - 1) {
+                archives.put(entry.substring(0, i).trim(),
+                        entry.substring(i + 1).trim());
+            }
+        }
+        return archives;
+    }
+
+    /**
+     * Format feature archives for the "appFeatureArchives" applet parameter.
+     *
+     * @param archives
+     * @return
+     */
+    static String format(Map<String, String> archives) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : archives.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the names of the declared features.
+     *
+     * @return
+     */
+    public Set<String> getFeatures() {
+        return Collections.unmodifiableSet(archives.keySet());
+    }
+
+    /**
+     * Check if a feature has been declared.
+     *
+     * @param feature
+     * @return
+     */
+    public boolean hasFeature(String feature) {
+        return archives.containsKey(feature);
+    }
+
+    /**
+     * Check if the archive of a feature has been loaded.
+     *
+     * @param feature
+     * @return
+     */
+    public synchronized boolean isLoaded(String feature) {
+        Feature f = features.get(feature);
+        return f != null && f.isDone() && f.loadTime() >= 0;
+    }
+
+    /**
+     * Start downloading the archive of a feature in the background unless it
+     * has already been loaded or is being loaded. A failed download is
+     * retried.
+     *
+     * @param feature
+     * @throws IllegalArgumentException
+     *             if the feature has not been declared
+     */
+    public synchronized void prefetch(String feature) {
+        Feature f = features.get(feature);
+        if (f != null && !(f.isDone() && f.loadTime() < 0)) {
+            return;
+        }
+        String archive = archives.get(feature);
+        if (archive == null) {
+            throw new IllegalArgumentException("Unknown feature " + feature);
+        }
+        f = new Feature(feature, archive);
+        features.put(feature, f);
+        Thread t = new Thread(f, "Feature loader " + feature);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get the class loader of a feature, waiting for its archive to be
+     * downloaded if needed.
+     *
+     * @param feature
+     * @return
+     * @throws IOException
+     *             if the archive could not be downloaded in time
+     */
+    public ClassLoader getClassLoader(String feature) throws IOException {
+        Feature f;
+        synchronized (this) {
+            prefetch(feature);
+            f = features.get(feature);
+        }
+        try {
+            return f.get(LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Retried by the next prefetch
+            f.cancel(true);
+            throw new InterruptedIOException("Loading " + feature
+                    + " timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading "
+                    + feature);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Loading " + feature + " failed", cause);
+        }
+    }
+
+    /**
+     * Load a class of a feature, waiting for its archive to be downloaded if
+     * needed.
+     *
+     * @param feature
+     * @param className
+     * @return
+     * @throws ClassNotFoundException
+     *             if the archive could not be downloaded or does not contain
+     *             the class
+     */
+    public Class<?> loadClass(String feature, String className)
+            throws ClassNotFoundException {
+        try {
+            return Class.forName(className, true, getClassLoader(feature));
+        } catch (IOException e) {
+            throw new ClassNotFoundException(className, e);
+        }
+    }
+
+    /**
+     * Get the time it took to download and open the archive of a feature.
+     *
+     * @param feature
+     * @return the time in milliseconds or -1 if the archive has not been
+     *         loaded
+     */
+    public synchronized long getLoadTime(String feature) {
+        Feature f = features.get(feature);
+        return f != null && f.isDone() ? f.loadTime() : -1;
+    }
+
+    /**
+     * Close the class loaders of the features when the applet is destroyed.
+     */
+    void close() {
+        List<Feature> loaded;
+        synchronized (this) {
+            loaded = new ArrayList<Feature>(features.values());
+            features.clear();
+        }
+        for (Feature f : loaded) {
+            if (f.isDone() && f.loadTime() >= 0) {
+                try {
+                    ((URLClassLoader) f.get()).close();
+                } catch (Exception e) {
+                    applet.debug(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Download of a feature archive.
+     */
+    private final class Feature extends FutureTask<ClassLoader> {
+
+        private final Opener opener;
+
+        Feature(String feature, String archive) {
+            this(new Opener(feature, archive));
+        }
+
+        private Feature(Opener opener) {
+            super(opener);
+            this.opener = opener;
+        }
+
+        /**
+         * @return the time it took to open the archive in milliseconds or -1
+         *         if it has not been opened or the download timed out
+         */
+        long loadTime() {
+            return isCancelled() ? -1 : opener.loadTime;
+        }
+    }
+
+    /**
+     * Downloads and opens a feature archive.
+     */
+    private final class Opener implements Callable<ClassLoader> {
+
+        private final String feature;
+        private final String archive;
+        private volatile long loadTime = -1;
+
+        Opener(String feature, String archive) {
+            this.feature = feature;
+            this.archive = archive;
+        }
+
+        @Override
+        public ClassLoader call() throws IOException {
+            long start = System.currentTimeMillis();
+            final URL url = new URL(base, archive);
+            try {
+                ClassLoader loader = AccessController
+                        .doPrivileged(new PrivilegedExceptionAction<ClassLoader>() {
+                            @Override
+                            public ClassLoader run() throws IOException {
+                                // Download the archive into the JAR cache
+                                // shared with URLClassLoader, failing here
+                                // instead of in the first loadClass
+                                JarURLConnection connection = (JarURLConnection) new URL(
+                                        "jar:" + url + "!/").openConnection();
+                                connection.setUseCaches(true);
+                                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                                connection.setReadTimeout(READ_TIMEOUT);
+                                connection.getJarFile();
+                                return new URLClassLoader(new URL[] { url },
+                                        applet.getClass().getClassLoader());
+                            }
+                        });
+                loadTime = System.currentTimeMillis() - start;
+                applet.debug("Loaded feature " + feature + " in " + loadTime
+                        + " ms", url);
+                return loader;
+            } catch (PrivilegedActionException e) {
+                applet.debug("Loading feature " + feature + " failed", url);
+                throw (IOException) e.getException();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.vaadin.applet;
+
+/**
+ * Adaptive schedule of the synchronizations made by {@link AbstractVaadinApplet}
+ * to pick up commands queued on the server.
+ *
+ * The interval starts from the minimum and is doubled after each heartbeat
+ * that was not followed by any command, up to the maximum. A received command
+ * resets the interval to the minimum. Any other round trip to the server
+ * postpones the next heartbeat by the current interval. No heartbeats are made
+ * while server push is active or if the maximum interval is zero.
+ */
+final class HeartbeatScheduler {
+
+    private long minInterval;
+    private long maxInterval;
+    private long interval;
+    private long nextAt;
+    private boolean pushActive;
+
+    HeartbeatScheduler(long minInterval, long maxInterval) {
+        configure(minInterval, maxInterval);
+    }
+
+    /**
+     * Change the interval range. The next heartbeat is scheduled after the
+     * minimum interval.
+     *
+     * @param minInterval
+     *            Interval in milliseconds used while commands are flowing.
+     * @param maxInterval
+     *            Longest interval in milliseconds when idle or 0 to disable
+     *            heartbeats.
+     */
+    synchronized void configure(long minInterval, long maxInterval) {
+        this.maxInterval = Math.max(0, maxInterval);
+        this.minInterval = Math.max(1, Math.min(minInterval, this.maxInterval));
+        interval = this.minInterval;
+        nextAt = now() + interval;
+    }
+
+    synchronized void setPushActive(boolean pushActive) {
+        this.pushActive = pushActive;
+        nextAt = now() + interval;
+    }
+
+    synchronized boolean isEnabled() {
+        return maxInterval > 0 && !pushActive;
+    }
+
+    /**
+     * Schedule the next heartbeat after the given interval as hinted by the
+     * server. The hint is limited to the configured range.
+     *
+     * @param hint
+     *            Interval in milliseconds.
+     */
+    synchronized void hint(long hint) {
+        interval = Math.max(minInterval, Math.min(hint, maxInterval));
+        nextAt = now() + interval;
+    }
+
+    /**
+     * Notify that a command was received from the server.
+     */
+    synchronized void commandReceived() {
+        interval = minInterval;
+        nextAt = now() + interval;
+    }
+
+    /**
+     * Notify that a round trip to the server was made for other reasons than
+     * a heartbeat.
+     */
+    synchronized void synced() {
+        nextAt = now() + interval;
+    }
+
+    /**
+     * Check whether a heartbeat should be made now. If so, the following one
+     * is scheduled after a doubled interval.
+     *
+     * @return true if the caller should make a heartbeat
+     */
+    synchronized boolean takeHeartbeat() {
+        if (!isEnabled()) {
+            return false;
+        }
+        long now = now();
+        if (now < nextAt) {
+            return false;
+        }
+        interval = Math.min(maxInterval, interval * 2);
+        nextAt = now + interval;
+        return true;
+    }
+
+    synchronized long getInterval() {
+        return interval;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,62 @@
+package org.vaadin.applet;
+
+/**
+ * Timing statistics with a histogram of the individual samples, allowing
+ * percentiles to be estimated.
+ *
+ * Samples are counted in buckets whose bounds are powers of two
+ * milliseconds, so percentiles are accurate within a factor of two.
+ *
+ * @see AppletIntegration#getCommandTraceStatistics()
+ */
+public class LatencyDistribution extends TimingStatistics {
+
+    private static final long serialVersionUID = -4383350291180547015L;
+
+    private static final int BUCKETS = 32;
+
+    private final long[] buckets = new long[BUCKETS];
+
+    /**
+     * Record a sample.
+     *
+     * @param millis
+     *            Duration in milliseconds, negative values are counted as 0.
+     */
+    void record(long millis) {
+        millis = Math.max(0, millis);
+        add(1, millis, millis);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis))]++;
+    }
+
+    /**
+     * Estimate a percentile of the samples.
+     *
+     * @param fraction
+     *            Fraction of the samples, for example 0.95 for the 95th
+     *            percentile.
+     * @return upper bound in milliseconds of the samples within the fraction,
+     *         or 0 if there are no samples
+     */
+    public long getPercentile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction must be 0..1");
+        }
+        long target = (long) Math.ceil(fraction * getCount());
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target && seen > 0) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upper, getMax());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " p50=" + getPercentile(0.5) + "ms p95="
+                + getPercentile(0.95) + "ms";
+    }
+}
@@ -0,0 +1,82 @@
+package org.vaadin.applet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Framing of the binary message batches posted by {@link AppletRpcClient} to
+ * {@link AppletRpcHandler}.
+ *
+ * A batch is a sequence of messages, each written as a four byte big-endian
+ * length followed by the bytes of the message.
+ */
+final class MessageFraming {
+
+    private MessageFraming() {
+    }
+
+    /**
+     * Get the number of bytes a batch takes when written.
+     *
+     * @param messages
+     * @return
+     */
+    static int getFramedLength(List<byte[]> messages) {
+        int length = 0;
+        for (byte[] message : messages) {
+            length += 4 + message.length;
+        }
+        return length;
+    }
+
+    static void write(DataOutputStream out, List<byte[]> messages)
+            throws IOException {
+        for (byte[] message : messages) {
+            out.writeInt(message.length);
+            out.write(message);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a batch until the end of the stream.
+     *
+     * @param in
+     * @param maxLength
+     *            Maximum total length of the batch in bytes.
+     * @return the messages
+     * @throws IOException
+     *             if the stream ends in the middle of a message or the batch
+     *             is longer than allowed
+     */
+    static List<byte[]> read(InputStream in, int maxLength) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        List<byte[]> messages = new ArrayList<byte[]>();
+        int total = 0;
+        while (true) {
+            int first = data.read();
+            if (first < 0) {
+                return messages;
+            }
+            int length = (first << 24) | (data.readUnsignedByte() << 16)
+                    | (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+            total += 4 + length;
+            if (length < 0 || total > maxLength || total < 0) {
+                throw new IOException("Message batch exceeds " + maxLength
+                        + " bytes");
+            }
+            byte[] message = new byte[length];
+            try {
+                data.readFully(message);
+            } catch (EOFException e) {
+                throw new IOException("Truncated message", e);
+            }
+            messages.add(message);
+        }
+    }
+}
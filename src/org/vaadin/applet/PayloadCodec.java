@@ -0,0 +1,316 @@
+package org.vaadin.applet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding helpers shared by {@link AbstractVaadinApplet} and
+ * {@link AppletIntegration}.
+ *
+ * This class has no dependencies outside of the JRE so that it can be packaged
+ * into the applet jar together with {@link AbstractVaadinApplet}.
+ */
+final class PayloadCodec {
+
+    /**
+     * Prefix of string values that have been deflated and base64 encoded by
+     * the applet.
+     */
+    static final String DEFLATE_PREFIX = "\u0001z:";
+
+    /**
+     * Prefixes of numeric arrays packed by the server as big-endian values
+     * encoded with base64.
+     */
+    static final String INT_ARRAY_PREFIX = "\u0001i:";
+    static final String LONG_ARRAY_PREFIX = "\u0001l:";
+    static final String DOUBLE_ARRAY_PREFIX = "\u0001d:";
+
+    /**
+     * Maximum size in bytes of an inflated value. Larger values are rejected
+     * so that a small compressed value cannot exhaust the memory.
+     */
+    static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private static final int[] BASE64_INDEX = new int[128];
+
+    static {
+        for (int i = 0; i < BASE64_INDEX.length; i++) {
+            BASE64_INDEX[i] = -1;
+        }
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_INDEX[BASE64[i]] = i;
+        }
+    }
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Check if the value has been produced by {@link #deflate(String)}.
+     *
+     * @param value
+     * @return
+     */
+    static boolean isDeflated(String value) {
+        return value != null && value.startsWith(DEFLATE_PREFIX);
+    }
+
+    /**
+     * Deflate the UTF-8 representation of the value and encode it with base64.
+     * If compression does not make the value shorter the original value is
+     * returned as is.
+     *
+     * @param value
+     * @return
+     */
+    static String deflate(String value) {
+        byte[] input = value.getBytes(UTF8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    input.length / 4 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            byte[] compressed = out.toByteArray();
+            int encodedLength = DEFLATE_PREFIX.length()
+                    + (compressed.length + 2) / 3 * 4;
+            if (encodedLength >= value.length()) {
+                return value;
+            }
+            StringBuilder sb = new StringBuilder(encodedLength);
+            sb.append(DEFLATE_PREFIX);
+            appendBase64(sb, compressed, 0, compressed.length);
+            return sb.toString();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reverse {@link #deflate(String)}. Values without the deflate prefix are
+     * returned as is.
+     *
+     * @param value
+     * @return
+     * @throws IllegalArgumentException
+     *             if the value is not valid compressed data or inflates to
+     *             more than {@link #MAX_INFLATED_SIZE} bytes
+     */
+    static String inflate(String value) {
+        if (!isDeflated(value)) {
+            return value;
+        }
+        byte[] compressed = decodeBase64(value, DEFLATE_PREFIX.length());
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(MAX_INFLATED_SIZE,
+                            compressed.length * 8L));
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException(
+                            "Truncated compressed payload");
+                }
+                if (out.size() + n > MAX_INFLATED_SIZE) {
+                    throw new IllegalArgumentException(
+                            "Compressed payload inflates to more than "
+                                    + MAX_INFLATED_SIZE + " bytes");
+                }
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed payload",
+                    e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static String pack(int[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        return encode(INT_ARRAY_PREFIX, buffer.array());
+    }
+
+    static String pack(long[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asLongBuffer().put(values);
+        return encode(LONG_ARRAY_PREFIX, buffer.array());
+    }
+
+    static String pack(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asDoubleBuffer().put(values);
+        return encode(DOUBLE_ARRAY_PREFIX, buffer.array());
+    }
+
+    private static String encode(String prefix, byte[] data) {
+        StringBuilder sb = new StringBuilder(prefix.length()
+                + (data.length + 2) / 3 * 4);
+        sb.append(prefix);
+        appendBase64(sb, data, 0, data.length);
+        return sb.toString();
+    }
+
+    /**
+     * Reverse {@link #pack(int[])}, {@link #pack(long[])},
+     * {@link #pack(double[])} and {@link #deflate(String)}. Other values are
+     * returned as is.
+     *
+     * @param value
+     * @return an int[], long[] or double[] or the value itself
+     * @throws IllegalArgumentException
+     *             if the value is not a valid packed array
+     */
+    static Object unpack(Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        String s = (String) value;
+        if (s.length() < 3 || s.charAt(0) != '\u0001' || s.charAt(2) != ':') {
+            return value;
+        }
+        switch (s.charAt(1)) {
+        case 'z':
+            return unpack(inflate(s));
+        case 'i': {
+            ByteBuffer buffer = ByteBuffer.wrap(decodeBase64(s, 3));
+            int[] values = new int[buffer.remaining() / 4];
+            buffer.asIntBuffer().get(values);
+            return values;
+        }
+        case 'l': {
+            ByteBuffer buffer = ByteBuffer.wrap(decodeBase64(s, 3));
+            long[] values = new long[buffer.remaining() / 8];
+            buffer.asLongBuffer().get(values);
+            return values;
+        }
+        case 'd': {
+            ByteBuffer buffer = ByteBuffer.wrap(decodeBase64(s, 3));
+            double[] values = new double[buffer.remaining() / 8];
+            buffer.asDoubleBuffer().get(values);
+            return values;
+        }
+        default:
+            return value;
+        }
+    }
+
+    /**
+     * Unpack the packed arrays of command parameters.
+     *
+     * @param params
+     * @return the parameters with the packed arrays replaced, or the given
+     *         array if there were none
+     */
+    static Object[] unpackAll(Object[] params) {
+        if (params == null) {
+            return null;
+        }
+        Object[] res = params;
+        for (int i = 0; i < params.length; i++) {
+            Object value = unpack(params[i]);
+            if (value != params[i]) {
+                if (res == params) {
+                    res = params.clone();
+                }
+                res[i] = value;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Append base64 encoded bytes to the given builder.
+     *
+     * @param sb
+     * @param data
+     * @param offset
+     * @param length
+     */
+    static void appendBase64(StringBuilder sb, byte[] data, int offset,
+            int length) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int b = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8
+                    | (data[i + 2] & 0xff);
+            sb.append(BASE64[b >>> 18]);
+            sb.append(BASE64[b >>> 12 & 0x3f]);
+            sb.append(BASE64[b >>> 6 & 0x3f]);
+            sb.append(BASE64[b & 0x3f]);
+        }
+        int rest = end - i;
+        if (rest == 1) {
+            int b = (data[i] & 0xff) << 16;
+            sb.append(BASE64[b >>> 18]);
+            sb.append(BASE64[b >>> 12 & 0x3f]);
+            sb.append("==");
+        } else if (rest == 2) {
+            int b = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            sb.append(BASE64[b >>> 18]);
+            sb.append(BASE64[b >>> 12 & 0x3f]);
+            sb.append(BASE64[b >>> 6 & 0x3f]);
+            sb.append('=');
+        }
+    }
+
+    /**
+     * Decode base64 encoded characters starting from the given index.
+     *
+     * @param s
+     * @param start
+     * @return
+     * @throws IllegalArgumentException
+     *             if the string contains characters outside of the base64
+     *             alphabet
+     */
+    static byte[] decodeBase64(String s, int start) {
+        int end = s.length();
+        while (end > start && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        int chars = end - start;
+        if (chars % 4 == 1) {
+            throw new IllegalArgumentException("Invalid base64 length");
+        }
+        byte[] out = new byte[chars * 3 / 4];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int v = c < 128 ? BASE64_INDEX[c] : -1;
+            if (v < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid base64 character at " + i);
+            }
+            bits = bits << 6 | v;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                out[o++] = (byte) (bits >>> count);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,695 @@
+package org.vaadin.applet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of resources downloaded by an applet, such as templates, fonts
+ * and lookup tables that would otherwise be downloaded on every page load.
+ *
+ * Cached files are stored under their SHA-256 content hash, so that the same
+ * content downloaded from several URLs is stored only once. Each cached URL
+ * is validated with a conditional request using the ETag and Last-Modified
+ * headers of the earlier response. If the server is not reachable, the cached
+ * copy is used. When the expected content hash is known, e.g. passed by the
+ * server in a command, the cached copy is used without any request.
+ *
+ * The total size of the cached files is limited. The least recently used
+ * files are evicted when the limit is exceeded. The time of the last use is
+ * kept in the modification time of each file, so that it is shared with
+ * other processes and kept across restarts. Cached files are returned as
+ * read-only memory-mapped buffers.
+ *
+ * Applets using the same cache directory share it: the caches opened in the
+ * same JVM share their state, and the index and cached files are changed
+ * only while holding a lock on the directory, so that applets in other
+ * processes see the changes. Files are downloaded to temporary files without
+ * holding the lock, so a slow download does not block the other applets.
+ *
+ * File access is made in a privileged block, so the cache can be used from
+ * {@link AbstractVaadinApplet#doExecute(String, Object[])} and from methods
+ * called by JavaScript if the applet has been signed.
+ *
+ * @see AbstractVaadinApplet#getResourceCache()
+ */
+public class ResourceCache {
+
+    private static final String INDEX_FILE = "index";
+    private static final String LOCK_FILE = "lock";
+    private static final String DATA_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Age in milliseconds after which a temporary file is considered to be
+     * left behind by an interrupted download.
+     */
+    private static final long STALE_TMP_AGE = 60 * 60 * 1000;
+
+    /** Cache directories opened in this JVM, by canonical path. */
+    private static final Map<File, Store> stores = new HashMap<File, Store>();
+
+    private final Store store;
+    private final long maxSize;
+    private final URL codeBase;
+    private final String sessionCookie;
+
+    /**
+     * Open a cache directory, creating it if needed.
+     *
+     * @param directory
+     *            Directory of the cached files.
+     * @param maxSize
+     *            Maximum total size of the cached files in bytes.
+     * @param codeBase
+     *            Code base of the applet. The session cookie is sent only
+     *            with the requests to the same protocol, host and port.
+     * @param sessionCookie
+     *            Cookie sent with the requests to the code base, may be
+     *            null.
+     * @throws IOException
+     *             if the directory cannot be created or locked
+     */
+    public ResourceCache(final File directory, final long maxSize,
+            URL codeBase, String sessionCookie) throws IOException {
+        this.maxSize = maxSize;
+        this.codeBase = codeBase;
+        this.sessionCookie = sessionCookie;
+        store = privileged(new PrivilegedExceptionAction<Store>() {
+            @Override
+            public Store run() throws IOException {
+                Store store = Store.open(directory);
+                synchronized (store) {
+                    FileLock lock = store.lock();
+                    try {
+                        store.evict(maxSize);
+                    } finally {
+                        lock.release();
+                    }
+                }
+                return store;
+            }
+        });
+    }
+
+    /**
+     * Get a resource, downloading it if it is not cached or has changed.
+     *
+     * @param url
+     * @return the contents as a read-only buffer
+     * @throws IOException
+     *             if the resource could not be downloaded and it is not
+     *             cached
+     */
+    public ByteBuffer get(URL url) throws IOException {
+        return get(url, null);
+    }
+
+    /**
+     * Get a resource. If a file with the expected content hash is cached, it
+     * is returned without validating it with the server.
+     *
+     * @param url
+     * @param contentHash
+     *            Expected SHA-256 hash of the contents as a lower case
+     *            hexadecimal string, or null if not known.
+     * @return the contents as a read-only buffer
+     * @throws IOException
+     *             if the resource could not be downloaded and it is not
+     *             cached
+     */
+    public ByteBuffer get(final URL url, final String contentHash)
+            throws IOException {
+        return privileged(new PrivilegedExceptionAction<ByteBuffer>() {
+            @Override
+            public ByteBuffer run() throws IOException {
+                if (contentHash != null) {
+                    ByteBuffer cached = store.mapCached(contentHash);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+                return fetch(url, true);
+            }
+        });
+    }
+
+    /**
+     * Get the content hash of a cached resource.
+     *
+     * @param url
+     * @return the hash or null if the resource is not cached
+     */
+    public String getContentHash(URL url) {
+        synchronized (store) {
+            Entry entry = store.entries.get(url.toString());
+            return entry == null ? null : entry.hash;
+        }
+    }
+
+    /**
+     * @return the total size of the cached files in bytes
+     */
+    public long getSize() {
+        synchronized (store) {
+            return store.size;
+        }
+    }
+
+    /**
+     * @return the maximum total size of the cached files in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Remove all of the cached files.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        synchronized (store) {
+            privileged(new PrivilegedExceptionAction<Void>() {
+                @Override
+                public Void run() throws IOException {
+                    FileLock lock = store.lock();
+                    try {
+                        for (String hash : new ArrayList<String>(
+                                store.files.keySet())) {
+                            store.remove(hash);
+                        }
+                        store.entries.clear();
+                        store.saveIndex();
+                    } finally {
+                        lock.release();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Make a request for the resource, conditional if it is cached, and
+     * download it if changed.
+     *
+     * @return the contents of the current version
+     */
+    private ByteBuffer fetch(URL url, boolean conditional) throws IOException {
+        String key = url.toString();
+        Entry entry = conditional ? store.getEntry(key) : null;
+
+        HttpURLConnection connection;
+        int status;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setUseCaches(false);
+            if (sessionCookie != null && isCodeBaseOrigin(url)) {
+                connection.setRequestProperty("Cookie", sessionCookie);
+            }
+            if (entry != null) {
+                if (entry.etag != null) {
+                    connection.setRequestProperty("If-None-Match", entry.etag);
+                }
+                if (entry.lastModified > 0) {
+                    connection.setIfModifiedSince(entry.lastModified);
+                }
+            }
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            ByteBuffer cached = entry == null ? null : store
+                    .mapCached(entry.hash);
+            if (cached != null) {
+                // Server not reachable, use the cached copy
+                return cached;
+            }
+            throw e;
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+            drain(connection);
+            ByteBuffer cached = store.mapCached(entry.hash);
+            // Evicted by another applet meanwhile
+            return cached != null ? cached : fetch(url, false);
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            drain(connection);
+            throw new IOException("Downloading " + url + " failed: " + status);
+        }
+        return download(connection, key);
+    }
+
+    /**
+     * Check if a URL has the same protocol, host and port as the code base,
+     * so that the session cookie can be sent with it.
+     */
+    private boolean isCodeBaseOrigin(URL url) {
+        return codeBase != null
+                && url.getProtocol().equalsIgnoreCase(codeBase.getProtocol())
+                && url.getHost().equalsIgnoreCase(codeBase.getHost())
+                && getPort(url) == getPort(codeBase);
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    /**
+     * Download the response to a temporary file and add it to the cache
+     * under its content hash.
+     *
+     * @return the contents
+     */
+    private ByteBuffer download(HttpURLConnection connection, String key)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File tmp = File.createTempFile("download", TMP_SUFFIX,
+                store.directory);
+        long length = 0;
+        try {
+            InputStream in = connection.getInputStream();
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        digest.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        length += read;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            return store.add(key, new Entry(toHex(digest.digest()),
+                    connection.getHeaderField("ETag"),
+                    connection.getLastModified()), tmp, length, maxSize);
+        } finally {
+            // Left only if the download failed or the content was cached
+            tmp.delete();
+        }
+    }
+
+    private static void drain(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getResponseCode() >= 400 ? connection
+                    .getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) >= 0) {
+                }
+                in.close();
+            }
+        } catch (IOException e) {
+            // Connection is not reused
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static <T> T privileged(PrivilegedExceptionAction<T> action)
+            throws IOException {
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getException();
+        }
+    }
+
+    /**
+     * State of a cache directory shared by the caches opened on it in this
+     * JVM. Must be used while synchronized on the store. The methods that
+     * access the files synchronize and take the lock of the directory
+     * themselves, except for the ones called with the lock held.
+     *
+     * The lock file also holds a generation number that is incremented each
+     * time the index is saved, so that the index is reloaded only when it has
+     * been changed by another process.
+     */
+    private static final class Store {
+
+        final File directory;
+        private final FileChannel lockChannel;
+        private final ByteBuffer generationBuffer = ByteBuffer.allocate(8);
+        private long generation = -1;
+
+        /** URL to cache entry. */
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        /** Content hash to file size, in least recently used order. */
+        final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(
+                16, 0.75f, true);
+
+        long size;
+
+        private Store(File directory, FileChannel lockChannel) {
+            this.directory = directory;
+            this.lockChannel = lockChannel;
+        }
+
+        /**
+         * Get the store of a directory, creating the directory if needed.
+         * The lock file stays open as long as the JVM runs.
+         */
+        static Store open(File directory) throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create cache directory "
+                        + directory);
+            }
+            File canonical = directory.getCanonicalFile();
+            synchronized (stores) {
+                Store store = stores.get(canonical);
+                if (store == null) {
+                    store = new Store(canonical, new RandomAccessFile(
+                            new File(canonical, LOCK_FILE), "rw")
+                            .getChannel());
+                    stores.put(canonical, store);
+                }
+                return store;
+            }
+        }
+
+        /**
+         * Lock the directory, reloading the index if another process has
+         * changed it.
+         */
+        FileLock lock() throws IOException {
+            FileLock lock = lockChannel.lock();
+            try {
+                generationBuffer.clear();
+                long current = 0;
+                if (lockChannel.read(generationBuffer, 0) == 8) {
+                    generationBuffer.flip();
+                    current = generationBuffer.getLong();
+                }
+                if (current != generation) {
+                    loadIndex();
+                    generation = current;
+                }
+                return lock;
+            } catch (IOException e) {
+                lock.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Get the entry of a URL if its file is cached.
+         */
+        synchronized Entry getEntry(String key) throws IOException {
+            FileLock lock = lock();
+            try {
+                Entry entry = entries.get(key);
+                return entry != null && files.containsKey(entry.hash) ? entry
+                        : null;
+            } finally {
+                lock.release();
+            }
+        }
+
+        /**
+         * Map a cached file.
+         *
+         * @return the contents or null if the file is not cached
+         */
+        synchronized ByteBuffer mapCached(String hash) throws IOException {
+            FileLock lock = lock();
+            try {
+                return files.containsKey(hash) ? map(hash) : null;
+            } finally {
+                lock.release();
+            }
+        }
+
+        /**
+         * Add a downloaded file unless the same content is cached already,
+         * and map it.
+         */
+        synchronized ByteBuffer add(String key, Entry entry, File tmp,
+                long length, long maxSize) throws IOException {
+            FileLock lock = lock();
+            try {
+                if (!files.containsKey(entry.hash)) {
+                    File file = getFile(entry.hash);
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Cannot create " + file);
+                    }
+                    files.put(entry.hash, length);
+                    size += length;
+                }
+                entries.put(key, entry);
+                ByteBuffer contents = map(entry.hash);
+                evict(maxSize);
+                saveIndex();
+                return contents;
+            } finally {
+                lock.release();
+            }
+        }
+
+        private ByteBuffer map(String hash) throws IOException {
+            // Mark as recently used, also for other processes
+            files.get(hash);
+            getFile(hash).setLastModified(System.currentTimeMillis());
+            RandomAccessFile file = new RandomAccessFile(getFile(hash), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } finally {
+                // The mapping stays valid after closing the file
+                file.close();
+            }
+        }
+
+        /**
+         * Remove the least recently used files until the cache fits its
+         * limit. The most recently used file is kept even if it alone
+         * exceeds the limit. Called with the lock held.
+         */
+        void evict(long maxSize) {
+            if (size > maxSize) {
+                // Files used by other processes meanwhile are more recent
+                // than their position in the index
+                sortByLastUse();
+            }
+            Iterator<Map.Entry<String, Long>> it = files.entrySet()
+                    .iterator();
+            while (size > maxSize && files.size() > 1 && it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                it.remove();
+                size -= e.getValue();
+                // A file still mapped may not be deletable on all platforms,
+                // it is then left behind and removed on a later load
+                getFile(e.getKey()).delete();
+            }
+            for (Iterator<Entry> e = entries.values().iterator(); e
+                    .hasNext();) {
+                if (!files.containsKey(e.next().hash)) {
+                    e.remove();
+                }
+            }
+        }
+
+        /**
+         * Remove a cached file. Called with the lock held.
+         */
+        void remove(String hash) {
+            Long length = files.remove(hash);
+            if (length != null) {
+                size -= length;
+            }
+            getFile(hash).delete();
+        }
+
+        /**
+         * Order the files by the modification time set when they were last
+         * used.
+         */
+        private void sortByLastUse() {
+            List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(
+                    files.entrySet());
+            final Map<String, Long> lastUse = new HashMap<String, Long>();
+            for (Map.Entry<String, Long> e : sorted) {
+                lastUse.put(e.getKey(), getFile(e.getKey()).lastModified());
+            }
+            // Stable, files used at the same time keep their order
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a,
+                        Map.Entry<String, Long> b) {
+                    long x = lastUse.get(a.getKey());
+                    long y = lastUse.get(b.getKey());
+                    return x < y ? -1 : x == y ? 0 : 1;
+                }
+            });
+            Map<String, Long> copy = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, Long> e : sorted) {
+                copy.put(e.getKey(), e.getValue());
+            }
+            files.clear();
+            files.putAll(copy);
+        }
+
+        private File getFile(String hash) {
+            return new File(directory, hash + DATA_SUFFIX);
+        }
+
+        /**
+         * Load the index. The index lists the cached files followed by the
+         * cached URLs. The files are ordered by their last use, which is
+         * kept in their modification time. Files not listed in the
+         * index are deleted, except for the temporary files of downloads in
+         * progress.
+         */
+        private void loadIndex() throws IOException {
+            files.clear();
+            entries.clear();
+            size = 0;
+            File index = new File(directory, INDEX_FILE);
+            if (index.isFile()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(index), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields.length == 1
+                                && getFile(fields[0]).isFile()) {
+                            long length = getFile(fields[0]).length();
+                            files.put(fields[0], length);
+                            size += length;
+                        } else if (fields.length == 4
+                                && files.containsKey(fields[1])) {
+                            entries.put(fields[0], new Entry(fields[1],
+                                    fields[2].length() == 0 ? null
+                                            : fields[2], Long
+                                            .parseLong(fields[3])));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // Corrupted index, start from scratch
+                    files.clear();
+                    entries.clear();
+                    size = 0;
+                } finally {
+                    in.close();
+                }
+                sortByLastUse();
+            }
+            long staleBefore = System.currentTimeMillis() - STALE_TMP_AGE;
+            File[] stored = directory.listFiles();
+            if (stored != null) {
+                for (File file : stored) {
+                    String name = file.getName();
+                    if (name.equals(INDEX_FILE) || name.equals(LOCK_FILE)) {
+                        continue;
+                    }
+                    if (name.endsWith(TMP_SUFFIX)) {
+                        if (file.lastModified() < staleBefore) {
+                            file.delete();
+                        }
+                    } else if (!(name.endsWith(DATA_SUFFIX) && files
+                            .containsKey(name.substring(0, name.length()
+                                    - DATA_SUFFIX.length())))) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Save the index and increment the generation. Called with the lock
+         * held.
+         */
+        void saveIndex() throws IOException {
+            File tmp = new File(directory, INDEX_FILE + TMP_SUFFIX);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (String hash : files.keySet()) {
+                    out.write(hash);
+                    out.newLine();
+                }
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(e.getKey() + "\t" + entry.hash + "\t"
+                            + (entry.etag == null ? "" : entry.etag) + "\t"
+                            + entry.lastModified);
+                    out.newLine();
+                }
+            } finally {
+                out.close();
+            }
+            File index = new File(directory, INDEX_FILE);
+            index.delete();
+            if (!tmp.renameTo(index)) {
+                throw new IOException("Cannot write " + index);
+            }
+            generation++;
+            generationBuffer.clear();
+            generationBuffer.putLong(generation).flip();
+            lockChannel.write(generationBuffer, 0);
+        }
+    }
+
+    /**
+     * Cached URL.
+     */
+    private static final class Entry {
+
+        final String hash;
+        final String etag;
+        final long lastModified;
+
+        Entry(String hash, String etag, long lastModified) {
+            this.hash = hash;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.vaadin.applet;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Input stream reading a stream published with
+ * {@link AppletIntegration#publishStream(com.vaadin.server.StreamResource.StreamSource, long, String)}.
+ *
+ * If reading fails in the middle of the stream, the download is resumed from
+ * the current position with an HTTP range request. Up to
+ * {@link #MAX_RETRIES} consecutive attempts are made before the failure is
+ * passed to the caller.
+ */
+final class ResumableInputStream extends InputStream {
+
+    static final int MAX_RETRIES = 3;
+
+    private static final long RETRY_DELAY = 500;
+
+    private final URL url;
+    private final String sessionCookie;
+
+    private HttpURLConnection connection;
+    private InputStream in;
+    private long position;
+    private long length = -1;
+    private boolean closed;
+
+    ResumableInputStream(URL url, String sessionCookie) throws IOException {
+        this.url = url;
+        this.sessionCookie = sessionCookie;
+        open();
+    }
+
+    private void open() throws IOException {
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setUseCaches(false);
+        if (sessionCookie != null) {
+            connection.setRequestProperty("Cookie", sessionCookie);
+        }
+        if (position > 0) {
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+        }
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            connection.disconnect();
+            throw new FileNotFoundException("Stream not found or expired: "
+                    + url);
+        }
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            String range = connection.getHeaderField("Content-Range");
+            if (range == null || !range.startsWith("bytes " + position + "-")) {
+                connection.disconnect();
+                throw new IOException("Unexpected range " + range);
+            }
+            length = Long.parseLong(range.substring(range.indexOf('/') + 1));
+            in = connection.getInputStream();
+        } else if (status == HttpURLConnection.HTTP_OK) {
+            String contentLength = connection.getHeaderField("Content-Length");
+            if (contentLength != null) {
+                length = Long.parseLong(contentLength);
+            }
+            in = connection.getInputStream();
+            // Range not supported, skip to the current position
+            long skip = position;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Stream ended before position "
+                            + position);
+                }
+                skip -= skipped;
+            }
+        } else {
+            connection.disconnect();
+            throw new IOException("Opening stream failed: " + status);
+        }
+    }
+
+    /**
+     * Reopen the stream from the current position after a failure.
+     *
+     * @param attempt
+     *            Number of the attempt, starting from 1.
+     * @param cause
+     *            The failure.
+     * @throws IOException
+     *             if no more attempts should be made
+     */
+    private void resume(int attempt, IOException cause) throws IOException {
+        closeConnection();
+        if (closed || attempt > MAX_RETRIES
+                || cause instanceof FileNotFoundException) {
+            throw cause;
+        }
+        try {
+            Thread.sleep(RETRY_DELAY * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            resume(attempt + 1, e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        for (int attempt = 1;; attempt++) {
+            try {
+                int b = in.read();
+                if (b >= 0) {
+                    position++;
+                } else if (length >= 0 && position < length) {
+                    throw new IOException("Stream ended at " + position
+                            + " of " + length);
+                }
+                return b;
+            } catch (IOException e) {
+                resume(attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        for (int attempt = 1;; attempt++) {
+            try {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                } else if (read < 0 && length >= 0 && position < length) {
+                    throw new IOException("Stream ended at " + position
+                            + " of " + length);
+                }
+                return read;
+            } catch (IOException e) {
+                resume(attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return in.available();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * @return total length of the stream in bytes or -1 if not known
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return number of bytes read
+     */
+    long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignored, the connection is not reused
+            }
+            in = null;
+        }
+    }
+}
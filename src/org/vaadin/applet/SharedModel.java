@@ -0,0 +1,597 @@
+package org.vaadin.applet;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Versioned key/value model shared by an {@link AppletIntegration} and its
+ * applet. Both sides can change the model. Only the changes the other side
+ * has not acknowledged yet are sent, instead of the whole model.
+ *
+ * Each side numbers its own changes. The other side acknowledges the
+ * highest change it has applied, and the acknowledged changes are no longer
+ * sent. If a side finds that it has missed changes, for example because the
+ * applet was restarted, it requests the whole model and the other side sends
+ * a full copy. Changes and requests for a full copy are sent again if they
+ * have not been answered within {@link #RESEND_DELAY} milliseconds, in case
+ * the message was lost.
+ *
+ * If both sides change the same key at the same time, the value set by the
+ * server wins.
+ *
+ * Changes made on the server are sent with the next repaint, ahead of the
+ * commands executed after them. Changes made in the applet are sent with the
+ * next synchronization, or right away with
+ * {@link AbstractVaadinApplet#sendSharedModel()}. All methods are thread
+ * safe.
+ *
+ * The sizes of the messages and the time it takes to apply the received
+ * changes are recorded, see {@link #getSentSizes()},
+ * {@link #getReceivedSizes()} and {@link #getApplyTimes()}.
+ *
+ * This class has no dependencies outside of the JRE so that it can be packaged
+ * into the applet jar together with {@link AbstractVaadinApplet}.
+ *
+ * @see AppletIntegration#getSharedModel()
+ * @see AbstractVaadinApplet#getSharedModel()
+ */
+public final class SharedModel implements Serializable {
+
+    private static final long serialVersionUID = 2895839604913062714L;
+
+    /**
+     * Listener notified when the model changes.
+     */
+    public interface ChangeListener extends Serializable {
+
+        /**
+         * Called after the model has changed. Listeners of remote changes are
+         * called in the thread that received the changes, without holding
+         * the lock of the model.
+         *
+         * @param model
+         * @param keys
+         *            The changed keys.
+         * @param remote
+         *            Whether the changes were made by the other side.
+         */
+        void modelChanged(SharedModel model, Set<String> keys, boolean remote);
+    }
+
+    /**
+     * Time in milliseconds after which the changes not acknowledged and an
+     * unanswered request for a full copy are sent again.
+     */
+    static final long RESEND_DELAY = 5000;
+
+    private static final char ACK = 'a';
+    private static final char RESYNC = 'r';
+    private static final char DELTA = 'd';
+    private static final char FULL = 'f';
+
+    private final boolean authoritative;
+    private final String streamId = Long.toString(
+            new Random().nextLong() & Long.MAX_VALUE, 36);
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /** Version of the latest local change. */
+    private long version;
+    /** Version of the local changes when the last message was taken. */
+    private long sentVersion;
+    /** Time when the last message was taken. */
+    private long sentAt;
+    /** Highest local version acknowledged by the other side. */
+    private long acknowledgedVersion;
+    /** Keys changed locally and not acknowledged, in order of change. */
+    private final LinkedHashMap<String, Long> unacknowledged = new LinkedHashMap<String, Long>();
+
+    /** Change stream of the other side. */
+    private String peerStreamId;
+    /** Highest version of the other side that has been applied. */
+    private long receivedVersion;
+    private boolean ackPending;
+    private boolean resyncPending;
+    /** Whether a full copy has been requested and not received yet. */
+    private boolean resyncRequested;
+    private boolean fullPending;
+
+    private final LatencyDistribution sentSizes = new LatencyDistribution();
+    private final LatencyDistribution receivedSizes = new LatencyDistribution();
+    private final LatencyDistribution applyTimes = new LatencyDistribution();
+    private long fullResyncs;
+
+    private final List<ChangeListener> listeners = new ArrayList<ChangeListener>();
+
+    /**
+     * @param authoritative
+     *            Whether the values of this side win when both sides change
+     *            the same key. True for the server.
+     */
+    SharedModel(boolean authoritative) {
+        this.authoritative = authoritative;
+    }
+
+    public synchronized String get(String key) {
+        return values.get(key);
+    }
+
+    public synchronized boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * Get a copy of the model.
+     *
+     * @return
+     */
+    public synchronized Map<String, String> toMap() {
+        return new HashMap<String, String>(values);
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param key
+     * @param value
+     *            The value or null to remove the key.
+     */
+    public void put(String key, String value) {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    /**
+     * Set the values of several keys.
+     *
+     * @param changes
+     *            Keys mapped to their new values, null to remove a key.
+     */
+    public void putAll(Map<String, String> changes) {
+        Set<String> changed = new LinkedHashSet<String>();
+        synchronized (this) {
+            for (Map.Entry<String, String> e : changes.entrySet()) {
+                String key = e.getKey();
+                if (key == null) {
+                    throw new IllegalArgumentException("Key cannot be null");
+                }
+                if (setLocal(key, e.getValue())) {
+                    changed.add(key);
+                }
+            }
+        }
+        fireChanged(changed, false);
+    }
+
+    /**
+     * Remove all keys.
+     */
+    public void clear() {
+        Set<String> changed;
+        synchronized (this) {
+            changed = new LinkedHashSet<String>(values.keySet());
+            for (String key : changed) {
+                setLocal(key, null);
+            }
+        }
+        fireChanged(changed, false);
+    }
+
+    private boolean setLocal(String key, String value) {
+        String old = value == null ? values.remove(key) : values.put(key,
+                value);
+        if (value == null ? old == null : value.equals(old)) {
+            return false;
+        }
+        version++;
+        // Move the key to the end to keep the changes in version order
+        unacknowledged.remove(key);
+        unacknowledged.put(key, version);
+        return true;
+    }
+
+    /**
+     * Get the version of the latest local change.
+     *
+     * @return
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the version of the latest change of the other side that has been
+     * applied.
+     *
+     * @return
+     */
+    public synchronized long getReceivedVersion() {
+        return receivedVersion;
+    }
+
+    public synchronized void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged(Set<String> keys, boolean remote) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        ChangeListener[] copy;
+        synchronized (this) {
+            copy = listeners.toArray(new ChangeListener[listeners.size()]);
+        }
+        Set<String> view = Collections.unmodifiableSet(keys);
+        for (ChangeListener listener : copy) {
+            listener.modelChanged(this, view, remote);
+        }
+    }
+
+    /**
+     * Get the sizes of the sent messages in characters.
+     *
+     * @return
+     */
+    public synchronized LatencyDistribution getSentSizes() {
+        return sentSizes;
+    }
+
+    /**
+     * Get the sizes of the received messages in characters.
+     *
+     * @return
+     */
+    public synchronized LatencyDistribution getReceivedSizes() {
+        return receivedSizes;
+    }
+
+    /**
+     * Get the times it took to decode and apply the received messages, in
+     * microseconds.
+     *
+     * @return
+     */
+    public synchronized LatencyDistribution getApplyTimes() {
+        return applyTimes;
+    }
+
+    /**
+     * Get the number of full copies of the model received from the other
+     * side.
+     *
+     * @return
+     */
+    public synchronized long getFullResyncCount() {
+        return fullResyncs;
+    }
+
+    /**
+     * Ask the other side for a full copy of the model.
+     */
+    synchronized void requestResync() {
+        resyncPending = true;
+    }
+
+    /**
+     * Check if there is something to send to the other side.
+     *
+     * @return
+     */
+    synchronized boolean hasPendingMessage() {
+        return hasPendingMessage(System.currentTimeMillis());
+    }
+
+    synchronized boolean hasPendingMessage(long now) {
+        return version != sentVersion || ackPending || resyncPending
+                || fullPending || isResendDue(now);
+    }
+
+    private boolean isResendDue(long now) {
+        return (version != acknowledgedVersion || resyncRequested)
+                && now - sentAt >= RESEND_DELAY;
+    }
+
+    /**
+     * Take the message to send to the other side: the acknowledgement of the
+     * received changes, a request for a full copy, and the local changes not
+     * acknowledged yet or a full copy if requested.
+     *
+     * @return the message or null if there is nothing to send
+     */
+    synchronized String takeMessage() {
+        return takeMessage(System.currentTimeMillis());
+    }
+
+    synchronized String takeMessage(long now) {
+        if (!hasPendingMessage(now)) {
+            return null;
+        }
+        if (resyncRequested && isResendDue(now)) {
+            resyncPending = true;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(streamId).append('|');
+        if (peerStreamId != null) {
+            sb.append(ACK).append(receivedVersion).append(';');
+        }
+        if (resyncPending) {
+            sb.append(RESYNC).append(';');
+        }
+        if (fullPending) {
+            sb.append(FULL).append(version).append(',').append(values.size())
+                    .append(';');
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                appendEntry(sb, version, e.getKey(), e.getValue());
+            }
+        } else if (version != acknowledgedVersion) {
+            sb.append(DELTA).append(acknowledgedVersion).append(',')
+                    .append(version).append(',')
+                    .append(unacknowledged.size()).append(';');
+            for (Map.Entry<String, Long> e : unacknowledged.entrySet()) {
+                appendEntry(sb, e.getValue(), e.getKey(),
+                        values.get(e.getKey()));
+            }
+        }
+        sentVersion = version;
+        sentAt = now;
+        ackPending = false;
+        resyncRequested |= resyncPending;
+        resyncPending = false;
+        fullPending = false;
+        sentSizes.record(sb.length());
+        return sb.toString();
+    }
+
+    private static void appendEntry(StringBuilder sb, long version,
+            String key, String value) {
+        sb.append(version).append(',').append(key.length()).append(':')
+                .append(key);
+        if (value == null) {
+            sb.append("-1:");
+        } else {
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * Apply a message from the other side.
+     *
+     * @param message
+     * @return true if the other side is waiting for a reply, i.e. a full copy
+     *         of the model has been requested by either side
+     * @throws IllegalArgumentException
+     *             if the message is malformed
+     */
+    boolean receive(String message) {
+        long start = System.nanoTime();
+        Set<String> changed = new LinkedHashSet<String>();
+        boolean urgent;
+        synchronized (this) {
+            Parser p = new Parser(message);
+            String stream = p.readUntil('|');
+            if (!stream.equals(peerStreamId)) {
+                // The other side has been restarted
+                peerStreamId = stream;
+                receivedVersion = 0;
+            }
+            while (!p.atEnd()) {
+                char type = p.next();
+                if (type == ACK) {
+                    acknowledge(p.readLong(';'));
+                } else if (type == RESYNC) {
+                    p.expect(';');
+                    fullPending = true;
+                } else if (type == DELTA) {
+                    long base = p.readLong(',');
+                    long newVersion = p.readLong(',');
+                    int count = (int) p.readLong(';');
+                    if (base > receivedVersion) {
+                        // Changes have been missed
+                        p.skipEntries(count);
+                        resyncPending = true;
+                    } else {
+                        applyEntries(p, count, changed);
+                        receivedVersion = Math.max(receivedVersion,
+                                newVersion);
+                        ackPending = true;
+                    }
+                } else if (type == FULL) {
+                    long newVersion = p.readLong(',');
+                    int count = (int) p.readLong(';');
+                    if (authoritative) {
+                        // Keep the keys of this side missing from the copy
+                        receivedVersion = 0;
+                        applyEntries(p, count, changed);
+                    } else {
+                        applyFull(p, count, changed);
+                    }
+                    receivedVersion = newVersion;
+                    ackPending = true;
+                    resyncRequested = false;
+                    fullResyncs++;
+                } else {
+                    throw new IllegalArgumentException("Unknown part " + type);
+                }
+            }
+            receivedSizes.record(message.length());
+            applyTimes.record((System.nanoTime() - start) / 1000);
+            urgent = resyncPending || fullPending;
+        }
+        fireChanged(changed, true);
+        return urgent;
+    }
+
+    private void acknowledge(long acknowledged) {
+        if (acknowledged <= acknowledgedVersion || acknowledged > version) {
+            // Old or from an earlier instance of this side
+            return;
+        }
+        acknowledgedVersion = acknowledged;
+        Iterator<Long> it = unacknowledged.values().iterator();
+        while (it.hasNext() && it.next() <= acknowledged) {
+            it.remove();
+        }
+    }
+
+    private void applyEntries(Parser p, int count, Set<String> changed) {
+        for (int i = 0; i < count; i++) {
+            long entryVersion = p.readLong(',');
+            String key = p.readString();
+            String value = p.readString();
+            if (entryVersion <= receivedVersion) {
+                // Already applied when sent earlier
+                continue;
+            }
+            if (unacknowledged.containsKey(key)) {
+                if (authoritative) {
+                    // Conflicting change, send the value of this side again
+                    setLocalAgain(key);
+                    continue;
+                }
+                unacknowledged.remove(key);
+            }
+            if (setRemote(key, value)) {
+                changed.add(key);
+            }
+        }
+    }
+
+    private void applyFull(Parser p, int count, Set<String> changed) {
+        Map<String, String> local = new HashMap<String, String>();
+        for (String key : unacknowledged.keySet()) {
+            local.put(key, values.get(key));
+        }
+        Set<String> removed = new LinkedHashSet<String>(values.keySet());
+        for (int i = 0; i < count; i++) {
+            p.readLong(',');
+            String key = p.readString();
+            String value = p.readString();
+            removed.remove(key);
+            if (!local.containsKey(key) && setRemote(key, value)) {
+                changed.add(key);
+            }
+        }
+        for (String key : removed) {
+            // Keep the local changes not seen by the other side yet
+            if (!local.containsKey(key) && setRemote(key, null)) {
+                changed.add(key);
+            }
+        }
+    }
+
+    private void setLocalAgain(String key) {
+        version++;
+        unacknowledged.remove(key);
+        unacknowledged.put(key, version);
+    }
+
+    private boolean setRemote(String key, String value) {
+        String old = value == null ? values.remove(key) : values.put(key,
+                value);
+        return value == null ? old != null : !value.equals(old);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + values.size() + ",version=" + version
+                + ",acknowledged=" + acknowledgedVersion + ",received="
+                + receivedVersion + ",sentMessages=" + sentSizes.getCount()
+                + ",sentChars=" + sentSizes.getTotal() + ",receivedMessages="
+                + receivedSizes.getCount() + ",receivedChars="
+                + receivedSizes.getTotal() + ",applyMicros="
+                + applyTimes.getTotal() + ",fullResyncs=" + fullResyncs;
+    }
+
+    /**
+     * Reader of the encoded messages.
+     */
+    private static final class Parser {
+
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        boolean atEnd() {
+            return pos >= s.length();
+        }
+
+        char next() {
+            if (atEnd()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            return s.charAt(pos++);
+        }
+
+        void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("Expected " + c + " at "
+                        + (pos - 1));
+            }
+        }
+
+        String readUntil(char delimiter) {
+            int end = s.indexOf(delimiter, pos);
+            if (end < 0) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            String value = s.substring(pos, end);
+            pos = end + 1;
+            return value;
+        }
+
+        long readLong(char delimiter) {
+            try {
+                return Long.parseLong(readUntil(delimiter));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed message", e);
+            }
+        }
+
+        /**
+         * Read a length-prefixed string, null if the length is -1.
+         */
+        String readString() {
+            int length = (int) readLong(':');
+            if (length < 0) {
+                return null;
+            }
+            if (pos + length > s.length()) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            String value = s.substring(pos, pos + length);
+            pos += length;
+            return value;
+        }
+
+        void skipEntries(int count) {
+            for (int i = 0; i < count; i++) {
+                readLong(',');
+                readString();
+                readString();
+            }
+        }
+    }
+}
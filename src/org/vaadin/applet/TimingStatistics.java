@@ -0,0 +1,75 @@
+package org.vaadin.applet;
+
+import java.io.Serializable;
+
+/**
+ * Aggregate of the durations of one kind of operation, in milliseconds.
+ *
+ * @see AppletIntegration#getClientTimings()
+ */
+public class TimingStatistics implements Serializable {
+
+    private static final long serialVersionUID = 6030281496211842657L;
+
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Add an aggregate of samples.
+     *
+     * @param count
+     *            Number of samples.
+     * @param total
+     *            Sum of the samples.
+     * @param max
+     *            Largest sample.
+     */
+    void add(long count, long total, long max) {
+        this.count += count;
+        this.total += total;
+        this.max = Math.max(this.max, max);
+    }
+
+    /**
+     * Get the number of samples.
+     *
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of the samples in milliseconds.
+     *
+     * @return
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the largest sample in milliseconds.
+     *
+     * @return
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the samples in milliseconds.
+     *
+     * @return the mean or 0 if there are no samples
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + Math.round(getMean()) + "ms max="
+                + max + "ms";
+    }
+}
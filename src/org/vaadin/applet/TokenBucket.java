@@ -0,0 +1,59 @@
+package org.vaadin.applet;
+
+/**
+ * Token bucket used by {@link AbstractVaadinApplet} to limit the rate of
+ * immediate variable updates.
+ *
+ * The bucket holds up to <code>burst</code> tokens and is refilled with
+ * <code>rate</code> tokens per second. A rate of zero disables the limit.
+ */
+final class TokenBucket {
+
+    private double rate;
+    private int burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(int rate, int burst) {
+        configure(rate, burst);
+    }
+
+    /**
+     * Change the limit. The bucket starts full.
+     *
+     * @param rate
+     *            Tokens per second or 0 for no limit.
+     * @param burst
+     *            Maximum number of tokens. Defaults to the rate if not
+     *            positive.
+     */
+    synchronized void configure(int rate, int burst) {
+        this.rate = Math.max(0, rate);
+        this.burst = burst > 0 ? burst : Math.max(1, rate);
+        tokens = this.burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @return true if a token was taken or the rate is not limited
+     */
+    synchronized boolean tryAcquire() {
+        if (rate <= 0) {
+            return true;
+        }
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+}
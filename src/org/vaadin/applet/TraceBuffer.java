@@ -0,0 +1,195 @@
+package org.vaadin.applet;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded in-memory buffer of the latest bridge events of an applet.
+ *
+ * Recording an event is lock-free and does not do any I/O, so the buffer can
+ * be kept enabled in production. When the buffer is full the oldest events
+ * are overwritten. Use {@link #getEvents()} or {@link #dump()} to read the
+ * contents.
+ *
+ * @see AbstractVaadinApplet#dumpTrace()
+ */
+public class TraceBuffer implements Serializable {
+
+    private static final long serialVersionUID = -2951840734520571937L;
+
+    /**
+     * Type of a recorded event.
+     */
+    public enum Type {
+        /** JavaScript call from the applet. */
+        JS_CALL,
+        /** Command received from JavaScript. */
+        COMMAND_RECEIVED,
+        /** Command executed by the applet. */
+        COMMAND_EXECUTED
+    }
+
+    private final AtomicReferenceArray<TraceEvent> events;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Create a buffer that holds up to the given number of events.
+     *
+     * @param capacity
+     *            Maximum number of events. Zero disables recording.
+     */
+    public TraceBuffer(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative");
+        }
+        events = new AtomicReferenceArray<TraceEvent>(capacity);
+    }
+
+    /**
+     * Get the maximum number of events held by this buffer.
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return events.length();
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param type
+     *            Event type.
+     * @param name
+     *            Name of the command or function, may be null.
+     * @param size
+     *            Size of the payload in characters or elements.
+     * @param durationNanos
+     *            Duration of the event in nanoseconds.
+     */
+    public void record(Type type, String name, int size, long durationNanos) {
+        int capacity = events.length();
+        if (capacity == 0) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        events.set((int) (seq % capacity), new TraceEvent(seq,
+                System.currentTimeMillis(), type, name, size, durationNanos));
+    }
+
+    /**
+     * Get the total number of events recorded, including the ones that have
+     * been overwritten.
+     *
+     * @return
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Get a snapshot of the buffered events, oldest first.
+     *
+     * @return
+     */
+    public List<TraceEvent> getEvents() {
+        int capacity = events.length();
+        long end = sequence.get();
+        long start = Math.max(0, end - capacity);
+        List<TraceEvent> res = new ArrayList<TraceEvent>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            TraceEvent e = events.get((int) (seq % capacity));
+            // Skip slots not yet written or already overwritten by a newer
+            // event
+            if (e != null && e.getSequence() == seq) {
+                res.add(e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Remove all buffered events.
+     */
+    public void clear() {
+        for (int i = 0; i < events.length(); i++) {
+            events.set(i, null);
+        }
+    }
+
+    /**
+     * Format the buffered events, one per line.
+     *
+     * @return
+     */
+    public String dump() {
+        SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
+        StringBuilder sb = new StringBuilder();
+        for (TraceEvent e : getEvents()) {
+            sb.append(df.format(new Date(e.getTimestamp()))).append(' ')
+                    .append(e.getType()).append(' ');
+            if (e.getName() != null) {
+                sb.append(e.getName()).append(' ');
+            }
+            sb.append("size=").append(e.getSize()).append(" duration=")
+                    .append(e.getDurationNanos() / 1000).append("us\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Immutable trace event.
+     */
+    public static class TraceEvent implements Serializable {
+
+        private static final long serialVersionUID = 4405722093645640813L;
+
+        private final long sequence;
+        private final long timestamp;
+        private final Type type;
+        private final String name;
+        private final int size;
+        private final long durationNanos;
+
+        TraceEvent(long sequence, long timestamp, Type type, String name,
+                int size, long durationNanos) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.name = name;
+            this.size = size;
+            this.durationNanos = durationNanos;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return Wall clock time in milliseconds when the event was recorded.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+    }
+}
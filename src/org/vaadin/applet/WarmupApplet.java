@@ -0,0 +1,42 @@
+package org.vaadin.applet;
+
+import java.applet.Applet;
+
+/**
+ * Invisible applet started by the client-side widget ahead of the actual
+ * applet when archive prefetching is enabled with
+ * {@link AppletIntegration#setArchivePrefetch(boolean)}.
+ *
+ * Starting this applet makes the browser plugin start the JVM and download
+ * the archives while the rest of the Vaadin UI is loading. Classes listed in
+ * the "classes" parameter are loaded so that the actual applet, which uses
+ * the same codebase and archives, starts against warm caches.
+ *
+ * This class must be included in one of the applet archives.
+ */
+public class WarmupApplet extends Applet {
+
+    private static final long serialVersionUID = -7418129346232705113L;
+
+    protected static final String PARAM_CLASSES = "classes";
+
+    @Override
+    public void init() {
+        String classes = getParameter(PARAM_CLASSES);
+        if (classes == null) {
+            return;
+        }
+        for (String className : classes.split(",")) {
+            className = className.trim();
+            if (className.endsWith(".class")) {
+                className = className.substring(0, className.length()
+                        - ".class".length());
+            }
+            try {
+                Class.forName(className, false, getClass().getClassLoader());
+            } catch (Throwable e) {
+                // Warm-up is best effort only
+            }
+        }
+    }
+}
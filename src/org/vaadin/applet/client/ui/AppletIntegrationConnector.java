@@ -6,6 +6,7 @@
 
 package org.vaadin.applet.client.ui;
 
+import com.google.gwt.core.client.Duration;
 import com.vaadin.client.ApplicationConnection;
 import com.vaadin.client.Paintable;
 import com.vaadin.client.UIDL;
@@ -31,15 +32,17 @@ public class AppletIntegrationConnector extends AbstractComponentConnector imple
 
     @Override
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
-        log.info("Set applet parameters");
+        Duration duration = new Duration();
 
         getWidget().updateFromUIDL(uidl, client);
+
+        getWidget().recordTiming(VAppletIntegration.TIMING_UIDL,
+                duration.elapsedMillis());
+        getWidget().sendTimings();
     }
 
     @Override
     public void onStateChanged(StateChangeEvent stateChangeEvent) {
-        log.info("Applet state changed");
-
         super.onStateChanged(stateChangeEvent);
 
         if (stateChangeEvent.hasPropertyChanged("width"))
@@ -0,0 +1,85 @@
+package org.vaadin.applet.client.ui;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gwt.core.client.Duration;
+
+/**
+ * Timings measured by the client-side widget, aggregated between reports to
+ * the server.
+ *
+ * Each timing is kept as a count, a total and a maximum so that recording a
+ * sample does not allocate. The aggregate is formatted as
+ * "name=count:total:max,name=count:total:max" with the durations in whole
+ * milliseconds.
+ */
+class ClientTimings {
+
+    private final Map<String, Timing> timings = new LinkedHashMap<String, Timing>();
+
+    private final int reportInterval;
+
+    private double lastReport = Duration.currentTimeMillis();
+
+    /**
+     * @param reportInterval
+     *            Minimum interval between reports in milliseconds.
+     */
+    ClientTimings(int reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Record a sample.
+     *
+     * @param name
+     * @param millis
+     */
+    void record(String name, double millis) {
+        Timing timing = timings.get(name);
+        if (timing == null) {
+            timing = new Timing();
+            timings.put(name, timing);
+        }
+        timing.count++;
+        timing.total += millis;
+        if (millis > timing.max) {
+            timing.max = millis;
+        }
+    }
+
+    /**
+     * Get the aggregated timings if the report interval has passed since the
+     * previous report, and start a new aggregation period.
+     *
+     * @param force
+     *            Report regardless of the interval.
+     * @return the formatted timings or null if nothing should be reported yet
+     */
+    String takeReport(boolean force) {
+        double now = Duration.currentTimeMillis();
+        if (timings.isEmpty() || !force && now - lastReport < reportInterval) {
+            return null;
+        }
+        lastReport = now;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Timing> e : timings.entrySet()) {
+            Timing timing = e.getValue();
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(e.getKey()).append('=').append(timing.count)
+                    .append(':').append(Math.round(timing.total)).append(':')
+                    .append(Math.round(timing.max));
+        }
+        timings.clear();
+        return sb.toString();
+    }
+
+    private static class Timing {
+        private int count;
+        private double total;
+        private double max;
+    }
+}
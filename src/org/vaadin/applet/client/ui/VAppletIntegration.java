@@ -1,7 +1,18 @@
 package org.vaadin.applet.client.ui;
 
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JsArrayString;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Style.Position;
+import com.google.gwt.dom.client.Style.Unit;
 import com.google.gwt.user.client.Cookies;
+import com.google.gwt.user.client.DOM;
+import com.google.gwt.user.client.Element;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.ui.RootPanel;
 import com.google.gwt.user.client.ui.HTML;
 import com.vaadin.client.*;
 
@@ -22,6 +33,21 @@ public class VAppletIntegration extends HTML implements Paintable {
     protected static final String PARAM_PAINTABLE_ID = "paintableId";
     protected static final String PARAM_APPLET_ID = "appletId";
     protected static final String PARAM_ACTION_URL = "actionUrl";
+    protected static final String PARAM_IMMEDIATE_RATE = "appImmediateRate";
+    protected static final String PARAM_IMMEDIATE_BURST = "appImmediateBurst";
+    protected static final String PARAM_INSERT_TIME = "appInsertTime";
+    protected static final String PARAM_HEARTBEAT_MIN = "appHeartbeatMin";
+    protected static final String PARAM_HEARTBEAT_MAX = "appHeartbeatMax";
+    protected static final String PARAM_HEARTBEAT_HINT = "appHeartbeatHint";
+    protected static final String PARAM_PUSH = "appPush";
+    protected static final String PARAM_RPC_URL = "appRpcUrl";
+    protected static final String PARAM_STREAM_URL = "appStreamUrl";
+
+    /** Path of the streams published for applets. Must match AppletRpcHandler. */
+    protected static final String STREAM_PATH = "APP/applet-stream/";
+
+    /** Applet started ahead of lazy applets to warm up the JVM and caches. */
+    protected static final String WARMUP_APPLET_CLASS = "org.vaadin.applet.WarmupApplet";
 
     /** Client-server communication attributes. */
     public static final String ATTR_APPLET_SESSION = "appletSession";
@@ -32,9 +58,66 @@ public class VAppletIntegration extends HTML implements Paintable {
     public static final String ATTR_APPLET_CODEBASE = "appletCodebase";
     public static final String ATTR_APPLET_NAME = "appletName";
     public static final String ATTR_APPLET_ACTION = "action";
+    public static final String ATTR_IMMEDIATE_RATE = "immediateRate";
+    public static final String ATTR_IMMEDIATE_BURST = "immediateBurst";
+    public static final String ATTR_LAZY = "lazy";
+    public static final String ATTR_INSTANTIATE = "instantiate";
+    public static final String ATTR_PREFETCH = "prefetch";
+    public static final String ATTR_HEARTBEAT_MIN = "heartbeatMin";
+    public static final String ATTR_HEARTBEAT_MAX = "heartbeatMax";
+    public static final String ATTR_HEARTBEAT_HINT = "heartbeatHint";
+    public static final String ATTR_PUSH = "push";
+    public static final String ATTR_RPC_URL = "rpcUrl";
 
+    public static final String TAG_CMD = "cmd";
     public static final String ATTR_CMD = "cmd";
     public static final String ATTR_CMD_PARAMS = "cmdParams";
+    public static final String ATTR_CMD_PRIORITY = "cmdPriority";
+    public static final String ATTR_CMD_TRACE = "cmdTrace";
+
+    /** Command priorities. Must match the ones in AbstractVaadinApplet. */
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    /** Interval in milliseconds of checking the visibility of a lazy applet. */
+    protected static final int LAZY_CHECK_INTERVAL = 250;
+
+    /** Maximum number of commands waiting for the applet. */
+    protected static final int MAX_BUFFERED_COMMANDS = 10000;
+
+    /** Interval in milliseconds of retrying commands the applet refused. */
+    protected static final int COMMAND_RETRY_INTERVAL = 250;
+
+    /** Time in milliseconds to retry commands before dropping them. */
+    protected static final int COMMAND_RETRY_TIMEOUT = 30000;
+
+    /** Codebases and archives for which a warm-up applet has been started. */
+    private static final Set<String> warmedUpArchives = new HashSet<String>();
+
+    /** Elements of the warm-up applets still in the DOM, by archives. */
+    private static final Map<String, Element> warmupApplets = new HashMap<String, Element>();
+
+    /**
+     * Applet widgets on the page by paintable id, used by the JavaScript
+     * bridge shared by all applets.
+     */
+    private static final Map<String, VAppletIntegration> widgets = new HashMap<String, VAppletIntegration>();
+
+    /** Whether the JavaScript bridge has been installed on the page. */
+    private static boolean bridgeInstalled;
+
+    /** Variable carrying the timings measured by the widget. */
+    public static final String VAR_CLIENT_TIMINGS = "clientTimings";
+
+    /** Timing of processing an update from the server. */
+    public static final String TIMING_UIDL = "uidl";
+    /** Timing from inserting the applet markup until the applet is ready. */
+    public static final String TIMING_READY = "ready";
+    /** Timing from receiving a command until it was passed to the applet. */
+    public static final String TIMING_COMMAND = "command";
+
+    /** Minimum interval in milliseconds of reporting timings to the server. */
+    protected static final int TIMING_REPORT_INTERVAL = 60000;
 
     /** Set the CSS class name to allow styling. */
     public static final String CLASSNAME = "v-applet";
@@ -53,6 +136,33 @@ public class VAppletIntegration extends HTML implements Paintable {
 
     /** Has the applet been initialized. Applet is initialized only once. */
     private boolean appletInitialized;
+
+    /** Has the applet markup been inserted to the DOM. */
+    private boolean appletInserted;
+
+    /** Is the markup insertion deferred until the widget is visible. */
+    private boolean lazy;
+
+    /** Is the visibility of a lazy applet being checked. */
+    private boolean visibilityCheckRunning;
+
+    /**
+     * Commands received before the applet markup was inserted or not yet
+     * accepted by the applet, in the order they were received.
+     */
+    private List<BufferedCommand> bufferedCommands;
+
+    /** Are the buffered commands being retried. */
+    private boolean retryRunning;
+
+    /** Timings not yet reported to the server. */
+    private final ClientTimings timings = new ClientTimings(
+            TIMING_REPORT_INTERVAL);
+
+    /** Time the applet markup was inserted, 0 when the applet is ready. */
+    private double insertedAt;
+
+    private Map<String, String> serverParameters;
     private String appletClass;
     private String[] archives = new String[] {};
     private Map<String, String> appletParameters;
@@ -61,6 +171,14 @@ public class VAppletIntegration extends HTML implements Paintable {
     private String width = "0";
     private String codebase;
     private String action;
+    private int immediateRate;
+    private int immediateBurst;
+    private int heartbeatMin;
+    private int heartbeatMax;
+    /** Heartbeat interval hinted before the applet was inserted. */
+    private int heartbeatHint;
+    private boolean push;
+    private String rpcUrl;
 
     /**
      * The constructor should first call super() to initialize the component and
@@ -86,6 +204,8 @@ public class VAppletIntegration extends HTML implements Paintable {
      */
     @Override
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+        double receivedAt = Duration.currentTimeMillis();
+
         // This call should be made first.
         // It handles sizes, captions, tooltips, etc. automatically.
         if (client.updateComponent(this, uidl, true)) {
@@ -98,17 +218,21 @@ public class VAppletIntegration extends HTML implements Paintable {
         // user interaction later
         this.client = client;
 
-        // Export client reference for applet use
-        exportClientUpdateVariable(client);
-
         // Save the client side identifier (paintable id) for the widget
         paintableId = uidl.getId();
 
+        // Register the widget for applet use
+        registerWidget(this);
+
         appletId = CLASSNAME + paintableId;
         if (appletName == null) {
             appletName = appletId;
         }
 
+        // Read before the applet is inserted so that the settings are passed
+        // as applet parameters
+        updateHeartbeat(uidl);
+
         // Create the Java applet using HTML
         if (!appletInitialized) {
 
@@ -153,51 +277,463 @@ public class VAppletIntegration extends HTML implements Paintable {
 
             archives = uidl.getStringArrayAttribute(ATTR_APPLET_ARCHIVES);
 
-            // Applet appletParameters
-            appletParameters = getDefaultIntegrationParameters();
+            if (uidl.hasAttribute(ATTR_RPC_URL)) {
+                rpcUrl = client.translateVaadinUri(uidl
+                        .getStringAttribute(ATTR_RPC_URL));
+            }
+
+            if (uidl.hasAttribute(ATTR_IMMEDIATE_RATE)) {
+                immediateRate = uidl.getIntAttribute(ATTR_IMMEDIATE_RATE);
+                immediateBurst = uidl.getIntAttribute(ATTR_IMMEDIATE_BURST);
+            }
+
+            // Applet appletParameters set by the server
+            serverParameters = new HashMap<String, String>();
             if (uidl.hasAttribute(ATTR_APPLET_PARAM_NAMES)) {
                 ValueMap map = uidl.getMapAttribute(ATTR_APPLET_PARAM_NAMES);
                 Set<String> keys = map.getKeySet();
                 for (String key : keys) {
-                    appletParameters.put(key, map.getString(key));
+                    serverParameters.put(key, map.getString(key));
                 }
             }
 
-            // Create the HTML
-            setHTML(getAppletHTML());
             appletInitialized = true;
+            lazy = uidl.getBooleanAttribute(ATTR_LAZY);
+            if (!lazy || uidl.getBooleanAttribute(ATTR_INSTANTIATE)) {
+                insertApplet();
+            } else {
+                if (uidl.getBooleanAttribute(ATTR_PREFETCH)) {
+                    startWarmupApplet();
+                }
+                startVisibilityCheck();
+            }
+        } else if (!appletInserted) {
+            if (uidl.hasAttribute(ATTR_IMMEDIATE_RATE)) {
+                immediateRate = uidl.getIntAttribute(ATTR_IMMEDIATE_RATE);
+                immediateBurst = uidl.getIntAttribute(ATTR_IMMEDIATE_BURST);
+            }
+            if (uidl.hasAttribute(ATTR_RPC_URL)) {
+                rpcUrl = client.translateVaadinUri(uidl
+                        .getStringAttribute(ATTR_RPC_URL));
+            }
+            if (uidl.getBooleanAttribute(ATTR_INSTANTIATE)) {
+                insertApplet();
+            }
+        } else if (uidl.hasAttribute(ATTR_IMMEDIATE_RATE)) {
+            // Forward changes of the rate limit to the running applet
+            int rate = uidl.getIntAttribute(ATTR_IMMEDIATE_RATE);
+            int burst = uidl.getIntAttribute(ATTR_IMMEDIATE_BURST);
+            if (rate != immediateRate || burst != immediateBurst) {
+                immediateRate = rate;
+                immediateBurst = burst;
+                internalSetImmediateUpdateLimit(getAppletId(), rate, burst);
+            }
         }
 
-        // Execute the command
-        String cmd = null;
-        String[] cmdParams = null;
-        if (uidl.hasAttribute(ATTR_CMD)) {
-            cmd = uidl.getStringAttribute(ATTR_CMD);
+        // Execute the commands
+        for (Iterator<Object> it = uidl.getChildIterator(); it.hasNext();) {
+            Object child = it.next();
+            if (!(child instanceof UIDL)
+                    || !TAG_CMD.equals(((UIDL) child).getTag())) {
+                continue;
+            }
+            UIDL cmd = (UIDL) child;
+            String[] cmdParams = null;
+            if (cmd.hasAttribute(ATTR_CMD_PARAMS)) {
+                cmdParams = cmd.getStringArrayAttribute(ATTR_CMD_PARAMS);
+            }
+            int priority = PRIORITY_NORMAL;
+            if (cmd.hasAttribute(ATTR_CMD_PRIORITY)) {
+                priority = cmd.getIntAttribute(ATTR_CMD_PRIORITY);
+            }
+            String trace = null;
+            if (cmd.hasAttribute(ATTR_CMD_TRACE)) {
+                trace = cmd.getStringAttribute(ATTR_CMD_TRACE);
+            }
+            execute(cmd.getStringAttribute(ATTR_CMD), cmdParams, priority,
+                    receivedAt, trace);
         }
-        if (uidl.hasAttribute(ATTR_CMD_PARAMS)) {
-            cmdParams = uidl.getStringArrayAttribute(ATTR_CMD_PARAMS);
+    }
+
+    /**
+     * Insert the applet markup to the DOM and execute the commands received
+     * before it. Commands the applet does not accept yet are retried until it
+     * has started.
+     */
+    protected void insertApplet() {
+        if (appletInserted) {
+            return;
         }
-        if (cmd != null) {
-            execute(cmd, cmdParams);
+        appletParameters = getDefaultIntegrationParameters();
+        appletParameters.putAll(serverParameters);
+
+        // Create the HTML
+        insertedAt = Duration.currentTimeMillis();
+        setHTML(getAppletHTML());
+        appletInserted = true;
+
+        if (bufferedCommands != null && !executeBufferedCommands()) {
+            startCommandRetry();
         }
     }
 
-    private native static void exportClientUpdateVariable(
-            ApplicationConnection client) /*-{
-                                          var c = client;
-                                          $wnd.vaadin.appletUpdateBooleanVariable = function(pid, variableName, newValue, immediate) {
-                                          c.@com.vaadin.client.ApplicationConnection::updateVariable(Ljava/lang/String;Ljava/lang/String;ZZ)(pid, variableName, newValue, immediate);
-                                          };
-                                          $wnd.vaadin.appletUpdateIntVariable = function(pid, variableName, newValue, immediate) {
-                                          c.@com.vaadin.client.ApplicationConnection::updateVariable(Ljava/lang/String;Ljava/lang/String;IZ)(pid, variableName, newValue, immediate);
-                                          };
-                                          $wnd.vaadin.appletUpdateDoubleVariable = function(pid, variableName, newValue, immediate) {
-                                          c.@com.vaadin.client.ApplicationConnection::updateVariable(Ljava/lang/String;Ljava/lang/String;DZ)(pid, variableName, newValue, immediate);
-                                          };
-                                          $wnd.vaadin.appletUpdateStringVariable = function(pid, variableName, newValue, immediate) {
-                                          c.@com.vaadin.client.ApplicationConnection::updateVariable(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)(pid, variableName, newValue, immediate);
-                                          };
-                                          }-*/;
+    /**
+     * Pass the buffered commands to the applet in order, until the applet
+     * refuses one.
+     *
+     * @return true if all of the commands were passed
+     */
+    private boolean executeBufferedCommands() {
+        while (bufferedCommands != null && !bufferedCommands.isEmpty()) {
+            BufferedCommand cmd = bufferedCommands.get(0);
+            if (!deliver(cmd.cmd, cmd.cmdParams, cmd.priority, cmd.receivedAt,
+                    cmd.trace)) {
+                return false;
+            }
+            bufferedCommands.remove(0);
+        }
+        bufferedCommands = null;
+        return true;
+    }
+
+    /**
+     * Retry the buffered commands until the applet accepts them or
+     * {@link #COMMAND_RETRY_TIMEOUT} has passed. The applet does not accept
+     * commands until the plugin has started it.
+     */
+    private void startCommandRetry() {
+        if (retryRunning) {
+            return;
+        }
+        retryRunning = true;
+        final double start = Duration.currentTimeMillis();
+        Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+            @Override
+            public boolean execute() {
+                if (executeBufferedCommands()) {
+                    retryRunning = false;
+                    return false;
+                }
+                double elapsed = Duration.currentTimeMillis() - start;
+                if (elapsed > COMMAND_RETRY_TIMEOUT) {
+                    VConsole.error("Applet " + getAppletId()
+                            + " did not accept commands, dropped "
+                            + bufferedCommands.size());
+                    bufferedCommands = null;
+                    retryRunning = false;
+                    return false;
+                }
+                return true;
+            }
+        }, COMMAND_RETRY_INTERVAL);
+    }
+
+    /**
+     * Add a command to the buffer. When the buffer is full the oldest normal
+     * priority command is dropped.
+     */
+    private void buffer(BufferedCommand command) {
+        if (bufferedCommands == null) {
+            bufferedCommands = new ArrayList<BufferedCommand>();
+        }
+        if (bufferedCommands.size() >= MAX_BUFFERED_COMMANDS) {
+            BufferedCommand dropped = command;
+            for (BufferedCommand cmd : bufferedCommands) {
+                if (cmd.priority == PRIORITY_NORMAL) {
+                    dropped = cmd;
+                    break;
+                }
+            }
+            VConsole.error("Too many commands for applet " + getAppletId()
+                    + ", dropped command " + dropped.cmd);
+            if (dropped == command) {
+                return;
+            }
+            bufferedCommands.remove(dropped);
+        }
+        bufferedCommands.add(command);
+    }
+
+    /**
+     * Start a hidden applet with the same codebase and archives as this
+     * applet, unless one has already been started on this page. This makes
+     * the plugin start the JVM, download the archives and load the applet
+     * class while the actual applet is deferred. The warm-up applet is
+     * removed when an applet with the same archives is ready.
+     */
+    protected void startWarmupApplet() {
+        String archiveAttribute = getArchiveAttribute();
+        String key = getCodebase() + "|" + archiveAttribute;
+        if (!warmedUpArchives.add(key)) {
+            return;
+        }
+        Element warmup = DOM.createDiv();
+        warmup.getStyle().setPosition(Position.ABSOLUTE);
+        warmup.getStyle().setLeft(-100, Unit.PX);
+        warmup.getStyle().setTop(-100, Unit.PX);
+        warmup.setInnerHTML("<applet mayscript=\"true\" code=\""
+                + WARMUP_APPLET_CLASS + "\" codebase=\"" + getCodebase()
+                + "\" width=\"1\" height=\"1\" archive=\""
+                + archiveAttribute + "\"><param name=\"classes\" value=\""
+                + getAppletClass() + "\" /></applet>");
+        RootPanel.getBodyElement().appendChild(warmup);
+        warmupApplets.put(key, warmup);
+    }
+
+    /**
+     * Remove the warm-up applet started for the archives of this applet, if
+     * it is still in the DOM. Called when this applet is ready, as the
+     * warm-up applet is no longer needed then.
+     */
+    protected void removeWarmupApplet() {
+        Element warmup = warmupApplets.remove(getCodebase() + "|"
+                + getArchiveAttribute());
+        if (warmup != null) {
+            warmup.removeFromParent();
+        }
+    }
+
+    /**
+     * Check if the applet markup has been inserted to the DOM.
+     *
+     * @return
+     */
+    protected boolean isAppletInserted() {
+        return appletInserted;
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        if (client != null && paintableId != null) {
+            registerWidget(this);
+        }
+        if (appletInitialized && !appletInserted) {
+            startVisibilityCheck();
+        }
+    }
+
+    @Override
+    protected void onUnload() {
+        // Remove the entry unless another widget has taken the id
+        if (paintableId != null && widgets.get(paintableId) == this) {
+            widgets.remove(paintableId);
+        }
+        super.onUnload();
+    }
+
+    /**
+     * Periodically check if a lazy applet has become visible while the widget
+     * is attached.
+     */
+    private void startVisibilityCheck() {
+        if (visibilityCheckRunning) {
+            return;
+        }
+        if (isVisibleOnScreen()) {
+            insertApplet();
+            return;
+        }
+        visibilityCheckRunning = true;
+        Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+            @Override
+            public boolean execute() {
+                if (appletInserted || !isAttached()) {
+                    visibilityCheckRunning = false;
+                    return false;
+                }
+                if (isVisibleOnScreen()) {
+                    visibilityCheckRunning = false;
+                    insertApplet();
+                    return false;
+                }
+                return true;
+            }
+        }, LAZY_CHECK_INTERVAL);
+    }
+
+    /**
+     * Check if the widget is displayed and intersects with the browser
+     * viewport.
+     *
+     * @return
+     */
+    protected boolean isVisibleOnScreen() {
+        if (!isAttached() || !isVisible()) {
+            return false;
+        }
+        Element e = getElement();
+        // Elements hidden with display: none have no offset parent
+        if (e.getOffsetParent() == null) {
+            return false;
+        }
+        int top = e.getAbsoluteTop();
+        int left = e.getAbsoluteLeft();
+        return top <= Window.getScrollTop() + Window.getClientHeight()
+                && top + e.getOffsetHeight() >= Window.getScrollTop()
+                && left <= Window.getScrollLeft() + Window.getClientWidth()
+                && left + e.getOffsetWidth() >= Window.getScrollLeft();
+    }
+
+    /**
+     * Register an applet widget in the page-level bridge, installing the
+     * bridge on the first call.
+     *
+     * @param widget
+     */
+    private static void registerWidget(VAppletIntegration widget) {
+        widgets.put(widget.paintableId, widget);
+        if (!bridgeInstalled) {
+            installBridge();
+            bridgeInstalled = true;
+        }
+    }
+
+    /**
+     * Get the connection of the applet widget sending a variable.
+     *
+     * @param pid
+     * @param variableName
+     * @return the connection or null if the widget has been detached
+     */
+    private static ApplicationConnection getConnection(String pid,
+            String variableName) {
+        VAppletIntegration widget = widgets.get(pid);
+        if (widget == null) {
+            VConsole.log("Ignored variable " + variableName
+                    + " of detached applet " + pid);
+            return null;
+        }
+        return widget.client;
+    }
+
+    /**
+     * Called by the applet when it has been initialized.
+     *
+     * @param pid
+     */
+    private static void appletReady(String pid) {
+        final VAppletIntegration widget = widgets.get(pid);
+        if (widget != null && widget.appletInserted) {
+            // Not within the call from the applet
+            Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+                @Override
+                public void execute() {
+                    widget.executeBufferedCommands();
+                    widget.removeWarmupApplet();
+                }
+            });
+        }
+        if (widget != null && widget.insertedAt > 0) {
+            widget.recordTiming(TIMING_READY, Duration.currentTimeMillis()
+                    - widget.insertedAt);
+            widget.insertedAt = 0;
+            // Report the first start-up without waiting for the interval
+            widget.sendTimings(true);
+        }
+    }
+
+    private static void updateBooleanVariable(String pid, String name,
+            boolean value, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, value, immediate);
+        }
+    }
+
+    private static void updateIntVariable(String pid, String name, int value,
+            boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, value, immediate);
+        }
+    }
+
+    private static void updateDoubleVariable(String pid, String name,
+            double value, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, value, immediate);
+        }
+    }
+
+    private static void updateFloatVariable(String pid, String name,
+            float value, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, value, immediate);
+        }
+    }
+
+    /**
+     * Long values are passed as strings, as JavaScript numbers cannot hold
+     * all long values.
+     */
+    private static void updateLongVariable(String pid, String name,
+            String value, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, Long.parseLong(value), immediate);
+        }
+    }
+
+    private static void updateStringVariable(String pid, String name,
+            String value, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            client.updateVariable(pid, name, value, immediate);
+        }
+    }
+
+    private static void updateStringArrayVariable(String pid, String name,
+            JsArrayString values, boolean immediate) {
+        ApplicationConnection client = getConnection(pid, name);
+        if (client != null) {
+            String[] array = new String[values.length()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = values.get(i);
+            }
+            client.updateVariable(pid, name, array, immediate);
+        }
+    }
+
+    /**
+     * Export the functions called by AbstractVaadinApplet to send variables.
+     * The functions are shared by all of the applets on the page and find
+     * the connection of the applet by its paintable id.
+     */
+    private native static void installBridge()
+    /*-{
+        $wnd.vaadin.appletReady = $entry(function(pid) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::appletReady(Ljava/lang/String;)(pid);
+        });
+        $wnd.vaadin.appletUpdateBooleanVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateBooleanVariable(Ljava/lang/String;Ljava/lang/String;ZZ)(pid, variableName, newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateIntVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateIntVariable(Ljava/lang/String;Ljava/lang/String;IZ)(pid, variableName, newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateDoubleVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateDoubleVariable(Ljava/lang/String;Ljava/lang/String;DZ)(pid, variableName, newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateFloatVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateFloatVariable(Ljava/lang/String;Ljava/lang/String;FZ)(pid, variableName, newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateLongVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateLongVariable(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)(pid, variableName, "" + newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateStringVariable = $entry(function(pid, variableName, newValue, immediate) {
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateStringVariable(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)(pid, variableName, newValue, immediate);
+        });
+        $wnd.vaadin.appletUpdateStringArrayVariable = $entry(function(pid, variableName, newValue, immediate) {
+            // Copy the Java array passed by the applet to a JavaScript array
+            var values = [];
+            for (var i = 0; i < newValue.length; i++) {
+                values.push(newValue[i] == null ? null : "" + newValue[i]);
+            }
+            @org.vaadin.applet.client.ui.VAppletIntegration::updateStringArrayVariable(Ljava/lang/String;Ljava/lang/String;Lcom/google/gwt/core/client/JsArrayString;Z)(pid, variableName, values, immediate);
+        });
+    }-*/;
 
     /**
      * Execute a command in applet using AbstractVaadinApplet.execute method.
@@ -207,12 +743,95 @@ public class VAppletIntegration extends HTML implements Paintable {
      * @param cmdParams
      */
     public void execute(String cmd, String[] cmdParams) {
+        execute(cmd, cmdParams, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Execute a command with priority in applet using
+     * AbstractVaadinApplet.execute method.
+     *
+     * @param cmd
+     * @param cmdParams
+     * @param priority
+     */
+    public void execute(String cmd, String[] cmdParams, int priority) {
+        execute(cmd, cmdParams, priority, Duration.currentTimeMillis(), null);
+    }
+
+    private void execute(String cmd, String[] cmdParams, int priority,
+            double receivedAt, String trace) {
+        if (!appletInserted || bufferedCommands != null
+                || !deliver(cmd, cmdParams, priority, receivedAt, trace)) {
+            // Deliver when the applet has been created, after the commands
+            // received before
+            buffer(new BufferedCommand(cmd, cmdParams, priority, receivedAt,
+                    trace));
+            if (appletInserted) {
+                startCommandRetry();
+            }
+        }
+    }
+
+    /**
+     * Pass a command to the applet.
+     *
+     * @return false if the applet is not available or did not accept the
+     *         command
+     */
+    private boolean deliver(String cmd, String[] cmdParams, int priority,
+            double receivedAt, String trace) {
         VConsole.log("Applet command: " + getAppletId() + ",'" + cmd + "','"
-                + cmdParams + "'");
-        if (cmdParams != null && cmdParams.length > 0) {
-            internalAppletExecute(getAppletId(), cmd, cmdParams);
+                + cmdParams + "'," + priority);
+        boolean delivered;
+        if (trace != null) {
+            // The timestamps are comparable with the ones of the applet
+            delivered = internalAppletExecuteTraced(getAppletId(), cmd,
+                    cmdParams != null ? cmdParams : new String[0], priority,
+                    trace + ":" + (long) receivedAt + ":"
+                            + (long) Duration.currentTimeMillis());
+        } else if (priority != PRIORITY_NORMAL) {
+            delivered = internalAppletExecute(getAppletId(), cmd,
+                    cmdParams != null ? cmdParams : new String[0], priority);
+        } else if (cmdParams != null && cmdParams.length > 0) {
+            delivered = internalAppletExecute(getAppletId(), cmd, cmdParams);
         } else {
-            internalAppletExecute(getAppletId(), cmd);
+            delivered = internalAppletExecute(getAppletId(), cmd);
+        }
+        if (delivered) {
+            recordTiming(TIMING_COMMAND, Duration.currentTimeMillis()
+                    - receivedAt);
+        }
+        return delivered;
+    }
+
+    /**
+     * Record a timing to be reported to the server.
+     *
+     * @param name
+     *            Name of the timing, for example {@link #TIMING_UIDL}.
+     * @param millis
+     *            Duration in milliseconds.
+     */
+    public void recordTiming(String name, double millis) {
+        timings.record(name, millis);
+    }
+
+    /**
+     * Send the recorded timings to the server with the next request, if the
+     * report interval has passed since they were last sent.
+     */
+    public void sendTimings() {
+        sendTimings(false);
+    }
+
+    private void sendTimings(boolean force) {
+        if (client == null || paintableId == null) {
+            return;
+        }
+        String report = timings.takeReport(force);
+        if (report != null) {
+            client.updateVariable(paintableId, VAR_CLIENT_TIMINGS, report,
+                    false);
         }
     }
 
@@ -222,12 +841,18 @@ public class VAppletIntegration extends HTML implements Paintable {
      *
      * @param id
      * @param cmd
+     * @return false if the applet is not available or the call failed
      */
-    private native void internalAppletExecute(String id, String cmd)
+    private native boolean internalAppletExecute(String id, String cmd)
     /*-{
        if ($doc.applets[id]) {
-            $doc.applets[id].execute(cmd);
+            try {
+                $doc.applets[id].execute(cmd);
+                return true;
+            } catch (e) {
+            }
         }
+        return false;
     }-*/;
 
     /**
@@ -238,12 +863,178 @@ public class VAppletIntegration extends HTML implements Paintable {
      * @param id
      * @param cmd
      * @param cmdParams
+     * @return false if the applet is not available or the call failed
      */
-    private native void internalAppletExecute(String id, String cmd,
+    private native boolean internalAppletExecute(String id, String cmd,
             String[] cmdParams)
     /*-{
        if ($doc.applets[id]) {
-            $doc.applets[id].execute(cmd,cmdParams);
+            try {
+                $doc.applets[id].execute(cmd,cmdParams);
+                return true;
+            } catch (e) {
+            }
+        }
+        return false;
+    }-*/;
+
+    /**
+     * This is the internal method that invokes the execute method in applet
+     * with a priority. Note that this requires that the applet has a method
+     * called "execute" with string parameters and an int priority.
+     *
+     * @param id
+     * @param cmd
+     * @param cmdParams
+     * @param priority
+     * @return false if the applet is not available or the call failed
+     */
+    private native boolean internalAppletExecute(String id, String cmd,
+            String[] cmdParams, int priority)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].execute(cmd,cmdParams,priority);
+                return true;
+            } catch (e) {
+            }
+        }
+        return false;
+    }-*/;
+
+    /**
+     * This is the internal method that invokes the executeTraced method in
+     * applet.
+     *
+     * @param id
+     * @param cmd
+     * @param cmdParams
+     * @param priority
+     * @param trace
+     * @return false if the applet is not available or the call failed
+     */
+    private native boolean internalAppletExecuteTraced(String id, String cmd,
+            String[] cmdParams, int priority, String trace)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].executeTraced(cmd,cmdParams,priority,trace);
+                return true;
+            } catch (e) {
+            }
+        }
+        return false;
+    }-*/;
+
+    /**
+     * Read the heartbeat settings painted by the server. Changes are
+     * forwarded to the applet once it is running.
+     *
+     * @param uidl
+     */
+    private void updateHeartbeat(UIDL uidl) {
+        if (!uidl.hasAttribute(ATTR_HEARTBEAT_MAX)) {
+            return;
+        }
+        int min = uidl.getIntAttribute(ATTR_HEARTBEAT_MIN);
+        int max = uidl.getIntAttribute(ATTR_HEARTBEAT_MAX);
+        boolean pushEnabled = uidl.getBooleanAttribute(ATTR_PUSH);
+        boolean changed = min != heartbeatMin || max != heartbeatMax;
+        boolean pushChanged = pushEnabled != push;
+        heartbeatMin = min;
+        heartbeatMax = max;
+        push = pushEnabled;
+        if (!appletInserted) {
+            // Passed to the applet as a parameter when it is inserted
+            if (uidl.hasAttribute(ATTR_HEARTBEAT_HINT)) {
+                heartbeatHint = uidl.getIntAttribute(ATTR_HEARTBEAT_HINT);
+            }
+            return;
+        }
+        if (changed) {
+            internalSetHeartbeat(getAppletId(), min, max);
+        }
+        if (pushChanged) {
+            internalSetPushActive(getAppletId(), pushEnabled);
+        }
+        if (uidl.hasAttribute(ATTR_HEARTBEAT_HINT)) {
+            internalHintHeartbeat(getAppletId(),
+                    uidl.getIntAttribute(ATTR_HEARTBEAT_HINT));
+        }
+    }
+
+    /**
+     * Change the heartbeat of a running applet using
+     * AbstractVaadinApplet.setHeartbeat method.
+     *
+     * @param id
+     * @param min
+     * @param max
+     */
+    private native void internalSetHeartbeat(String id, int min, int max)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].setHeartbeat(min, max);
+            } catch (e) {
+                // Applet does not support the heartbeat
+            }
+        }
+    }-*/;
+
+    /**
+     * Pass the heartbeat interval hinted by the server to a running applet
+     * using AbstractVaadinApplet.hintHeartbeat method.
+     *
+     * @param id
+     * @param interval
+     */
+    private native void internalHintHeartbeat(String id, int interval)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].hintHeartbeat(interval);
+            } catch (e) {
+                // Applet does not support the heartbeat
+            }
+        }
+    }-*/;
+
+    /**
+     * Tell a running applet whether server push is active using
+     * AbstractVaadinApplet.setPushActive method.
+     *
+     * @param id
+     * @param active
+     */
+    private native void internalSetPushActive(String id, boolean active)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].setPushActive(active);
+            } catch (e) {
+                // Applet does not support the heartbeat
+            }
+        }
+    }-*/;
+
+    /**
+     * Change the rate limit of immediate updates in a running applet using
+     * AbstractVaadinApplet.setImmediateUpdateLimit method.
+     *
+     * @param id
+     * @param rate
+     * @param burst
+     */
+    private native void internalSetImmediateUpdateLimit(String id, int rate,
+            int burst)
+    /*-{
+       if ($doc.applets[id]) {
+            try {
+                $doc.applets[id].setImmediateUpdateLimit(rate, burst);
+            } catch (e) {
+                // Applet does not support rate limiting
+            }
         }
     }-*/;
 
@@ -267,19 +1058,7 @@ public class VAppletIntegration extends HTML implements Paintable {
     protected String getAppletHTML() {
 
         // Compose dependency JAR files
-        List<String> archives = getArchives();
-        String archiveAttribute = "";
-        if (archives != null) {
-            boolean first = true;
-            for (String a : archives) {
-                if (!first) {
-                    archiveAttribute += ",";
-                } else {
-                    first = false;
-                }
-                archiveAttribute += a;
-            }
-        }
+        String archiveAttribute = getArchiveAttribute();
 
         // Compose applet appletParameters
         Map<String, String> appletParams = getAppletParameters();
@@ -299,6 +1078,28 @@ public class VAppletIntegration extends HTML implements Paintable {
                 + "</applet>";
     }
 
+    /**
+     * Get the value of the archive attribute of the applet.
+     *
+     * @return Comma separated list of archives.
+     */
+    private String getArchiveAttribute() {
+        List<String> archives = getArchives();
+        String archiveAttribute = "";
+        if (archives != null) {
+            boolean first = true;
+            for (String a : archives) {
+                if (!first) {
+                    archiveAttribute += ",";
+                } else {
+                    first = false;
+                }
+                archiveAttribute += a;
+            }
+        }
+        return archiveAttribute;
+    }
+
     /**
      * Get codebase of this applet. By default the code base points to
      * GWT.getModuleBaseURL().
@@ -398,6 +1199,27 @@ public class VAppletIntegration extends HTML implements Paintable {
         res.put(PARAM_APP_DEBUG,
                 ApplicationConfiguration.isDebugMode() ? "true" : "false");
         res.put(PARAM_APP_URL, GWT.getHostPageBaseURL());
+        res.put(PARAM_INSERT_TIME, String.valueOf(System.currentTimeMillis()));
+        if (immediateRate > 0) {
+            res.put(PARAM_IMMEDIATE_RATE, String.valueOf(immediateRate));
+            res.put(PARAM_IMMEDIATE_BURST, String.valueOf(immediateBurst));
+        }
+        if (heartbeatMax > 0) {
+            res.put(PARAM_HEARTBEAT_MIN, String.valueOf(heartbeatMin));
+            res.put(PARAM_HEARTBEAT_MAX, String.valueOf(heartbeatMax));
+        }
+        if (heartbeatHint > 0) {
+            res.put(PARAM_HEARTBEAT_HINT, String.valueOf(heartbeatHint));
+            heartbeatHint = 0;
+        }
+        if (push) {
+            res.put(PARAM_PUSH, "true");
+        }
+        if (rpcUrl != null) {
+            res.put(PARAM_RPC_URL, rpcUrl);
+        }
+        res.put(PARAM_STREAM_URL, client.translateVaadinUri("app://"
+                + STREAM_PATH));
 
         String prefix = client.getConfiguration().getServiceUrl();
         if (prefix == null) {
@@ -406,4 +1228,25 @@ public class VAppletIntegration extends HTML implements Paintable {
         res.put(PARAM_ACTION_URL, GWT.getHostPageBaseURL() + action.substring(prefix.length()));
         return res;
     }
+
+    /**
+     * Command waiting to be passed to the applet.
+     */
+    private static class BufferedCommand {
+
+        private final String cmd;
+        private final String[] cmdParams;
+        private final int priority;
+        private final double receivedAt;
+        private final String trace;
+
+        BufferedCommand(String cmd, String[] cmdParams, int priority,
+                double receivedAt, String trace) {
+            this.cmd = cmd;
+            this.cmdParams = cmdParams;
+            this.priority = priority;
+            this.receivedAt = receivedAt;
+            this.trace = trace;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+package org.vaadin.applet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ResourceCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final List<String> cookies = Collections
+            .synchronizedList(new ArrayList<String>());
+    private final CountDownLatch slowResponse = new CountDownLatch(1);
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                cookies.add(exchange.getRequestHeaders().getFirst("Cookie"));
+                if (exchange.getRequestURI().getPath().startsWith("/slow")) {
+                    try {
+                        slowResponse.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte[] body = exchange.getRequestURI().getPath()
+                        .getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private URL url(String host, String path) throws IOException {
+        return new URL("http://" + host + ":" + server.getAddress().getPort()
+                + path);
+    }
+
+    @Test
+    public void sessionCookieSentOnlyToCodeBase() throws IOException {
+        ResourceCache cache = new ResourceCache(folder.newFolder("cache"),
+                1024, url("127.0.0.1", "/app/"), "JSESSIONID=secret");
+        cache.get(url("127.0.0.1", "/app/template"));
+        assertEquals("JSESSIONID=secret", cookies.get(0));
+
+        // Other host
+        cache.get(url("localhost", "/app/template"));
+        assertNull(cookies.get(1));
+    }
+
+    @Test
+    public void sessionCookieNotSentToOtherPort() throws IOException {
+        URL codeBase = new URL("http://127.0.0.1:"
+                + (server.getAddress().getPort() + 1) + "/app/");
+        ResourceCache cache = new ResourceCache(folder.newFolder("cache"),
+                1024, codeBase, "JSESSIONID=secret");
+        cache.get(url("127.0.0.1", "/app/template"));
+        assertNull(cookies.get(0));
+    }
+
+    @Test
+    public void cachesOfSameDirectoryShareState() throws IOException {
+        File directory = folder.newFolder("cache");
+        URL codeBase = url("127.0.0.1", "/app/");
+        ResourceCache first = new ResourceCache(directory, 1024, codeBase,
+                null);
+        ResourceCache second = new ResourceCache(new File(directory,
+                "../cache"), 1024, codeBase, null);
+        URL template = url("127.0.0.1", "/app/template");
+        String hash = first.getContentHash(template);
+        assertNull(hash);
+        first.get(template);
+        hash = first.getContentHash(template);
+        assertEquals(hash, second.getContentHash(template));
+        assertEquals(first.getSize(), second.getSize());
+
+        // Known content hash, no request
+        second.get(template, hash);
+        assertEquals(1, cookies.size());
+    }
+
+    @Test
+    public void downloadsInProgressAreKept() throws IOException {
+        File directory = folder.newFolder("cache");
+        File download = new File(directory, "download1.tmp");
+        File stale = new File(directory, "download2.tmp");
+        File unknown = new File(directory, "unknown.bin");
+        assertTrue(download.createNewFile());
+        assertTrue(stale.createNewFile());
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 2
+                * 60 * 60 * 1000));
+        assertTrue(unknown.createNewFile());
+        new ResourceCache(directory, 1024, null, null);
+        assertTrue(download.exists());
+        assertFalse(stale.exists());
+        assertFalse(unknown.exists());
+    }
+
+    @Test
+    public void slowDownloadDoesNotBlockOtherRequests() throws Exception {
+        final ResourceCache cache = new ResourceCache(
+                folder.newFolder("cache"), 1024, null, null);
+        final URL slow = url("127.0.0.1", "/slow");
+        Thread download = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get(slow);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        download.start();
+        try {
+            while (cookies.isEmpty()) {
+                Thread.sleep(10);
+            }
+            cache.get(url("127.0.0.1", "/fast"));
+            assertEquals(5, cache.getSize());
+        } finally {
+            slowResponse.countDown();
+        }
+        download.join(10000);
+        assertEquals(10, cache.getSize());
+    }
+
+    @Test
+    public void evictionUsesLastUseOfOtherProcesses() throws IOException {
+        File directory = folder.newFolder("cache");
+        ResourceCache cache = new ResourceCache(directory, 12, null, null);
+        URL a = url("127.0.0.1", "/app/a");
+        URL b = url("127.0.0.1", "/app/b");
+        cache.get(a);
+        cache.get(b);
+
+        // Another process used the first file
+        File fileA = new File(directory, cache.getContentHash(a) + ".bin");
+        assertTrue(fileA.setLastModified(System.currentTimeMillis() + 10000));
+
+        cache.get(url("127.0.0.1", "/app/c"));
+        assertEquals(12, cache.getSize());
+        assertTrue(fileA.exists());
+        assertNull(cache.getContentHash(b));
+    }
+}
@@ -0,0 +1,213 @@
+package org.vaadin.applet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exchanges the messages of a server and an applet {@link SharedModel}
+ * directly, the way {@link AppletIntegration} and
+ * {@link AbstractVaadinApplet} pass them.
+ */
+public class SharedModelTest {
+
+    private SharedModel server;
+    private SharedModel applet;
+
+    @Before
+    public void connect() {
+        server = new SharedModel(true);
+        applet = new SharedModel(false);
+        applet.requestResync();
+    }
+
+    /**
+     * Pass the pending message of a model to the other one.
+     *
+     * @return true if a message was passed
+     */
+    private static boolean send(SharedModel from, SharedModel to) {
+        String message = from.takeMessage();
+        if (message == null) {
+            return false;
+        }
+        to.receive(message);
+        return true;
+    }
+
+    /**
+     * Exchange messages until neither side has anything to send.
+     */
+    private void settle() {
+        for (int i = 0; i < 10; i++) {
+            boolean sent = send(server, applet);
+            sent |= send(applet, server);
+            if (!sent) {
+                return;
+            }
+        }
+        throw new AssertionError("Models keep exchanging messages");
+    }
+
+    /**
+     * Exchange messages after the changes not acknowledged are due to be
+     * sent again.
+     */
+    private void settleLater() {
+        long later = System.currentTimeMillis() + SharedModel.RESEND_DELAY;
+        String message = server.takeMessage(later);
+        if (message != null) {
+            applet.receive(message);
+        }
+        message = applet.takeMessage(later);
+        if (message != null) {
+            server.receive(message);
+        }
+        settle();
+    }
+
+    private void assertInSync() {
+        assertEquals(server.toMap(), applet.toMap());
+        assertFalse(server.hasPendingMessage());
+        assertFalse(applet.hasPendingMessage());
+    }
+
+    @Test
+    public void initialCopy() {
+        server.put("a", "1");
+        server.put("b", "2");
+        settle();
+        assertInSync();
+        assertEquals("2", applet.get("b"));
+        assertEquals(1, server.getFullResyncCount()
+                + applet.getFullResyncCount());
+    }
+
+    @Test
+    public void changesBothWays() {
+        server.put("a", "1");
+        settle();
+        server.put("c", "3");
+        applet.put("b", "2");
+        applet.remove("a");
+        settle();
+        assertInSync();
+        assertNull(server.get("a"));
+        assertEquals("2", server.get("b"));
+        assertEquals("3", applet.get("c"));
+    }
+
+    @Test
+    public void acknowledgedChangesAreNotSentAgain() {
+        settle();
+        server.put("a", "1");
+        settle();
+        server.put("b", "2");
+        String message = server.takeMessage();
+        assertTrue(message, message.contains("1:b"));
+        assertFalse(message, message.contains("1:a"));
+    }
+
+    @Test
+    public void droppedMessageSentAgainWithNextChange() {
+        settle();
+        server.put("a", "1");
+        assertTrue(server.takeMessage() != null);
+        server.put("b", "2");
+        settle();
+        assertInSync();
+        assertEquals("1", applet.get("a"));
+        assertEquals("2", applet.get("b"));
+    }
+
+    @Test
+    public void droppedMessageSentAgainAfterDelay() {
+        settle();
+        applet.put("c", "3");
+        assertTrue(applet.takeMessage() != null);
+        settle();
+        assertNull(server.get("c"));
+        settleLater();
+        assertInSync();
+        assertEquals("3", server.get("c"));
+    }
+
+    @Test
+    public void droppedResyncRequest() {
+        server.put("a", "1");
+        settle();
+
+        applet = new SharedModel(false);
+        applet.requestResync();
+        assertTrue(applet.takeMessage() != null);
+        settle();
+        assertNull(applet.get("a"));
+        settleLater();
+        assertInSync();
+        assertEquals("1", applet.get("a"));
+    }
+
+    @Test
+    public void droppedAcknowledgement() {
+        settle();
+        server.put("a", "1");
+        send(server, applet);
+        assertTrue(applet.takeMessage() != null);
+        settleLater();
+        assertInSync();
+        assertFalse(server.hasPendingMessage(System.currentTimeMillis()
+                + SharedModel.RESEND_DELAY));
+    }
+
+    @Test
+    public void peerRestart() {
+        server.put("a", "1");
+        settle();
+        applet.put("b", "2");
+        settle();
+
+        // The applet is reloaded and starts from an empty model
+        applet = new SharedModel(false);
+        applet.requestResync();
+        settle();
+        assertInSync();
+        assertEquals("1", applet.get("a"));
+        assertEquals("2", applet.get("b"));
+
+        applet.put("c", "3");
+        server.put("d", "4");
+        settle();
+        assertInSync();
+    }
+
+    @Test
+    public void conflictingChangesKeepServerValue() {
+        server.put("a", "1");
+        settle();
+        server.put("a", "server");
+        applet.put("a", "applet");
+        String fromServer = server.takeMessage();
+        String fromApplet = applet.takeMessage();
+        server.receive(fromApplet);
+        applet.receive(fromServer);
+        settle();
+        assertInSync();
+        assertEquals("server", server.get("a"));
+    }
+
+    @Test
+    public void appletChangeAfterServerChange() {
+        server.put("a", "1");
+        settle();
+        server.put("a", "server");
+        send(server, applet);
+        applet.put("a", "applet");
+        settle();
+        assertInSync();
+        assertEquals("applet", server.get("a"));
+    }
+}
@@ -0,0 +1,595 @@
+package org.vaadin.applet.loadtest;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.vaadin.applet.AppletIntegration;
+import org.vaadin.applet.AppletParameters;
+
+import com.vaadin.server.JsonPaintTarget;
+import com.vaadin.server.PaintException;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.WrappedSession;
+
+/**
+ * In-process load test of the server-side {@link AppletIntegration}
+ * component.
+ *
+ * Drives a number of simulated sessions concurrently, each with its own
+ * {@link VaadinSession} and component, through the following scenarios:
+ * <ul>
+ * <li>commands - commands queued with executeCommand and painted</li>
+ * <li>variables - variables delivered through changeVariables to typed and
+ * batched listeners</li>
+ * <li>paint - repeated paintContent of a fully configured component</li>
+ * </ul>
+ * For each scenario the throughput, latency percentiles and allocation rate
+ * are reported. Components are painted to a {@link JsonPaintTarget} that
+ * discards its output.
+ *
+ * Usage: <code>java org.vaadin.applet.loadtest.AppletIntegrationLoadTest
+ * [sessions=N] [iterations=N] [warmup=N] [scenario=commands|variables|paint|all]</code>
+ * with target/classes, target/test-classes, vaadin-server and its
+ * dependencies in the classpath.
+ */
+public class AppletIntegrationLoadTest {
+
+    private final int sessions;
+    private final int iterations;
+    private final int warmup;
+
+    public AppletIntegrationLoadTest(int sessions, int iterations, int warmup) {
+        this.sessions = sessions;
+        this.iterations = iterations;
+        this.warmup = warmup;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0) {
+                options.put(arg.substring(0, i), arg.substring(i + 1));
+            }
+        }
+        AppletIntegrationLoadTest test = new AppletIntegrationLoadTest(
+                intOption(options, "sessions", 50), intOption(options,
+                        "iterations", 20000), intOption(options, "warmup",
+                        5000));
+        String scenario = options.containsKey("scenario") ? options
+                .get("scenario") : "all";
+
+        System.out.println("sessions=" + test.sessions + " iterations="
+                + test.iterations + " warmup=" + test.warmup);
+        for (Scenario s : scenarios()) {
+            if ("all".equals(scenario) || s.getName().equals(scenario)) {
+                System.out.println(test.run(s));
+            }
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name,
+            int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Get the built-in scenarios.
+     *
+     * @return
+     */
+    public static List<Scenario> scenarios() {
+        return Arrays.asList(new CommandScenario(), new VariableScenario(),
+                new PaintScenario());
+    }
+
+    /**
+     * Run a scenario with all of the simulated sessions concurrently.
+     *
+     * @param scenario
+     * @return
+     * @throws Exception
+     */
+    public Result run(final Scenario scenario) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<SessionResult>> futures = new ArrayList<Future<SessionResult>>();
+            for (int i = 0; i < sessions; i++) {
+                final int session = i;
+                futures.add(executor.submit(new Callable<SessionResult>() {
+                    @Override
+                    public SessionResult call() throws Exception {
+                        return runSession(scenario, session, start);
+                    }
+                }));
+            }
+            long started = System.nanoTime();
+            start.countDown();
+            List<SessionResult> results = new ArrayList<SessionResult>();
+            for (Future<SessionResult> f : futures) {
+                results.add(f.get());
+            }
+            return new Result(scenario.getName(), results, System.nanoTime()
+                    - started);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private SessionResult runSession(Scenario scenario, int session,
+            CountDownLatch start) throws Exception {
+        VaadinSession vaadinSession = new SimulatedVaadinSession("session-"
+                + session);
+        VaadinSession.setCurrent(vaadinSession);
+        try {
+            LoadTestApplet applet = new LoadTestApplet();
+            scenario.setUp(applet);
+            for (int i = 0; i < warmup; i++) {
+                scenario.execute(applet, i);
+            }
+            start.await();
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long allocatedBefore = allocatedBytes(threads);
+            long[] latencies = new long[iterations];
+            long begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t = System.nanoTime();
+                scenario.execute(applet, i);
+                latencies[i] = System.nanoTime() - t;
+            }
+            long elapsed = System.nanoTime() - begin;
+            long allocated = allocatedBytes(threads) - allocatedBefore;
+            return new SessionResult(latencies, elapsed,
+                    allocatedBefore < 0 ? -1 : allocated,
+                    applet.getPaintedChars());
+        } finally {
+            VaadinSession.setCurrent(null);
+        }
+    }
+
+    /**
+     * Get the bytes allocated by the current thread if supported by the JVM.
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Operation repeated by every simulated session.
+     */
+    public static abstract class Scenario {
+
+        private final String name;
+
+        protected Scenario(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Prepare the component of a session.
+         *
+         * @param applet
+         */
+        public void setUp(LoadTestApplet applet) {
+            applet.configure();
+        }
+
+        /**
+         * Execute one operation.
+         *
+         * @param applet
+         * @param iteration
+         * @throws Exception
+         */
+        public abstract void execute(LoadTestApplet applet, int iteration)
+                throws Exception;
+    }
+
+    /**
+     * Queue a few commands and paint them as happens in one round trip.
+     */
+    public static class CommandScenario extends Scenario {
+
+        public CommandScenario() {
+            super("commands");
+        }
+
+        @Override
+        public void execute(LoadTestApplet applet, int iteration)
+                throws Exception {
+            String value = String.valueOf(iteration);
+            applet.executeCommand("select", new String[] { value, "row" });
+            applet.executeCommand("update", new String[] { value, "a", "b",
+                    "c" });
+            applet.executeCommand("focus", null,
+                    AppletIntegration.CommandPriority.HIGH);
+            applet.paint();
+        }
+    }
+
+    /**
+     * Deliver a round trip of variables to typed and batched listeners.
+     */
+    public static class VariableScenario extends Scenario {
+
+        public VariableScenario() {
+            super("variables");
+        }
+
+        @Override
+        public void setUp(LoadTestApplet applet) {
+            super.setUp(applet);
+            applet.addVariableListener("x",
+                    new AppletIntegration.IntVariableListener() {
+                        @Override
+                        public void variableChanged(String variableName,
+                                int value) {
+                        }
+                    });
+            applet.addVariableListener("zoom",
+                    new AppletIntegration.DoubleVariableListener() {
+                        @Override
+                        public void variableChanged(String variableName,
+                                double value) {
+                        }
+                    });
+            applet.addVariableListener("selected",
+                    new AppletIntegration.BooleanVariableListener() {
+                        @Override
+                        public void variableChanged(String variableName,
+                                boolean value) {
+                        }
+                    });
+            applet.addVariablesListener(
+                    new AppletIntegration.VariablesListener() {
+                        @Override
+                        public void variablesChanged(
+                                Map<String, Object> variables) {
+                        }
+                    }, "x", "y", "text");
+        }
+
+        @Override
+        public void execute(LoadTestApplet applet, int iteration)
+                throws Exception {
+            Map<String, Object> variables = new HashMap<String, Object>();
+            variables.put("x", Integer.valueOf(iteration));
+            variables.put("y", Integer.valueOf(-iteration));
+            variables.put("zoom", Double.valueOf(1.5));
+            variables.put("selected", Boolean.TRUE);
+            variables.put("text", "value " + iteration);
+            applet.changeVariables(applet, variables);
+        }
+    }
+
+    /**
+     * Repaint a fully configured component.
+     */
+    public static class PaintScenario extends Scenario {
+
+        public PaintScenario() {
+            super("paint");
+        }
+
+        @Override
+        public void execute(LoadTestApplet applet, int iteration)
+                throws Exception {
+            applet.paint();
+        }
+    }
+
+    /**
+     * Component under test with its protected configuration published.
+     */
+    public static class LoadTestApplet extends AppletIntegration {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final AppletParameters SHARED_PARAMS;
+
+        static {
+            Map<String, String> params = new HashMap<String, String>();
+            for (int i = 0; i < 20; i++) {
+                params.put("param" + i, "value of parameter " + i);
+            }
+            SHARED_PARAMS = AppletParameters.of(params);
+        }
+
+        private final CountingWriter writer = new CountingWriter();
+
+        /**
+         * Configure the component like a typical applet with a number of
+         * archives, shared parameters and one instance specific parameter.
+         */
+        public void configure() {
+            setAppletClass("org.example.LoadTestApplet");
+            setAppletArchives(Arrays.asList("core.jar", "charts.jar",
+                    "reports.jar"));
+            setCodebase("/applets/");
+            setAppletParamsTemplate(SHARED_PARAMS);
+            setAppletParams("instance", String.valueOf(hashCode()));
+        }
+
+        /**
+         * Paint the component as a part of a UIDL response.
+         *
+         * @throws PaintException
+         */
+        public void paint() throws PaintException {
+            JsonPaintTarget target = new JsonPaintTarget(null, writer, false);
+            target.startTag("applet");
+            paintContent(target);
+            target.endTag("applet");
+        }
+
+        long getPaintedChars() {
+            return writer.count;
+        }
+    }
+
+    /**
+     * Writer that only counts the characters written.
+     */
+    private static class CountingWriter extends Writer {
+
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Session not bound to a VaadinService or servlet container.
+     */
+    private static class SimulatedVaadinSession extends VaadinSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private final WrappedSession session;
+
+        SimulatedVaadinSession(String id) {
+            super(null);
+            session = new SimulatedHttpSession(id);
+        }
+
+        @Override
+        public WrappedSession getSession() {
+            return session;
+        }
+    }
+
+    /**
+     * In-memory HTTP session.
+     */
+    private static class SimulatedHttpSession implements WrappedSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final long created = System.currentTimeMillis();
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private int maxInactiveInterval = 1800;
+
+        SimulatedHttpSession(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public int getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return Collections.unmodifiableSet(attributes.keySet());
+        }
+
+        @Override
+        public void invalidate() {
+            attributes.clear();
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return created;
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+            return created;
+        }
+
+        @Override
+        public boolean isNew() {
+            return false;
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public void setMaxInactiveInterval(int interval) {
+            maxInactiveInterval = interval;
+        }
+    }
+
+    /**
+     * Measurements of one simulated session.
+     */
+    private static class SessionResult {
+
+        final long[] latencies;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long paintedChars;
+
+        SessionResult(long[] latencies, long elapsedNanos,
+                long allocatedBytes, long paintedChars) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.paintedChars = paintedChars;
+        }
+    }
+
+    /**
+     * Aggregated measurements of a scenario.
+     */
+    public static class Result {
+
+        private final String scenario;
+        private final long operations;
+        private final long elapsedNanos;
+        private final Map<String, Long> percentiles = new LinkedHashMap<String, Long>();
+        private final long allocatedBytes;
+        private final long paintedChars;
+
+        Result(String scenario, List<SessionResult> results, long elapsedNanos) {
+            this.scenario = scenario;
+            this.elapsedNanos = elapsedNanos;
+            int total = 0;
+            long allocated = 0;
+            long painted = 0;
+            for (SessionResult r : results) {
+                total += r.latencies.length;
+                painted += r.paintedChars;
+                allocated = allocated < 0 || r.allocatedBytes < 0 ? -1
+                        : allocated + r.allocatedBytes;
+            }
+            long[] all = new long[total];
+            int i = 0;
+            for (SessionResult r : results) {
+                System.arraycopy(r.latencies, 0, all, i, r.latencies.length);
+                i += r.latencies.length;
+            }
+            Arrays.sort(all);
+            operations = total;
+            allocatedBytes = allocated;
+            paintedChars = painted;
+            if (total > 0) {
+                percentiles.put("p50", all[(int) (total * 0.50)]);
+                percentiles.put("p90", all[(int) (total * 0.90)]);
+                percentiles.put("p99", all[(int) (total * 0.99)]);
+                percentiles.put("p99.9", all[(int) (total * 0.999)]);
+                percentiles.put("max", all[total - 1]);
+            }
+        }
+
+        public String getScenario() {
+            return scenario;
+        }
+
+        /**
+         * @return operations per second over all sessions
+         */
+        public double getThroughput() {
+            return operations * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return latency percentiles in nanoseconds
+         */
+        public Map<String, Long> getLatencyPercentiles() {
+            return Collections.unmodifiableMap(percentiles);
+        }
+
+        /**
+         * @return bytes allocated per operation or -1 if not supported by the
+         *         JVM
+         */
+        public long getAllocatedBytesPerOperation() {
+            return allocatedBytes < 0 || operations == 0 ? -1
+                    : allocatedBytes / operations;
+        }
+
+        /**
+         * @return megabytes allocated per second or -1 if not supported by
+         *         the JVM
+         */
+        public double getAllocationRate() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes * 1e9
+                    / elapsedNanos / (1024 * 1024);
+        }
+
+        /**
+         * @return characters of UIDL painted per operation, including the
+         *         warm-up
+         */
+        public long getPaintedCharsPerOperation() {
+            return operations == 0 ? 0 : paintedChars / operations;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-10s %12.0f ops/s", scenario,
+                    getThroughput()));
+            for (Map.Entry<String, Long> e : percentiles.entrySet()) {
+                sb.append(String.format(" %s=%.1fus", e.getKey(),
+                        e.getValue() / 1000.0));
+            }
+            sb.append(String.format(" alloc=%dB/op %.1fMB/s",
+                    getAllocatedBytesPerOperation(), getAllocationRate()));
+            sb.append(" uidl=").append(getPaintedCharsPerOperation())
+                    .append("ch/op");
+            return sb.toString();
+        }
+    }
+}
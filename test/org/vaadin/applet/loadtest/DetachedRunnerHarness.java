@@ -0,0 +1,401 @@
+package org.vaadin.applet.loadtest;
+
+import java.applet.Applet;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.vaadin.applet.AbstractVaadinApplet;
+import org.vaadin.applet.AppletIntegration;
+import org.vaadin.applet.AppletRpcHandler;
+import org.vaadin.applet.CommandHandler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.WrappedSession;
+import com.vaadin.ui.UI;
+
+/**
+ * Local end-to-end test of running an applet detached with
+ * {@link org.vaadin.applet.DetachedAppletLauncher}.
+ *
+ * Starts an HTTP server on the loopback interface that passes the requests
+ * to the {@link AppletRpcHandler} of an in-process session, launches an
+ * {@link EchoApplet} in the same JVM and measures the round trip of a command
+ * sent with {@link AppletIntegration#executeCommand(String, String[])} and
+ * echoed back as an immediate variable.
+ *
+ * Usage: <code>java org.vaadin.applet.loadtest.DetachedRunnerHarness
+ * [iterations=N] [warmup=N]</code> with target/classes, target/test-classes,
+ * vaadin-server and its dependencies in the classpath. Applets cannot be
+ * created in a headless JVM, so a display is required.
+ */
+public class DetachedRunnerHarness {
+
+    private static final String ECHO_VARIABLE = "echo";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0) {
+                options.put(arg.substring(0, i), arg.substring(i + 1));
+            }
+        }
+        int iterations = options.containsKey("iterations") ? Integer
+                .parseInt(options.get("iterations")) : 1000;
+        int warmup = options.containsKey("warmup") ? Integer.parseInt(options
+                .get("warmup")) : 200;
+
+        final HarnessSession session = new HarnessSession("harness");
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                "127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(session, exchange);
+            }
+        });
+        server.start();
+
+        Applet applet = null;
+        try {
+            final BlockingQueue<String> echoes = new LinkedBlockingQueue<String>();
+            final EchoComponent component = new EchoComponent();
+            component.addVariableListener(ECHO_VARIABLE,
+                    new AppletIntegration.StringVariableListener() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        public void variableChanged(String variableName,
+                                String value) {
+                            echoes.add(value);
+                        }
+                    });
+            String path;
+            session.lock();
+            try {
+                UI ui = new HarnessUI();
+                ui.setSession(session);
+                ui.setContent(component);
+                path = component.createDetachedLaunchPath();
+            } finally {
+                session.unlock();
+            }
+
+            URL launchUrl = new URL("http://127.0.0.1:"
+                    + server.getAddress().getPort() + "/" + path);
+            System.out.println("Launching " + launchUrl);
+            applet = new org.vaadin.applet.DetachedAppletLauncher(launchUrl,
+                    "JSESSIONID=harness").launch();
+            applet.start();
+
+            long[] latencies = new long[iterations];
+            for (int i = -warmup; i < iterations; i++) {
+                String value = String.valueOf(i);
+                long start = System.nanoTime();
+                session.lock();
+                try {
+                    component.executeCommand("echo", new String[] { value });
+                } finally {
+                    session.unlock();
+                }
+                String echo = echoes.poll(10, TimeUnit.SECONDS);
+                if (!value.equals(echo)) {
+                    throw new IllegalStateException("Expected echo " + value
+                            + " but got " + echo);
+                }
+                if (i >= 0) {
+                    latencies[i] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(latencies);
+            System.out.println("iterations=" + iterations + " p50="
+                    + micros(latencies[iterations / 2]) + "us p90="
+                    + micros(latencies[(int) (iterations * 0.9)])
+                    + "us p99="
+                    + micros(latencies[(int) (iterations * 0.99)])
+                    + "us max=" + micros(latencies[iterations - 1]) + "us");
+        } finally {
+            if (applet != null) {
+                applet.stop();
+                applet.destroy();
+            }
+            server.stop(0);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /**
+     * Pass an HTTP request to the request handlers of the session.
+     */
+    private static void handleRequest(VaadinSession session,
+            HttpExchange exchange) throws IOException {
+        try {
+            VaadinRequest request = adapt(VaadinRequest.class,
+                    new RequestAdapter(exchange));
+            VaadinResponse response = adapt(VaadinResponse.class,
+                    new ResponseAdapter(exchange));
+            for (RequestHandler handler : session.getRequestHandlers()) {
+                if (handler.handleRequest(session, request, response)) {
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(404, -1);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T adapt(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * The parts of {@link VaadinRequest} used by the handler.
+     */
+    private static class RequestAdapter implements InvocationHandler {
+
+        private final HttpExchange exchange;
+
+        RequestAdapter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getPathInfo".equals(name)) {
+                return exchange.getRequestURI().getPath();
+            } else if ("getMethod".equals(name)) {
+                return exchange.getRequestMethod();
+            } else if ("getInputStream".equals(name)) {
+                return exchange.getRequestBody();
+            } else if ("getHeader".equals(name)) {
+                return exchange.getRequestHeaders().getFirst((String) args[0]);
+            } else if ("getContentLength".equals(name)) {
+                String length = exchange.getRequestHeaders().getFirst(
+                        "Content-Length");
+                return length == null ? -1 : Integer.parseInt(length);
+            } else if ("getParameter".equals(name)) {
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null) {
+                    for (String pair : query.split("&")) {
+                        if (pair.startsWith(args[0] + "=")) {
+                            return pair.substring(pair.indexOf('=') + 1);
+                        }
+                    }
+                }
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    /**
+     * The parts of {@link VaadinResponse} used by the handler.
+     */
+    private static class ResponseAdapter implements InvocationHandler {
+
+        private final HttpExchange exchange;
+        private int status = 200;
+
+        ResponseAdapter(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws IOException {
+            String name = method.getName();
+            if ("setStatus".equals(name)) {
+                status = (Integer) args[0];
+            } else if ("setContentType".equals(name)) {
+                exchange.getResponseHeaders().set("Content-Type",
+                        (String) args[0]);
+            } else if ("setHeader".equals(name)) {
+                exchange.getResponseHeaders().set((String) args[0],
+                        (String) args[1]);
+            } else if ("setCacheTime".equals(name)) {
+                exchange.getResponseHeaders().set("Cache-Control",
+                        "no-cache");
+            } else if ("sendError".equals(name)) {
+                exchange.sendResponseHeaders((Integer) args[0], -1);
+            } else if ("getOutputStream".equals(name)) {
+                String length = exchange.getResponseHeaders().getFirst(
+                        "Content-Length");
+                exchange.getResponseHeaders().remove("Content-Length");
+                exchange.sendResponseHeaders(status,
+                        length == null ? 0 : Long.parseLong(length));
+                return exchange.getResponseBody();
+            } else {
+                throw new UnsupportedOperationException(name);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Applet that echoes the parameter of the "echo" command back as an
+     * immediate variable.
+     */
+    public static class EchoApplet extends AbstractVaadinApplet {
+
+        private static final long serialVersionUID = 1L;
+
+        @CommandHandler("echo")
+        public void echo(String value) {
+            vaadinUpdateVariable(ECHO_VARIABLE, value, true);
+        }
+    }
+
+    /**
+     * Component running {@link EchoApplet}.
+     */
+    public static class EchoComponent extends AppletIntegration {
+
+        private static final long serialVersionUID = 1L;
+
+        public EchoComponent() {
+            setAppletClass(EchoApplet.class.getName());
+        }
+    }
+
+    private static class HarnessUI extends UI {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void init(VaadinRequest request) {
+        }
+    }
+
+    /**
+     * Session not bound to a VaadinService or servlet container, with its
+     * own lock.
+     */
+    private static class HarnessSession extends VaadinSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final WrappedSession session;
+
+        HarnessSession(String id) {
+            super(null);
+            session = new HarnessHttpSession(id);
+        }
+
+        @Override
+        public WrappedSession getSession() {
+            return session;
+        }
+
+        @Override
+        public Lock getLockInstance() {
+            return lock;
+        }
+
+        @Override
+        public void unlock() {
+            // No service to run pending tasks or push with
+            lock.unlock();
+        }
+    }
+
+    /**
+     * In-memory HTTP session.
+     */
+    private static class HarnessHttpSession implements WrappedSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final long created = System.currentTimeMillis();
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        HarnessHttpSession(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public int getMaxInactiveInterval() {
+            return 1800;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return Collections.unmodifiableSet(attributes.keySet());
+        }
+
+        @Override
+        public void invalidate() {
+            attributes.clear();
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return created;
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+            return created;
+        }
+
+        @Override
+        public boolean isNew() {
+            return false;
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public void setMaxInactiveInterval(int interval) {
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.vaadin.applet.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.applet.AppletIntegration;
+import org.vaadin.applet.AppletParameters;
+
+import com.vaadin.ui.AbstractComponent;
+
+/**
+ * Compares the serialized size and the serialization speed of
+ * {@link AppletIntegration} with the default serialized form it had before
+ * the compact form was introduced.
+ *
+ * The previous form is reproduced by {@link DefaultFormApplet}, which has the
+ * same fields and relies on default serialization. A number of components
+ * configured like in a typical session are written to one stream, the way
+ * session replication writes them, and read back. The compact form is
+ * smaller, but is not faster to write or read than the default form.
+ *
+ * Usage: <code>java org.vaadin.applet.loadtest.SerializationBenchmark
+ * [components=N] [rounds=N]</code> with target/classes,
+ * target/test-classes, vaadin-server and its dependencies in the classpath.
+ */
+public class SerializationBenchmark {
+
+    private static final Map<String, String> PARAMS = new HashMap<String, String>();
+    private static final AppletParameters SHARED_PARAMS;
+    private static final AppletParameters UNNAMED_PARAMS;
+
+    static {
+        for (int i = 0; i < 20; i++) {
+            PARAMS.put("param" + i, "value of parameter " + i);
+        }
+        SHARED_PARAMS = AppletParameters.shared("serialization-benchmark",
+                PARAMS);
+        UNNAMED_PARAMS = AppletParameters.of(PARAMS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int components = 50;
+        int rounds = 2000;
+        for (String arg : args) {
+            if (arg.startsWith("components=")) {
+                components = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("rounds=")) {
+                rounds = Integer.parseInt(arg.substring(7));
+            }
+        }
+        System.out.println("components=" + components + " rounds=" + rounds);
+
+        List<Serializable> compact = new ArrayList<Serializable>();
+        List<Serializable> compactEmpty = new ArrayList<Serializable>();
+        List<Serializable> previous = new ArrayList<Serializable>();
+        List<Serializable> previousEmpty = new ArrayList<Serializable>();
+        for (int i = 0; i < components; i++) {
+            compact.add(new BenchmarkApplet(i));
+            compactEmpty.add(new BenchmarkApplet());
+            previous.add(new DefaultFormApplet(i));
+            previousEmpty.add(new DefaultFormApplet());
+        }
+
+        verify(compact);
+
+        System.out.println(measure("compact configured", compact, rounds));
+        System.out.println(measure("default configured", previous, rounds));
+        System.out.println(measure("compact empty", compactEmpty, rounds));
+        System.out.println(measure("default empty", previousEmpty, rounds));
+    }
+
+    /**
+     * Check that the compact form survives a round trip.
+     */
+    private static void verify(List<Serializable> components)
+            throws Exception {
+        @SuppressWarnings("unchecked")
+        List<Serializable> copy = (List<Serializable>) read(write(components));
+        for (int i = 0; i < components.size(); i++) {
+            BenchmarkApplet a = (BenchmarkApplet) components.get(i);
+            if (!a.hasSameState((BenchmarkApplet) copy.get(i))) {
+                throw new IllegalStateException("Component " + i
+                        + " differs after deserialization");
+            }
+        }
+    }
+
+    private static String measure(String name, List<Serializable> components,
+            int rounds) throws Exception {
+        // Warm up
+        for (int i = 0; i < rounds / 10; i++) {
+            read(write(components));
+        }
+        byte[] data = null;
+        long writeNanos = 0;
+        long readNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            data = write(components);
+            long written = System.nanoTime();
+            read(data);
+            writeNanos += written - start;
+            readNanos += System.nanoTime() - written;
+        }
+        return String.format(
+                "%-20s %8d bytes %6d bytes/component  write %8.1f us  read %8.1f us",
+                name, data.length, data.length / components.size(), writeNanos
+                        / 1000.0 / rounds, readNanos / 1000.0 / rounds);
+    }
+
+    private static byte[] write(List<Serializable> components)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new ArrayList<Serializable>(components));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object read(byte[] data) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                data));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Component configured like in the load test, with a shared parameter
+     * template, one instance specific parameter and a pending command.
+     */
+    public static class BenchmarkApplet extends AppletIntegration {
+
+        private static final long serialVersionUID = 1L;
+
+        public BenchmarkApplet() {
+        }
+
+        public BenchmarkApplet(int i) {
+            setAppletClass("org.example.BenchmarkApplet");
+            setAppletArchives(Arrays.asList("core.jar", "charts.jar",
+                    "reports.jar"));
+            setCodebase("/applets/");
+            setAppletParamsTemplate(SHARED_PARAMS);
+            setAppletParams("instance", String.valueOf(i));
+            executeCommand("refresh", new String[] { "all" });
+        }
+
+        boolean hasSameState(BenchmarkApplet other) {
+            return getAppletClass().equals(other.getAppletClass())
+                    && getAppletArchives().equals(other.getAppletArchives())
+                    && getCodebase().equals(other.getCodebase())
+                    && getAppletParamsTemplate() == other
+                            .getAppletParamsTemplate()
+                    && getAppletParams().equals(other.getAppletParams());
+        }
+    }
+
+    /**
+     * Component with the fields of {@link AppletIntegration} before the
+     * compact serialized form, serialized with default serialization.
+     */
+    public static class DefaultFormApplet extends AbstractComponent {
+
+        private static final long serialVersionUID = 1L;
+
+        private String appletClass = null;
+        private String codebase;
+        private String name;
+        private List<String> appletArchives = null;
+        private AppletParameters appletParamsTemplate = null;
+        private Map<String, String> appletParams = null;
+        private List<Object[]> pendingCommands = null;
+        private int compressionThreshold = 0;
+        private int immediateUpdateRate = 0;
+        private int immediateUpdateBurst = 0;
+        private boolean lazyInstantiation = false;
+        private boolean instantiationRequested = false;
+        private boolean archivePrefetch = false;
+        private Map<String, Long> startupTimings = null;
+        private Map<String, List<Object>> variableBindings = null;
+        private Map<String, List<Object>> variablesListeners = null;
+
+        public DefaultFormApplet() {
+        }
+
+        public DefaultFormApplet(int i) {
+            appletClass = "org.example.BenchmarkApplet";
+            appletArchives = new ArrayList<String>(Arrays.asList("core.jar",
+                    "charts.jar", "reports.jar"));
+            codebase = "/applets/";
+            appletParamsTemplate = UNNAMED_PARAMS;
+            appletParams = new HashMap<String, String>();
+            appletParams.put("instance", String.valueOf(i));
+            pendingCommands = new ArrayList<Object[]>();
+            pendingCommands.add(new Object[] { "refresh",
+                    new String[] { "all" }, Integer.valueOf(0) });
+        }
+    }
+}